@@ -7,6 +7,7 @@ public class SiftBenchConstants {
     public static final int NUM_ITEMS;
     public static final int NUM_DIMENSION;
     public static final String DATASET_FILE;
+    public static final String VECTOR_TYPE;
     public static final double READ_INSERT_TX_RATE;
 
     static {
@@ -18,6 +19,8 @@ public class SiftBenchConstants {
                 SiftBenchConstants.class.getName() + ".DATASET_FILE", "sift.txt");
         READ_INSERT_TX_RATE = BenchProperties.getLoader().getPropertyAsDouble(
                 SiftBenchConstants.class.getName() + ".READ_INSERT_TX_RATE", 0.7);
+        VECTOR_TYPE = BenchProperties.getLoader().getPropertyAsString(
+                SiftBenchConstants.class.getName() + ".VECTOR_TYPE", "VECTOR(" + NUM_DIMENSION + ")");
         
     }
     
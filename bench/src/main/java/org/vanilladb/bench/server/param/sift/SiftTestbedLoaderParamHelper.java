@@ -3,6 +3,7 @@ package org.vanilladb.bench.server.param.sift;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.vanilladb.bench.benchmarks.sift.SiftBenchConstants;
 import org.vanilladb.core.sql.Schema;
 import org.vanilladb.core.sql.storedprocedure.SpResultRecord;
 import org.vanilladb.core.sql.storedprocedure.StoredProcedureHelper;
@@ -11,7 +12,6 @@ public class SiftTestbedLoaderParamHelper implements StoredProcedureHelper {
 
     private static final String TABLES_DDL[] = new String[1];
     private static final String INDEXES_DDL[] = new String[1];
-    private static final int N_DIM = 128;
 
     private int numItems;
 
@@ -44,7 +44,7 @@ public class SiftTestbedLoaderParamHelper implements StoredProcedureHelper {
     @Override
     public void prepareParameters(Object... pars) {
         numItems = (Integer) pars[0];
-        TABLES_DDL[0] = "CREATE TABLE " + getTableName() + " (i_id INT, i_emb VECTOR(" + N_DIM + "))";
+        TABLES_DDL[0] = "CREATE TABLE " + getTableName() + " (i_id INT, i_emb " + SiftBenchConstants.VECTOR_TYPE + ")";
         INDEXES_DDL[0] = "CREATE INDEX " + getIdxName() + " ON " + getTableName() + " (" + getIdxFields().get(0)
                 + ") USING IVF";
     }
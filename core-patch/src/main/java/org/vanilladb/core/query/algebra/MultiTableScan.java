@@ -5,6 +5,7 @@ import java.util.List;
 
 import org.vanilladb.core.sql.Constant;
 import org.vanilladb.core.sql.Schema;
+import org.vanilladb.core.sql.distfn.DistanceFn;
 import org.vanilladb.core.storage.metadata.TableInfo;
 import org.vanilladb.core.storage.record.RecordFile;
 import org.vanilladb.core.storage.record.RecordId;
@@ -72,6 +73,22 @@ public class MultiTableScan implements UpdateScan {
         return rf.get(rf_idx).getVal(fldName);
     }
 
+    /**
+     * Returns the distance to the vector of the current record, computed on
+     * the page.
+     * 
+     * @see Scan#distance(DistanceFn)
+     */
+    @Override
+    public double distance(DistanceFn distFn) {
+        return rf.get(rf_idx).distance(distFn);
+    }
+
+    @Override
+    public double rankingDistance(DistanceFn distFn, double bound) {
+        return rf.get(rf_idx).rankingDistance(distFn, bound);
+    }
+
     @Override
     public boolean hasField(String fldName) {
         return schema.hasField(fldName);
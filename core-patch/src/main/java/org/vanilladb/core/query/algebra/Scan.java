@@ -16,6 +16,8 @@
 package org.vanilladb.core.query.algebra;
 
 import org.vanilladb.core.sql.Record;
+import org.vanilladb.core.sql.VectorConstant;
+import org.vanilladb.core.sql.distfn.DistanceFn;
 
 /**
  * The interface will be implemented by each query scan. There is a Scan class
@@ -52,4 +54,33 @@ public interface Scan extends Record {
 	 * @return true if the scan has that field
 	 */
 	boolean hasField(String fldName);
+
+	/**
+	 * Returns the distance between the query vector of the specified distance
+	 * function and the vector in its field of the current record. Scans over
+	 * stored records override this to compute the distance on the page
+	 * without materializing the vector.
+	 * 
+	 * @param distFn
+	 *            the distance function holding the query vector
+	 * @return the distance to the vector of the current record
+	 */
+	default double distance(DistanceFn distFn) {
+		return distFn.distance((VectorConstant) getVal(distFn.fieldName()));
+	}
+
+	/**
+	 * Returns the ranking distance between the query vector of the specified
+	 * distance function and the vector in its field of the current record.
+	 * 
+	 * @param distFn
+	 *            the distance function holding the query vector
+	 * @param bound
+	 *            the ranking distance at which the computation may stop
+	 * @return the ranking distance to the vector of the current record
+	 * @see DistanceFn#rankingDistance(VectorConstant, double)
+	 */
+	default double rankingDistance(DistanceFn distFn, double bound) {
+		return distFn.rankingDistance((VectorConstant) getVal(distFn.fieldName()), bound);
+	}
 }
@@ -16,6 +16,7 @@
 package org.vanilladb.core.query.algebra;
 
 import org.vanilladb.core.sql.Constant;
+import org.vanilladb.core.sql.distfn.DistanceFn;
 import org.vanilladb.core.sql.predicate.Predicate;
 import org.vanilladb.core.storage.record.RecordId;
 
@@ -72,6 +73,16 @@ public class SelectScan implements UpdateScan {
 		return s.getVal(fldName);
 	}
 
+	@Override
+	public double distance(DistanceFn distFn) {
+		return s.distance(distFn);
+	}
+
+	@Override
+	public double rankingDistance(DistanceFn distFn, double bound) {
+		return s.rankingDistance(distFn, bound);
+	}
+
 	@Override
 	public boolean hasField(String fldName) {
 		return s.hasField(fldName);
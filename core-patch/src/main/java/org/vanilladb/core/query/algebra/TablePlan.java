@@ -59,6 +59,15 @@ public class TablePlan implements Plan {
 		return new TableScan(ti, tx);
 	}
 
+	/**
+	 * Returns the metadata of the table.
+	 * 
+	 * @return the metadata of the table
+	 */
+	public TableInfo tableInfo() {
+		return ti;
+	}
+
 	/**
 	 * Estimates the number of block accesses for the table, which is obtainable
 	 * from the statistics manager.
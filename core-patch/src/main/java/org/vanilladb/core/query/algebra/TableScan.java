@@ -17,6 +17,7 @@ package org.vanilladb.core.query.algebra;
 
 import org.vanilladb.core.sql.Constant;
 import org.vanilladb.core.sql.Schema;
+import org.vanilladb.core.sql.distfn.DistanceFn;
 import org.vanilladb.core.storage.metadata.TableInfo;
 import org.vanilladb.core.storage.record.RecordFile;
 import org.vanilladb.core.storage.record.RecordId;
@@ -71,6 +72,22 @@ public class TableScan implements UpdateScan {
 		return rf.getVal(fldName);
 	}
 
+	/**
+	 * Returns the distance to the vector of the current record, computed on
+	 * the page.
+	 * 
+	 * @see Scan#distance(DistanceFn)
+	 */
+	@Override
+	public double distance(DistanceFn distFn) {
+		return rf.distance(distFn);
+	}
+
+	@Override
+	public double rankingDistance(DistanceFn distFn, double bound) {
+		return rf.rankingDistance(distFn, bound);
+	}
+
 	@Override
 	public boolean hasField(String fldName) {
 		return schema.hasField(fldName);
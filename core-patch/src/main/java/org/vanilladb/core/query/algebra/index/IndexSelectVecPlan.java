@@ -15,6 +15,7 @@
  *******************************************************************************/
 package org.vanilladb.core.query.algebra.index;
 
+import java.util.List;
 import java.util.Map;
 
 import org.vanilladb.core.query.algebra.Plan;
@@ -22,13 +23,21 @@ import org.vanilladb.core.query.algebra.Scan;
 import org.vanilladb.core.query.algebra.SelectPlan;
 import org.vanilladb.core.query.algebra.TablePlan;
 import org.vanilladb.core.query.algebra.TableScan;
+import org.vanilladb.core.query.algebra.vector.TopKPlan;
+import org.vanilladb.core.server.VanillaDb;
 import org.vanilladb.core.sql.ConstantRange;
 import org.vanilladb.core.sql.Schema;
+import org.vanilladb.core.sql.predicate.Predicate;
 import org.vanilladb.core.storage.index.Index;
+import org.vanilladb.core.storage.index.IndexType;
 import org.vanilladb.core.storage.index.SearchKeyType;
 import org.vanilladb.core.storage.index.SearchRange;
+import org.vanilladb.core.storage.index.ivf.ClusterProbe;
+import org.vanilladb.core.storage.index.ivf.IVFIndex;
+import org.vanilladb.core.storage.metadata.TableInfo;
 import org.vanilladb.core.storage.metadata.index.IndexInfo;
 import org.vanilladb.core.storage.metadata.statistics.Histogram;
+import org.vanilladb.core.storage.metadata.statistics.VectorIndexStatInfo;
 import org.vanilladb.core.storage.tx.Transaction;
 
 import org.vanilladb.core.sql.VectorConstant;
@@ -42,27 +51,59 @@ public class IndexSelectVecPlan implements Plan {
     private IndexInfo ii;
     // private Map<String, ConstantRange> searchRanges;
     private VectorConstant vec;
+    private int k;
+    private Predicate filter;
     private Transaction tx;
     private Histogram hist;
+    private long blks = -1, recs;
 
     /**
      * Creates a new index-select node in the query tree for the specified index
-     * and search range.
+     * and query vector.
      * 
      * @param tp
      *                     the input table plan
      * @param ii
      *                     information about the index
-     * @param searchRanges
-     *                     the ranges of search keys
+     * @param vec
+     *                     the query vector
+     * @param k
+     *                     the number of nearest neighbors needed, or -1 if
+     *                     unbounded
      * @param tx
      *                     the calling transaction
      */
     public IndexSelectVecPlan(TablePlan tp, IndexInfo ii,
-            VectorConstant vec, Transaction tx) {
+            VectorConstant vec, int k, Transaction tx) {
+        this(tp, ii, vec, k, null, tx);
+    }
+
+    /**
+     * Creates a new index-select node that keeps only the candidates whose
+     * data records satisfy the specified predicate. An uncompressed IVF index
+     * then probes more clusters, if needed, until k candidates match.
+     * 
+     * @param tp
+     *                     the input table plan
+     * @param ii
+     *                     information about the index
+     * @param vec
+     *                     the query vector
+     * @param k
+     *                     the number of candidates the index is asked for,
+     *                     or -1 if unbounded
+     * @param filter
+     *                     the predicate on the data records, or null
+     * @param tx
+     *                     the calling transaction
+     */
+    public IndexSelectVecPlan(TablePlan tp, IndexInfo ii,
+            VectorConstant vec, int k, Predicate filter, Transaction tx) {
         this.tp = tp;
         this.ii = ii;
         this.vec = vec; // vec 是 queryVector
+        this.k = k;
+        this.filter = filter;
         this.tx = tx;
         // hist = SelectPlan.constantRangeHistogram(tp.histogram(), searchRanges);
     }
@@ -74,22 +115,76 @@ public class IndexSelectVecPlan implements Plan {
      */
     @Override
     public Scan open() {
+        // throws an exception if p is not a tableplan.
+        TableScan ts = (TableScan) tp.open();
+        Index idx = ii.open(tx);
+        return new IndexSelectVecScan(idx, vec, k, ts, filter);
+    }
+
+    /**
+     * Returns the predicate the candidates are filtered by, or null.
+     */
+    public Predicate filter() {
+        return filter;
+    }
+
+    public TablePlan tablePlan() {
+        return tp;
+    }
+
+    /**
+     * Returns the cluster tables that the scan of an uncompressed IVF index
+     * would go through for the query vector, or null if the index yields the
+     * record IDs of its candidates instead or the candidates are filtered.
+     * 
+     * @return the metadata of the probed cluster tables, or null
+     */
+    public List<TableInfo> clusterTables() {
+        if (filter != null)
+            return null;
         Index idx = ii.open(tx);
-        return new IndexSelectVecScan(idx,
-                vec);
+        try {
+            if (idx instanceof IVFIndex && !((IVFIndex) idx).isCompressed())
+                return ((IVFIndex) idx).probedClusters(vec);
+            return null;
+        } finally {
+            idx.close();
+        }
+    }
+
+    /**
+     * Returns the clusters of an uncompressed IVF index that a search for the
+     * query vector may probe, with bounds for pruning them, or null if the
+     * index yields the record IDs of its candidates instead.
+     * 
+     * @return the clusters to be probed, or null
+     */
+    public ClusterProbe clusterProbe() {
+        Index idx = ii.open(tx);
+        try {
+            if (!(idx instanceof IVFIndex) || ((IVFIndex) idx).isCompressed())
+                return null;
+            if (filter != null)
+                return ((IVFIndex) idx).probe(vec, Integer.MAX_VALUE);
+            return ((IVFIndex) idx).probe(vec);
+        } finally {
+            idx.close();
+        }
     }
 
     /**
      * Estimates the number of block accesses to compute the index selection,
-     * which is the same as the index traversal cost plus the number of matching
-     * data records.
+     * which is the same as the index traversal cost plus the number of data
+     * records looked up. An uncompressed IVF index reads its probed clusters
+     * and looks up data records only to filter the candidates; other indexes
+     * look up the data record of every candidate.
      * 
      * @see Plan#blocksAccessed()
      */
     @Override
     public long blocksAccessed() {
-        // for SIMPLICITY
-        return 0;
+        estimate();
+        return blks;
     }
 
     /**
@@ -110,14 +205,71 @@ public class IndexSelectVecPlan implements Plan {
      */
     @Override
     public Histogram histogram() {
-        return tp.histogram();
-        // throw new RuntimeException("cannot go here");
+        if (hist == null) {
+            Histogram h = filter == null ? tp.histogram()
+                    : SelectPlan.predHistogram(tp.histogram(), filter);
+            hist = TopKPlan.reducedHistogram(h, recordsOutput());
+        }
+        return hist;
     }
 
+    /**
+     * Estimates the number of candidates that satisfy the filter, if any. An
+     * uncompressed IVF index yields all the entries of its probed clusters.
+     * 
+     * @see Plan#recordsOutput()
+     */
     @Override
     public long recordsOutput() {
-        // for SIMPLICITY
-        return 0;// (long) histogram().recordsOutput();
+        estimate();
+        return recs;
+    }
+
+    private void estimate() {
+        if (blks >= 0)
+            return;
+        double total = tp.recordsOutput();
+        double selectivity = 1;
+        if (filter != null && total > 0)
+            selectivity = Math.min(new SelectPlan(tp, filter).recordsOutput() / total, 1);
+        long wanted = k < 0 ? (long) total : k;
+
+        boolean scansClusters;
+        Index idx = ii.open(tx);
+        try {
+            scansClusters = idx instanceof IVFIndex && !((IVFIndex) idx).isCompressed();
+        } finally {
+            idx.close();
+        }
+
+        VectorIndexStatInfo si = ii.indexType() == IndexType.IVF
+                ? VanillaDb.statMgr().getVectorIndexStatInfo(ii, tx) : null;
+        double candidates, indexBlks;
+        if (si != null) {
+            // a filtered cluster scan probes clusters until enough match
+            int probes = scansClusters && filter != null ? si.probesFor(wanted)
+                    : si.numProbes();
+            indexBlks = Math.ceil(probes * si.blocksPerCluster());
+            candidates = Math.min(probes * si.recordsPerCluster(), total);
+            if (!scansClusters)
+                candidates = Math.min(IVFIndex.rerankSize(k), candidates);
+        } else {
+            candidates = Math.min(wanted, total);
+            indexBlks = Index.searchCost(ii.indexType(),
+                    new SearchKeyType(schema(), ii.fieldNames()), (long) total,
+                    (long) candidates);
+        }
+        double lookups = candidates;
+        if (scansClusters) {
+            // a cluster scan looks up only the entries that make it into the
+            // top k so far, about k (1 + ln(n / k)) of n entries in random order
+            if (filter == null)
+                lookups = 0;
+            else if (wanted > 0 && wanted < candidates)
+                lookups = wanted * (1 + Math.log(candidates / wanted));
+        }
+        blks = (long) (indexBlks + lookups);
+        recs = (long) Math.ceil(candidates * selectivity);
     }
 
     @Override
@@ -126,7 +278,8 @@ public class IndexSelectVecPlan implements Plan {
         String[] cs = c.split("\n");
         StringBuilder sb = new StringBuilder();
         sb.append("->");
-        sb.append("IndexSelectVecPlan cond:" + vec.toString() + " (#blks="
+        sb.append("IndexSelectVecPlan cond:" + vec.toString()
+                + (filter == null ? "" : " filter:" + filter) + " (#blks="
                 + blocksAccessed() + ", #recs=" + recordsOutput() + ")\n");
         for (String child : cs)
             sb.append("\t").append(child).append("\n");
@@ -19,6 +19,8 @@ import org.vanilladb.core.query.algebra.Scan;
 import org.vanilladb.core.query.algebra.TableScan;
 import org.vanilladb.core.query.algebra.UpdateScan;
 import org.vanilladb.core.sql.Constant;
+import org.vanilladb.core.sql.distfn.DistanceFn;
+import org.vanilladb.core.sql.predicate.Predicate;
 import org.vanilladb.core.storage.index.Index;
 import org.vanilladb.core.storage.index.SearchRange;
 import org.vanilladb.core.storage.index.ivf.IVFIndex;
@@ -32,30 +34,67 @@ import org.vanilladb.core.query.algebra.MultiTableScan;
  * The scan class corresponding to the select relational algebra operator.
  */
 public class IndexSelectVecScan implements UpdateScan {
-    private IVFIndex idx;
+    private Index idx;
     private TableScan ts;
     // private SearchRange searchRange;
     private VectorConstant vec;
+    private int k;
     // private TableScan selected_ts;
-    private MultiTableScan selected_ts;
+    private UpdateScan selected_ts;
+    private boolean isClusterScan;
+    private Predicate filter;
 
     // private MultiTableScan selected_tss;
     /**
-     * Creates an index select scan for the specified index and search range.
+     * Creates an index select scan for the specified index and query vector.
+     * An IVF index hands out the scan over its probed clusters directly, while
+     * a graph index or a compressed IVF index returns the record IDs of the
+     * candidates found, which are then fetched from the data table.
      * 
      * @param idx
-     *                    the index
-     * @param searchRange
-     *                    the range of search keys
+     *            the index
+     * @param vec
+     *            the query vector
+     * @param k
+     *            the number of nearest neighbors needed, or -1 if unbounded
      * @param ts
-     *                    the table scan of data table
+     *            the table scan of data table
      */
-    public IndexSelectVecScan(Index idx, VectorConstant vec) {
-        this.idx = (IVFIndex) idx;
-        this.vec = vec;
-        // selected_ts 是多個聚類對應的Table和在一起的TableScan
-        selected_ts = this.idx.OpenTopk(vec);
+    public IndexSelectVecScan(Index idx, VectorConstant vec, int k, TableScan ts) {
+        this(idx, vec, k, ts, null);
+    }
 
+    /**
+     * Creates an index select scan that skips the candidates whose data
+     * records do not satisfy the specified predicate.
+     * 
+     * @param idx
+     *            the index
+     * @param vec
+     *            the query vector
+     * @param k
+     *            the number of candidates the index is asked for, or -1 if
+     *            unbounded
+     * @param ts
+     *            the table scan of data table
+     * @param filter
+     *            the predicate on the data records, or null
+     */
+    public IndexSelectVecScan(Index idx, VectorConstant vec, int k, TableScan ts,
+            Predicate filter) {
+        this.idx = idx;
+        this.vec = vec;
+        this.k = k;
+        this.ts = ts;
+        this.filter = filter;
+        if (idx instanceof IVFIndex && !((IVFIndex) idx).isCompressed()) {
+            // selected_ts 是多個聚類對應的Table和在一起的TableScan
+            selected_ts = ((IVFIndex) idx).OpenTopk(vec);
+            isClusterScan = true;
+        } else {
+            selected_ts = ts;
+            isClusterScan = false;
+        }
     }
 
     /**
@@ -67,20 +106,41 @@ public class IndexSelectVecScan implements UpdateScan {
      */
     @Override
     public void beforeFirst() {
-        selected_ts.beforeFirst();
+        if (isClusterScan)
+            selected_ts.beforeFirst();
+        else
+            idx.beforeFirst(vec, k);
     }
 
     /**
      * Moves to the next record, which in this case means moving the index to
      * the next record satisfying the selection constant, and returning false if
      * there are no more such index records. If there is a next record, the
-     * method moves the tablescan to the corresponding data record.
+     * method moves the tablescan to the corresponding data record. Candidates
+     * whose data records do not satisfy the filter are skipped.
      * 
      * @see Scan#next()
      */
     @Override
     public boolean next() {
-        return selected_ts.next();
+        if (isClusterScan) {
+            while (selected_ts.next()) {
+                if (filter == null)
+                    return true;
+                ts.moveToRecordId(((IVFIndex) idx).dataRecordId(selected_ts));
+                if (filter.isSatisfied(ts))
+                    return true;
+            }
+            return false;
+        }
+
+        while (idx.next()) {
+            RecordId rid = idx.getDataRecordId();
+            ts.moveToRecordId(rid);
+            if (filter == null || filter.isSatisfied(ts))
+                return true;
+        }
+        return false;
     }
 
     /**
@@ -92,6 +152,8 @@ public class IndexSelectVecScan implements UpdateScan {
     public void close() {
         idx.close();
         selected_ts.close();
+        if (isClusterScan)
+            ts.close();
     }
 
     /**
@@ -104,6 +166,21 @@ public class IndexSelectVecScan implements UpdateScan {
         return selected_ts.getVal(fldName);
     }
 
+    /**
+     * Returns the distance to the vector of the current data record.
+     * 
+     * @see Scan#distance(DistanceFn)
+     */
+    @Override
+    public double distance(DistanceFn distFn) {
+        return selected_ts.distance(distFn);
+    }
+
+    @Override
+    public double rankingDistance(DistanceFn distFn, double bound) {
+        return selected_ts.rankingDistance(distFn, bound);
+    }
+
     /**
      * Returns whether the data record has the specified field.
      * 
@@ -0,0 +1,250 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.query.algebra.vector;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.vanilladb.core.sql.distfn.EuclideanFn;
+import org.vanilladb.core.storage.file.BlockId;
+import org.vanilladb.core.storage.metadata.TableInfo;
+import org.vanilladb.core.storage.record.RecordFile;
+import org.vanilladb.core.storage.tx.Transaction;
+import org.vanilladb.core.util.CoreProperties;
+
+/**
+ * Batches nearest neighbor searches of concurrent transactions that scan IVF
+ * clusters. The first search to arrive leads a batch: it waits up to
+ * BATCH_WINDOW microseconds for others to join, groups the searches by the
+ * clusters they probe, and scans each cluster once, scoring every record it
+ * reads against all the queries probing that cluster in one pass. The other
+ * searches wait for their results.
+ *
+ * <p>
+ * Every search locks the blocks of its clusters with its own transaction
+ * before it joins a batch. The leader then scans through a transaction that
+ * takes no locks, and gives a search only the records in the blocks it has
+ * locked. A failure of the leader fails every search of the batch.
+ * </p>
+ */
+public class BatchedTopK {
+
+    /**
+     * The time in microseconds a batch stays open for searches to join. 0
+     * disables batching.
+     */
+    public static final int BATCH_WINDOW;
+
+    /**
+     * The maximum number of searches in a batch. A full batch starts at once.
+     */
+    public static final int MAX_BATCH_SIZE;
+
+    static {
+        BATCH_WINDOW = CoreProperties.getLoader().getPropertyAsInteger(
+                BatchedTopK.class.getName() + ".BATCH_WINDOW", 0);
+        MAX_BATCH_SIZE = CoreProperties.getLoader().getPropertyAsInteger(
+                BatchedTopK.class.getName() + ".MAX_BATCH_SIZE", 64);
+    }
+
+    private static final Object lock = new Object();
+    private static Batch openBatch;
+
+    private static class Request {
+        List<TableInfo> clusters;
+        // the number of blocks locked in each cluster, keyed by file name
+        Map<String, Long> lockedSizes = new LinkedHashMap<String, Long>();
+        String vecFldName, idFldName;
+        float[] query;
+        TopKHeap heap;
+        CompletableFuture<TopKHeap> result = new CompletableFuture<TopKHeap>();
+
+        Request(List<TableInfo> clusters, String vecFldName, String idFldName,
+                float[] query, int k) {
+            this.clusters = clusters;
+            this.vecFldName = vecFldName;
+            this.idFldName = idFldName;
+            this.query = query;
+            this.heap = new TopKHeap(k);
+        }
+    }
+
+    private static class Batch {
+        List<Request> requests = new ArrayList<Request>();
+        boolean closed;
+    }
+
+    public static boolean isEnabled() {
+        return BATCH_WINDOW > 0;
+    }
+
+    /**
+     * Returns the {@code k} records of the specified clusters nearest to the
+     * query by Euclidean distance, sorted nearest first. The search locks the
+     * clusters, then joins the open batch, or opens one and runs it.
+     *
+     * @param clusters
+     *            the metadata of the cluster tables to be scanned
+     * @param vecFldName
+     *            the name of the vector field
+     * @param idFldName
+     *            the name of the integer field identifying a record
+     * @param query
+     *            the query vector
+     * @param k
+     *            the number of records to keep, or -1 to keep all of them
+     * @param tx
+     *            the calling transaction
+     * @return the ids and squared distances of the nearest records
+     */
+    public static TopKHeap search(List<TableInfo> clusters, String vecFldName,
+            String idFldName, float[] query, int k, Transaction tx) {
+        Request req = new Request(clusters, vecFldName, idFldName, query, k);
+        for (TableInfo ti : clusters)
+            req.lockedSizes.put(ti.fileName(), lockCluster(ti, tx));
+
+        Batch batch;
+        boolean isLeader;
+        synchronized (lock) {
+            isLeader = openBatch == null;
+            if (isLeader)
+                openBatch = new Batch();
+            batch = openBatch;
+            batch.requests.add(req);
+            if (batch.requests.size() >= MAX_BATCH_SIZE) {
+                close(batch);
+                lock.notifyAll();
+            }
+        }
+
+        if (isLeader)
+            lead(batch, tx);
+
+        try {
+            return req.result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * Locks the data blocks of a cluster for reading, and returns the number
+     * of blocks in it.
+     */
+    private static long lockCluster(TableInfo ti, Transaction tx) {
+        RecordFile rf = ti.open(tx, false);
+        long size = rf.fileSizeForScan();
+        rf.close();
+        // block 0 is the file header
+        for (long blk = 1; blk < size; blk++)
+            tx.concurrencyMgr().readBlock(new BlockId(ti.fileName(), blk));
+        return size;
+    }
+
+    private static void close(Batch batch) {
+        batch.closed = true;
+        if (openBatch == batch)
+            openBatch = null;
+    }
+
+    private static void lead(Batch batch, Transaction tx) {
+        try {
+            synchronized (lock) {
+                long deadline = System.nanoTime() + BATCH_WINDOW * 1000L;
+                long remaining;
+                try {
+                    while (!batch.closed && (remaining = deadline - System.nanoTime()) > 0)
+                        lock.wait(remaining / 1000000, (int) (remaining % 1000000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                close(batch);
+            }
+
+            execute(batch.requests, ParallelTopK.workerTransaction(tx));
+            for (Request req : batch.requests) {
+                req.heap.sort();
+                req.result.complete(req.heap);
+            }
+        } catch (Throwable t) {
+            // no search of the batch may wait for a result that never comes
+            for (Request req : batch.requests)
+                req.result.completeExceptionally(t);
+            if (t instanceof Error)
+                throw (Error) t;
+        }
+    }
+
+    private static void execute(List<Request> requests, Transaction tx) {
+        // group the requests by the clusters they probe
+        Map<String, TableInfo> tables = new LinkedHashMap<String, TableInfo>();
+        Map<String, List<Request>> groups = new LinkedHashMap<String, List<Request>>();
+        for (Request req : requests)
+            for (TableInfo ti : req.clusters) {
+                tables.putIfAbsent(ti.fileName(), ti);
+                groups.computeIfAbsent(ti.fileName(), f -> new ArrayList<Request>()).add(req);
+            }
+
+        for (Map.Entry<String, List<Request>> group : groups.entrySet())
+            scan(tables.get(group.getKey()), group.getValue(), tx);
+    }
+
+    /**
+     * Scans a cluster once and scores each of its vectors against all the
+     * queries of the group at once. A request is offered only the records in
+     * the blocks it has locked.
+     */
+    private static void scan(TableInfo ti, List<Request> group, Transaction tx) {
+        int n = group.size();
+        float[][] queries = new float[n][];
+        long[] sizes = new long[n];
+        long end = 0;
+        for (int j = 0; j < n; j++) {
+            queries[j] = group.get(j).query;
+            sizes[j] = group.get(j).lockedSizes.get(ti.fileName());
+            end = Math.max(end, sizes[j]);
+        }
+        Request first = group.get(0);
+        float[] vec = new float[first.query.length];
+        float[] dists = new float[n];
+        RecordFile rf = ti.open(tx, false);
+        try {
+            rf.beforeFirst(1, end);
+            while (rf.next()) {
+                rf.getVector(first.vecFldName, vec);
+                EuclideanFn.squaredDistances(vec, queries, 0, n, dists);
+                long blkNum = rf.currentRecordId().block().number();
+                int id = -1;
+                for (int j = 0; j < n; j++) {
+                    Request req = group.get(j);
+                    if (blkNum < sizes[j] && req.heap.accepts(dists[j])) {
+                        if (id < 0)
+                            id = (Integer) rf.getVal(first.idFldName).asJavaVal();
+                        req.heap.offer(id, dists[j]);
+                    }
+                }
+            }
+        } finally {
+            rf.close();
+        }
+    }
+}
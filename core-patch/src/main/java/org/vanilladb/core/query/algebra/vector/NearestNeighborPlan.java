@@ -12,8 +12,9 @@ public class NearestNeighborPlan implements Plan {
     private Plan child;
 
     // 用他的 childPlan 做 Sorting (原本是SortPlan)
-    public NearestNeighborPlan(Plan p, DistanceFn distFn, Transaction tx) {
-        this.child = new TopKPlan(p, distFn, tx);
+    // k is the number of nearest neighbors to find, or -1 to sort all
+    public NearestNeighborPlan(Plan p, DistanceFn distFn, int k, Transaction tx) {
+        this.child = new TopKPlan(p, distFn, k, tx);
     }
 
     @Override
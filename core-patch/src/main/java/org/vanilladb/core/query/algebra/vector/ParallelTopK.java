@@ -0,0 +1,239 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.query.algebra.vector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.vanilladb.core.server.VanillaDb;
+import org.vanilladb.core.sql.distfn.DistanceFn;
+import org.vanilladb.core.storage.buffer.BufferMgr;
+import org.vanilladb.core.storage.file.BlockId;
+import org.vanilladb.core.storage.metadata.TableInfo;
+import org.vanilladb.core.storage.record.RecordFile;
+import org.vanilladb.core.storage.record.VectorColumnFile;
+import org.vanilladb.core.storage.tx.Transaction;
+import org.vanilladb.core.storage.tx.concurrency.PreLockedConcurrencyMgr;
+import org.vanilladb.core.util.CoreProperties;
+
+/**
+ * Finds the k records nearest to a query vector in a set of tables by
+ * splitting their blocks into ranges that are scanned in parallel on a
+ * fork-join pool. Each range is ranked into its own heap, and the heaps are
+ * merged as the tasks join.
+ *
+ * <p>
+ * A transaction is used by one thread at a time, so the workers never act on
+ * its behalf. The calling thread locks all the scanned blocks before it forks
+ * the workers. Each worker then scans its ranges through a transaction of its
+ * own that shares the number of the calling one, takes no locks and pins the
+ * blocks in a buffer manager of its own. It streams through the
+ * {@link VectorColumnFile column file} of a table if there is one, and
+ * through the record file otherwise.
+ * </p>
+ */
+public class ParallelTopK {
+
+    /**
+     * The number of worker threads. Set it to 1 to scan sequentially.
+     */
+    public static final int PARALLELISM;
+
+    /**
+     * The number of blocks scanned by a task.
+     */
+    public static final int BLOCKS_PER_TASK;
+
+    private static final ForkJoinPool pool;
+
+    static {
+        PARALLELISM = CoreProperties.getLoader().getPropertyAsInteger(
+                ParallelTopK.class.getName() + ".PARALLELISM",
+                Runtime.getRuntime().availableProcessors());
+        BLOCKS_PER_TASK = CoreProperties.getLoader().getPropertyAsInteger(
+                ParallelTopK.class.getName() + ".BLOCKS_PER_TASK", 16);
+        pool = PARALLELISM > 1 ? new ForkJoinPool(PARALLELISM) : null;
+    }
+
+    private static class Range {
+        TableInfo ti;
+        long startBlk, endBlk;
+
+        Range(TableInfo ti, long startBlk, long endBlk) {
+            this.ti = ti;
+            this.startBlk = startBlk;
+            this.endBlk = endBlk;
+        }
+    }
+
+    private String idFldName;
+    private Transaction tx;
+    private List<Range> ranges = new ArrayList<Range>();
+
+    /**
+     * Splits the data blocks of the specified tables into ranges of
+     * BLOCKS_PER_TASK blocks.
+     *
+     * @param tables
+     *            the metadata of the tables to be scanned
+     * @param idFldName
+     *            the name of the integer field identifying a record
+     * @param tx
+     *            the calling transaction
+     */
+    public ParallelTopK(List<TableInfo> tables, String idFldName, Transaction tx) {
+        this.idFldName = idFldName;
+        this.tx = tx;
+        for (TableInfo ti : tables) {
+            RecordFile rf = ti.open(tx, false);
+            long size = rf.fileSizeForScan();
+            rf.close();
+            // block 0 is the file header
+            for (long blk = 1; blk < size; blk += BLOCKS_PER_TASK)
+                ranges.add(new Range(ti, blk, Math.min(blk + BLOCKS_PER_TASK, size)));
+        }
+    }
+
+    /**
+     * Returns true if there is enough work to be split across the workers.
+     */
+    public boolean isWorthParallel() {
+        return pool != null && ranges.size() > 1;
+    }
+
+    /**
+     * Returns the {@code k} records nearest to the query vector of
+     * {@code distFn}, sorted nearest first. The ranges are scanned on the
+     * calling thread if they are not worth splitting.
+     *
+     * @param distFn
+     *            the distance function with the query vector
+     * @param k
+     *            the number of records to keep, or -1 to keep all of them
+     * @return the ids and ranking distances of the nearest records
+     * @see DistanceFn#rankingDistance(org.vanilladb.core.sql.VectorConstant, double)
+     */
+    public TopKHeap search(DistanceFn distFn, int k) {
+        TopKHeap heap;
+        if (isWorthParallel()) {
+            // lock the blocks the workers scan, and load the column files
+            for (Range range : ranges) {
+                for (long blk = range.startBlk; blk < range.endBlk; blk++)
+                    tx.concurrencyMgr().readBlock(new BlockId(range.ti.fileName(), blk));
+                VectorColumnFile.open(range.ti, distFn.fieldName(), tx);
+            }
+            heap = pool.invoke(new SearchTask(ranges, idFldName, distFn, k, tx,
+                    0, ranges.size()));
+        } else {
+            heap = new TopKHeap(k);
+            for (Range range : ranges)
+                scan(range, idFldName, distFn, heap, tx);
+        }
+        heap.sort();
+        return heap;
+    }
+
+    /**
+     * Scans a range into the heap on behalf of the specified transaction.
+     */
+    private static void scan(Range range, String idFldName, DistanceFn distFn, TopKHeap heap,
+            Transaction tx) {
+        RecordFile rf = range.ti.open(tx, false);
+        try {
+            // stream through the copied vectors, reading a record only once
+            // it is kept
+            VectorColumnFile vcf = VectorColumnFile.open(range.ti, distFn.fieldName(), tx);
+            if (vcf != null) {
+                vcf.beforeFirst(range.startBlk, range.endBlk);
+                while (vcf.next()) {
+                    float dist = (float) vcf.rankingDistance(distFn, heap.bound());
+                    if (heap.accepts(dist)) {
+                        rf.moveToRecordId(vcf.currentRecordId());
+                        heap.offer((Integer) rf.getVal(idFldName).asJavaVal(), dist);
+                    }
+                }
+                return;
+            }
+
+            rf.beforeFirst(range.startBlk, range.endBlk);
+            while (rf.next()) {
+                float dist = (float) rf.rankingDistance(distFn, heap.bound());
+                if (heap.accepts(dist))
+                    heap.offer((Integer) rf.getVal(idFldName).asJavaVal(), dist);
+            }
+        } finally {
+            rf.close();
+        }
+    }
+
+    /**
+     * Returns a transaction for a worker scanning on behalf of the specified
+     * one, which has locked the blocks the worker reads. It pins blocks in a
+     * buffer manager of its own, and is never committed.
+     */
+    static Transaction workerTransaction(Transaction tx) {
+        long txNum = tx.getTransactionNumber();
+        return new Transaction(VanillaDb.txMgr(), new PreLockedConcurrencyMgr(txNum),
+                tx.recoveryMgr(), new BufferMgr(txNum), true, txNum);
+    }
+
+    private static class SearchTask extends RecursiveTask<TopKHeap> {
+
+        private static final long serialVersionUID = 1L;
+
+        private List<Range> ranges;
+        private String idFldName;
+        private DistanceFn distFn;
+        private Transaction tx;
+        private int k, from, to;
+
+        SearchTask(List<Range> ranges, String idFldName, DistanceFn distFn, int k,
+                Transaction tx, int from, int to) {
+            this.ranges = ranges;
+            this.idFldName = idFldName;
+            this.distFn = distFn;
+            this.k = k;
+            this.tx = tx;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected TopKHeap compute() {
+            if (to - from <= 1) {
+                // a distance function may keep scratch state of its own
+                DistanceFn fn = distFn.copy();
+                Transaction worker = workerTransaction(tx);
+                TopKHeap found = new TopKHeap(k);
+                for (int i = from; i < to; i++)
+                    scan(ranges.get(i), idFldName, fn, found, worker);
+                return found;
+            }
+
+            int mid = (from + to) >>> 1;
+            SearchTask left = new SearchTask(ranges, idFldName, distFn, k, tx, from, mid);
+            left.fork();
+            TopKHeap found = new SearchTask(ranges, idFldName, distFn, k, tx, mid, to).compute();
+            TopKHeap other = left.join();
+            for (int i = 0; i < other.size(); i++)
+                if (found.accepts(other.distance(i)))
+                    found.offer(other.id(i), other.distance(i));
+            return found;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.query.algebra.vector;
+
+import java.util.Arrays;
+
+/**
+ * A max-heap of (int id, float distance) pairs bounded to the k smallest
+ * distances, kept in two primitive arrays. Once the heap is full, a candidate
+ * that is not closer than the current worst is rejected by a single
+ * comparison, without any allocation.
+ *
+ * <p>
+ * After {@link #sort()}, {@link #id(int)} and {@link #distance(int)} return
+ * the entries in ascending order of distance. {@link #clear()} makes the heap
+ * reusable.
+ * </p>
+ */
+public class TopKHeap {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final int k;
+    private int[] ids;
+    private float[] dists;
+    private int size;
+
+    /**
+     * Creates a heap that keeps the {@code k} entries with the smallest
+     * distances. A negative {@code k} keeps all entries.
+     *
+     * @param k
+     *            the number of entries to keep, or -1 for no bound
+     */
+    public TopKHeap(int k) {
+        this.k = k < 0 ? Integer.MAX_VALUE : k;
+        int capacity = Math.min(this.k, INITIAL_CAPACITY);
+        ids = new int[capacity];
+        dists = new float[capacity];
+    }
+
+    /**
+     * Returns true if an entry with the specified distance would be kept.
+     * Callers can test this before computing the rest of an entry.
+     */
+    public boolean accepts(float dist) {
+        return size < k || (size > 0 && dist < dists[0]);
+    }
+
+    /**
+     * Offers an entry to the heap.
+     *
+     * @return true if the entry is kept
+     */
+    public boolean offer(int id, float dist) {
+        if (size < k) {
+            if (size == ids.length)
+                grow();
+            // sift up from the new leaf
+            int pos = size++;
+            while (pos > 0) {
+                int parent = (pos - 1) >>> 1;
+                if (dists[parent] >= dist)
+                    break;
+                ids[pos] = ids[parent];
+                dists[pos] = dists[parent];
+                pos = parent;
+            }
+            ids[pos] = id;
+            dists[pos] = dist;
+            return true;
+        }
+        if (k == 0 || dist >= dists[0])
+            return false;
+        siftDown(0, id, dist, size);
+        return true;
+    }
+
+    /**
+     * Returns the largest distance kept. The heap must not be empty.
+     */
+    public float worst() {
+        return dists[0];
+    }
+
+    /**
+     * Returns the distance at which a candidate is no longer accepted:
+     * the largest distance kept once the heap is full, or infinity before.
+     */
+    public float bound() {
+        return size < k || size == 0 ? Float.POSITIVE_INFINITY : dists[0];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size >= k;
+    }
+
+    /**
+     * Sorts the entries in ascending order of distance in place. The heap
+     * accepts no more entries until it is cleared.
+     */
+    public void sort() {
+        // heap sort: repeatedly move the worst entry behind the heap
+        for (int end = size - 1; end > 0; end--) {
+            int id = ids[end];
+            float dist = dists[end];
+            ids[end] = ids[0];
+            dists[end] = dists[0];
+            siftDown(0, id, dist, end);
+        }
+    }
+
+    public int id(int i) {
+        return ids[i];
+    }
+
+    public float distance(int i) {
+        return dists[i];
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    private void siftDown(int pos, int id, float dist, int end) {
+        int half = end >>> 1;
+        while (pos < half) {
+            int child = 2 * pos + 1;
+            int right = child + 1;
+            if (right < end && dists[right] > dists[child])
+                child = right;
+            if (dist >= dists[child])
+                break;
+            ids[pos] = ids[child];
+            dists[pos] = dists[child];
+            pos = child;
+        }
+        ids[pos] = id;
+        dists[pos] = dist;
+    }
+
+    private void grow() {
+        int capacity = (int) Math.min((long) k, Math.max(ids.length * 2L, INITIAL_CAPACITY));
+        ids = Arrays.copyOf(ids, capacity);
+        dists = Arrays.copyOf(dists, capacity);
+    }
+}
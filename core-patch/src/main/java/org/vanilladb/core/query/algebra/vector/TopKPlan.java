@@ -20,32 +20,35 @@ import static org.vanilladb.core.sql.RecordComparator.DIR_ASC;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
-import java.util.Set;
-import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
 
 import org.vanilladb.core.query.algebra.Plan;
 import org.vanilladb.core.query.algebra.Scan;
+import org.vanilladb.core.query.algebra.TablePlan;
 import org.vanilladb.core.query.algebra.TableScan;
 import org.vanilladb.core.query.algebra.UpdateScan;
+import org.vanilladb.core.query.algebra.index.IndexSelectVecPlan;
 import org.vanilladb.core.query.algebra.materialize.SortScan;
 import org.vanilladb.core.query.algebra.multibuffer.BufferNeeds;
 import org.vanilladb.core.sql.RecordComparator;
 import org.vanilladb.core.sql.Schema;
-import org.vanilladb.core.sql.VectorConstant;
+import org.vanilladb.core.sql.Type;
 import org.vanilladb.core.sql.distfn.DistanceFn;
+import org.vanilladb.core.sql.distfn.EuclideanFn;
 import org.vanilladb.core.sql.Constant;
 import org.vanilladb.core.sql.IntegerConstant;
 import org.vanilladb.core.sql.Record;
+import org.vanilladb.core.sql.predicate.Predicate;
 import org.vanilladb.core.storage.buffer.Buffer;
+import org.vanilladb.core.storage.index.ivf.ClusterProbe;
 import org.vanilladb.core.storage.metadata.TableInfo;
+import org.vanilladb.core.storage.metadata.statistics.Bucket;
 import org.vanilladb.core.storage.metadata.statistics.Histogram;
+import org.vanilladb.core.storage.record.RecordFile;
 import org.vanilladb.core.storage.record.RecordFormatter;
+import org.vanilladb.core.storage.record.VectorColumnFile;
 import org.vanilladb.core.storage.tx.Transaction;
 import org.vanilladb.core.util.CoreProperties;
-import java.util.ArrayList;
 import java.util.Arrays;
 
 /**
@@ -56,63 +59,36 @@ public class TopKPlan implements Plan {
     private Transaction tx;
     private Schema schema;
     private DistanceFn distFn;
-    private static final int limit = 20;
-    // private int NUM_ITEMS = 300;
-    private static Comparator<siftRecord> comp = new siftRecordComparator();
-    // private ArrayList<siftRecord> siftRecordPool = new
-    // ArrayList<siftRecord>(NUM_ITEMS);
-    // private siftRecord [] siftRecordPool = new siftRecord[NUM_ITEMS_CONSTANT];
-    // private int siftRecordPoolIdx = 0;
+    private String idFldName;
+    private int k;
 
     private List<String> sortFlds;
     private List<Integer> sortDirs;
 
-    // 用於 PriorityQueue 的 element
-    static class siftRecord {
-        IntegerConstant idx;
-        double dist;
-    }
-
-    // 用於 PriorityQueue 的 Comparator， dist愈小，優先級越小
-    static class siftRecordComparator implements Comparator<siftRecord> {
-        public int compare(siftRecord r1, siftRecord r2) {
-            int result = Double.compare(r1.dist, r2.dist);
-            if (result != 0)
-                return -result;
-            else
-                return 0;
+    // 把找到的 records 轉成 Scan 的形式，( open() 時會回傳這個 Scan )
+    // 會照 dist 由小到大的順序 return idx。
+    static class TopKScan implements Scan {
+        private TopKHeap heap;
+        private int pos = -1;
 
-        }
-    }
-
-    // 用於 PriorityQueue 轉成 Scan 的形式，( open() 時會回傳這個 Scan )
-    // 會照 Pop() 的順序 return idx。
-    static class PriorityQueueScan implements Scan {
-        private PriorityQueue<siftRecord> pq;
-        private boolean isBeforeFirsted = false;
-
-        public PriorityQueueScan(PriorityQueue<siftRecord> pq) {
-            this.pq = pq;
+        public TopKScan(TopKHeap heap) {
+            this.heap = heap;
         }
 
         @Override
         public Constant getVal(String fldName) {
-            return pq.peek().idx;
+            return new IntegerConstant(heap.id(pos));
         }
 
         @Override
         public void beforeFirst() {
-            this.isBeforeFirsted = true;
+            pos = -1;
         }
 
         @Override
         public boolean next() {
-            if (isBeforeFirsted) {
-                isBeforeFirsted = false;
-                return true;
-            }
-            pq.poll();
-            return pq.size() > 0;
+            pos++;
+            return pos < heap.size();
         }
 
         @Override
@@ -126,8 +102,22 @@ public class TopKPlan implements Plan {
         }
     }
 
-    public TopKPlan(Plan p, DistanceFn distFn, Transaction tx) {
+    /**
+     * Creates a plan that keeps the {@code k} records of the underlying query
+     * closest to the query vector of {@code distFn}.
+     * 
+     * @param p
+     *              the underlying query plan
+     * @param distFn
+     *              the distance function with the query vector
+     * @param k
+     *              the number of records to keep, or -1 to keep all of them
+     * @param tx
+     *              the calling transaction
+     */
+    public TopKPlan(Plan p, DistanceFn distFn, int k, Transaction tx) {
         this.p = p;
+        this.k = k;
         this.sortFlds = new ArrayList<String>();
         this.sortFlds.add(distFn.fieldName());
 
@@ -138,7 +128,18 @@ public class TopKPlan implements Plan {
         this.schema = p.schema();
 
         this.distFn = distFn;
+        this.idFldName = idField(schema, distFn.fieldName());
+    }
 
+    /**
+     * Returns the field that identifies the records found, which is the first
+     * integer field of the schema other than the vector field.
+     */
+    private static String idField(Schema sch, String vecFldName) {
+        for (String fldName : sch.fields())
+            if (!fldName.equals(vecFldName) && sch.type(fldName).equals(Type.INTEGER))
+                return fldName;
+        throw new IllegalArgumentException("no integer id field in " + sch);
     }
 
     /**
@@ -148,52 +149,141 @@ public class TopKPlan implements Plan {
      */
     @Override
     public Scan open() {
-        PriorityQueue<siftRecord> pq = new PriorityQueue<>(limit,
-                (siftRecord r1, siftRecord r2) -> comp.compare(r1, r2));
+        if (p instanceof IndexSelectVecPlan && distFn instanceof EuclideanFn) {
+            IndexSelectVecPlan ip = (IndexSelectVecPlan) p;
+
+            // probe the clusters one at a time, skipping those that cannot
+            // hold anything closer than the k-th record found so far
+            ClusterProbe probe = ip.clusterProbe();
+            if (probe != null) {
+                TopKHeap heap = new TopKHeap(k);
+                int probed = 0;
+
+                // share the scans of the clusters always probed with
+                // concurrent read-only searches
+                if (BatchedTopK.isEnabled() && tx.isReadOnly() && ip.filter() == null) {
+                    probed = probe.numProbes();
+                    List<TableInfo> clusters = new ArrayList<TableInfo>(probed);
+                    for (int i = 0; i < probed; i++)
+                        clusters.add(probe.cluster(i));
+                    TopKHeap found = BatchedTopK.search(clusters, distFn.fieldName(), idFldName,
+                            distFn.queryVector().asJavaVal(), k, tx);
+                    for (int i = 0; i < found.size(); i++)
+                        heap.offer(found.id(i), found.distance(i));
+                }
+                return new TopKScan(searchClusters(probe, ip, heap, probed));
+            }
+        }
+
+        // split the scan of a table or of the probed clusters across workers
+        // if it is worth it
+        List<TableInfo> tables = scannedTables();
+        if (tables != null)
+            return new TopKScan(new ParallelTopK(tables, idFldName, tx).search(distFn, k));
+
+        // a max-heap of the k nearest seen so far; a record that is not
+        // closer than the current worst costs one comparison, and its
+        // distance stops being computed once it passes the worst
+        TopKHeap heap = new TopKHeap(k);
 
         // p 是 childPlan (IndexSelectVecPlan)
         // p.open() 會回傳 query vector 對應到的 Cluster 的 TableScan
 
         Scan src = p.open();
-
         src.beforeFirst();
         while (src.next()) {
-            siftRecord rec = new siftRecord();
-
             // 紀錄該 record 的idx和它與query vector的距離。
-            rec.dist = distFn.distance((VectorConstant) src.getVal(sortFlds.get(0)));
-            rec.idx = (IntegerConstant) src.getVal("i_id");
-
-            // 將 rec 插到 PriorityQueue，pq element的個數超過20個就pop()，
-            // 因為是dist越大的排越前面，所以做後只會剩dist最小的20個在pq裡面
-            // 也就是最近的前20個vector
-            pq.add(rec);
-            if (pq.size() > limit)
-                pq.poll();
+            float dist = (float) src.rankingDistance(distFn, heap.bound());
+            if (heap.accepts(dist))
+                heap.offer((Integer) src.getVal(idFldName).asJavaVal(), dist);
         }
-        if (pq.size() < limit) {
-            Set<Integer> nearestNeighbors = new HashSet<>();
-            Object[] recArr = (Object[]) pq.toArray();
-            for (Object rec : recArr) {
-                nearestNeighbors.add((Integer) ((siftRecord) rec).idx.asJavaVal());
+        src.close();
+
+        // return as many as found, nearest first
+        heap.sort();
+        return new TopKScan(heap);
+    }
+
+    /**
+     * Probes the clusters in order. The first {@link ClusterProbe#numProbes()}
+     * clusters are always probed, since their bounds rest on radii that may
+     * lag behind concurrent insertions. The rest, which are ordered by their
+     * bounds, are probed until the k-th distance found is no larger than the
+     * bound of the next one. The clusters before {@code probed} have been
+     * probed into {@code heap} already. If the plan filters
+     * its candidates, only the entries whose data records satisfy the filter
+     * count, so the search goes on to further clusters until k of them are
+     * found.
+     */
+    private TopKHeap searchClusters(ClusterProbe probe, IndexSelectVecPlan ip, TopKHeap heap,
+            int probed) {
+        Predicate filter = ip.filter();
+        TableScan ts = filter == null ? null : (TableScan) ip.tablePlan().open();
+        for (int i = probed; i < probe.size(); i++) {
+            if (i >= probe.numProbes() && heap.isFull() && (heap.size() == 0
+                    || heap.worst() <= distFn.toRankingDistance(probe.lowerBound(i))))
+                break;
+
+            ParallelTopK search = filter == null
+                    ? new ParallelTopK(Arrays.asList(probe.cluster(i)), idFldName, tx) : null;
+            if (search != null && search.isWorthParallel()) {
+                TopKHeap found = search.search(distFn, k);
+                for (int j = 0; j < found.size(); j++)
+                    heap.offer(found.id(j), found.distance(j));
+                continue;
             }
-            int idx = 0;
-            while (pq.size() < limit) {
-                // pq沒滿20個的話補到20個，不然會報錯。
-                if (nearestNeighbors.contains(idx)) {
-                    idx++;
-                    continue;
+
+            RecordFile rf = probe.cluster(i).open(tx, false);
+            VectorColumnFile vcf = VectorColumnFile.open(probe.cluster(i), distFn.fieldName(), tx);
+            if (vcf != null) {
+                vcf.beforeFirst(1, rf.fileSizeForScan());
+                while (vcf.next()) {
+                    float dist = (float) vcf.rankingDistance(distFn, heap.bound());
+                    if (heap.accepts(dist)) {
+                        rf.moveToRecordId(vcf.currentRecordId());
+                        offer(heap, rf, dist, probe, filter, ts);
+                    }
+                }
+            } else {
+                rf.beforeFirst();
+                while (rf.next()) {
+                    float dist = (float) rf.rankingDistance(distFn, heap.bound());
+                    if (heap.accepts(dist))
+                        offer(heap, rf, dist, probe, filter, ts);
                 }
-                siftRecord rec = new siftRecord();
-                rec.dist = idx;
-                rec.idx = new IntegerConstant(idx);
-                pq.add(rec);
-                idx++;
             }
+            rf.close();
         }
+        if (ts != null)
+            ts.close();
+        heap.sort();
+        return heap;
+    }
 
-        src.close();
-        return new PriorityQueueScan(pq);
+    /**
+     * Offers the current entry of a cluster to the heap if its data record
+     * satisfies the filter, if any.
+     */
+    private void offer(TopKHeap heap, RecordFile rf, float dist, ClusterProbe probe,
+            Predicate filter, TableScan ts) {
+        if (filter != null) {
+            ts.moveToRecordId(probe.dataRecordId(rf));
+            if (!filter.isSatisfied(ts))
+                return;
+        }
+        heap.offer((Integer) rf.getVal(idFldName).asJavaVal(), dist);
+    }
+
+    /**
+     * Returns the tables the child plan scans in full, or null if the child
+     * plan is not a plain scan over stored tables.
+     */
+    private List<TableInfo> scannedTables() {
+        if (p instanceof TablePlan)
+            return Arrays.asList(((TablePlan) p).tableInfo());
+        if (p instanceof IndexSelectVecPlan)
+            return ((IndexSelectVecPlan) p).clusterTables();
+        return null;
     }
 
     /**
@@ -227,12 +317,40 @@ public class TopKPlan implements Plan {
      */
     @Override
     public Histogram histogram() {
-        return p.histogram();
+        return reducedHistogram(p.histogram(), recordsOutput());
+    }
+
+    /**
+     * Returns a histogram that approximates the distribution of field values
+     * in {@code numRecs} of the records described by the specified histogram.
+     * 
+     * @param hist
+     *                the input join distribution of field values
+     * @param numRecs
+     *                the number of records kept
+     * @return a histogram with the frequencies scaled down to
+     *         {@code numRecs} records
+     */
+    public static Histogram reducedHistogram(Histogram hist, double numRecs) {
+        double total = hist.recordsOutput();
+        if (Double.compare(total, numRecs) <= 0)
+            return hist;
+        double reduction = numRecs / total;
+        Histogram reduced = new Histogram(hist.fields());
+        for (String fld : hist.fields())
+            for (Bucket bkt : hist.buckets(fld)) {
+                double newFreq = bkt.frequency() * reduction;
+                reduced.addBucket(fld, new Bucket(bkt.valueRange(), newFreq,
+                        Math.min(bkt.distinctValues(), newFreq), bkt.valuePercentiles()));
+            }
+        return reduced;
     }
 
     @Override
     public long recordsOutput() {
-        return p.recordsOutput();
+        if (k < 0)
+            return p.recordsOutput();
+        return Math.min(k, p.recordsOutput());
     }
 
     private boolean copy(Scan src, UpdateScan dest) {
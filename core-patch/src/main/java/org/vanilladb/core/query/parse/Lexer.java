@@ -214,6 +214,7 @@ public class Lexer {
 				"int", "double", "vector", "varchar", "view", "as", "index", "on",
 				"long", "order", "by", "asc", "desc", "limit", "sum", "count", "avg",
 				"min", "max", "distinct", "group", "add", "sub", "mul", "div",
-				"explain", "using", "hash", "btree", "lsh", "ivf", "cos", "euc");
+				"explain", "using", "hash", "btree", "lsh", "ivf", "hnsw", "cos", "euc",
+				"vector_f16", "vector_i8", "ip");
 	}
 }
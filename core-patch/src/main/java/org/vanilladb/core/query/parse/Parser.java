@@ -22,6 +22,8 @@ import static org.vanilladb.core.sql.Type.DOUBLE;
 import static org.vanilladb.core.sql.Type.INTEGER;
 import static org.vanilladb.core.sql.Type.VARCHAR;
 import static org.vanilladb.core.sql.Type.VECTOR;
+import static org.vanilladb.core.sql.Type.VECTOR_F16;
+import static org.vanilladb.core.sql.Type.VECTOR_I8;
 import static org.vanilladb.core.sql.predicate.BinaryArithmeticExpression.OP_ADD;
 import static org.vanilladb.core.sql.predicate.BinaryArithmeticExpression.OP_DIV;
 import static org.vanilladb.core.sql.predicate.BinaryArithmeticExpression.OP_MUL;
@@ -54,6 +56,7 @@ import org.vanilladb.core.sql.aggfn.SumFn;
 import org.vanilladb.core.sql.distfn.CosineFn;
 import org.vanilladb.core.sql.distfn.DistanceFn;
 import org.vanilladb.core.sql.distfn.EuclideanFn;
+import org.vanilladb.core.sql.distfn.InnerProductFn;
 import org.vanilladb.core.sql.predicate.BinaryArithmeticExpression;
 import org.vanilladb.core.sql.predicate.ConstantExpression;
 import org.vanilladb.core.sql.predicate.Expression;
@@ -417,6 +420,9 @@ public class Parser {
 					} else if (lex.matchKeyword("euc")) {
 						lex.eatKeyword("euc");
 						distFn = new EuclideanFn(fld);
+					} else if (lex.matchKeyword("ip")) {
+						lex.eatKeyword("ip");
+						distFn = new InnerProductFn(fld);
 					} else {
 						throw new UnsupportedOperationException("Invalid distance function");
 					}
@@ -615,6 +621,26 @@ public class Parser {
 			double arg = lex.eatNumericConstant();
 			lex.eatDelim(')');
 			schema.addField(fldName, VECTOR((int) arg));
+		} else if (lex.matchKeyword("vector_f16")) {
+			lex.eatKeyword("vector_f16");
+			lex.eatDelim('(');
+			double arg = lex.eatNumericConstant();
+			lex.eatDelim(')');
+			schema.addField(fldName, VECTOR_F16((int) arg));
+		} else if (lex.matchKeyword("vector_i8")) {
+			// VECTOR_I8(dimension [, scale, offset])
+			lex.eatKeyword("vector_i8");
+			lex.eatDelim('(');
+			double arg = lex.eatNumericConstant();
+			double scale = 1, offset = 0;
+			if (lex.matchDelim(',')) {
+				lex.eatDelim(',');
+				scale = lex.eatNumericConstant();
+				lex.eatDelim(',');
+				offset = lex.eatNumericConstant();
+			}
+			lex.eatDelim(')');
+			schema.addField(fldName, VECTOR_I8((int) arg, (float) scale, (float) offset));
 		} else {
 			lex.eatKeyword("varchar");
 			lex.eatDelim('(');
@@ -659,6 +685,9 @@ public class Parser {
 			} else if (lex.matchKeyword("ivf")) {
 				lex.eatKeyword("ivf");
 				idxType = IndexType.IVF;
+			} else if (lex.matchKeyword("hnsw")) {
+				lex.eatKeyword("hnsw");
+				idxType = IndexType.HNSW;
 			} else
 				throw new UnsupportedOperationException();
 		}
@@ -42,6 +42,7 @@ import org.vanilladb.core.sql.Constant;
 import org.vanilladb.core.storage.index.Index;
 import org.vanilladb.core.storage.index.IndexType;
 import org.vanilladb.core.storage.index.SearchKey;
+import org.vanilladb.core.storage.index.hnsw.HNSWIndex;
 import org.vanilladb.core.storage.index.ivf.IVFIndex;
 import org.vanilladb.core.storage.metadata.index.IndexInfo;
 import org.vanilladb.core.storage.record.RecordId;
@@ -86,7 +87,7 @@ public class IndexUpdatePlanner implements UpdatePlanner {
 			if (ii.indexType() == IndexType.IVF) {
 				// 因為insert需要的param不同，IVFIndex用自己的insert。
 				IVFIndex idx = (IVFIndex) ii.open(tx);
-				idx.insertRecord(fldValMap);
+				idx.insertRecord(fldValMap, rid);
 				idx.close();
 			} else {
 				Index idx = ii.open(tx);
@@ -191,6 +192,17 @@ public class IndexUpdatePlanner implements UpdatePlanner {
 				modifiedIndexes.add(ii.open(tx));
 		}
 
+		// The clusters of an IVF index keep a copy of i_id beside the vectors
+		if (data.targetFields().contains("i_id")) {
+			for (String indexedFld : VanillaDb.catalogMgr().getIndexedFields(tblName, tx)) {
+				if (data.targetFields().contains(indexedFld))
+					continue;
+				for (IndexInfo ii : VanillaDb.catalogMgr().getIndexInfo(tblName, indexedFld, tx))
+					if (ii.indexType() == IndexType.IVF)
+						modifiedIndexes.add(ii.open(tx));
+			}
+		}
+
 		// Open the scan
 		UpdateScan s = (UpdateScan) selectPlan.open();
 		s.beforeFirst();
@@ -271,6 +283,22 @@ public class IndexUpdatePlanner implements UpdatePlanner {
 	public int executeCreateIndex(CreateIndexData data, Transaction tx) {
 		VanillaDb.catalogMgr().createIndex(data.indexName(), data.tableName(),
 				data.fieldNames(), data.indexType(), tx);
+
+		// An IVF index is trained on the records already in the table
+		if (data.indexType() == IndexType.IVF) {
+			IndexInfo ii = VanillaDb.catalogMgr().getIndexInfoByName(data.indexName(), tx);
+			IVFIndex idx = (IVFIndex) ii.open(tx);
+			idx.buildIndex();
+			idx.close();
+		}
+
+		// An HNSW index starts as an empty graph
+		if (data.indexType() == IndexType.HNSW) {
+			IndexInfo ii = VanillaDb.catalogMgr().getIndexInfoByName(data.indexName(), tx);
+			HNSWIndex idx = (HNSWIndex) ii.open(tx);
+			idx.createFiles();
+			idx.close();
+		}
 		return 0;
 	}
 
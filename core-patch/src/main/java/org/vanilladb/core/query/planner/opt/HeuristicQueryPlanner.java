@@ -52,7 +52,12 @@ public class HeuristicQueryPlanner implements QueryPlanner {
 			if (viewdef != null)
 				views.add(VanillaDb.newPlanner().createQueryPlan(viewdef, tx));
 			else {
-				TablePlanner tp = new TablePlanner(tbl, data.pred(), data.embeddingFields(), tx, id);
+				// the limit bounds the nearest neighbor search only if no
+				// join or grouping follows it
+				int knnLimit = data.tables().size() == 1 && data.groupFields() == null
+						? data.limit() : -1;
+				TablePlanner tp = new TablePlanner(tbl, data.pred(), data.embeddingFields(),
+						knnLimit, tx, id);
 				tablePlanners.add(tp);
 			}
 			id += 1;
@@ -51,6 +51,7 @@ class TablePlanner {
 	private int hashCode;
 
 	private DistanceFn embField;
+	private int limit = -1;
 
 	/**
 	 * Creates a new table planner. The specified predicate applies to the
@@ -76,7 +77,31 @@ class TablePlanner {
 	}
 
 	public TablePlanner(String tblName, Predicate pred, List<DistanceFn> embFields, Transaction tx, int id) {
+		this(tblName, pred, embFields, -1, tx, id);
+	}
+
+	/**
+	 * Creates a new table planner that searches the {@code limit} nearest
+	 * neighbors on the embedding field of the table, if any.
+	 * 
+	 * @param tblName
+	 *                the name of the table
+	 * @param pred
+	 *                the query predicate
+	 * @param embFields
+	 *                the distance functions of the query
+	 * @param limit
+	 *                the number of nearest neighbors needed, or -1 if
+	 *                unbounded
+	 * @param tx
+	 *                the calling transaction
+	 * @param id
+	 *                the id of this planner
+	 */
+	public TablePlanner(String tblName, Predicate pred, List<DistanceFn> embFields, int limit,
+			Transaction tx, int id) {
 		this.tblName = tblName;
+		this.limit = limit;
 		this.pred = pred;
 		this.tx = tx;
 		this.id = id;
@@ -119,12 +144,17 @@ class TablePlanner {
 	// 用 makeIndexSelectPlan() 找看看能不能用 Index 加速
 	// 要找 ANN (embField != null) 的話，就開NearestNeighborPlan()包住現在的plan
 	public Plan makeSelectPlan() {
-		Plan p = makeIndexSelectPlan();
-		if (p == null)
-			p = tp;
-		p = addSelectPredicate(p);
+		Plan p = null;
+		if (embField != null)
+			p = makeIndexSelectVecPlan();
+		if (p == null) {
+			p = makeIndexSelectPlan();
+			if (p == null)
+				p = tp;
+			p = addSelectPredicate(p);
+		}
 		if (embField != null) {
-			p = new NearestNeighborPlan(p, embField, tx);
+			p = new NearestNeighborPlan(p, embField, limit, tx);
 		}
 		return p;
 	}
@@ -180,17 +210,50 @@ class TablePlanner {
 	 * that help the identification: e.g., "F < C", not "F - C < 0".
 	 */
 	private Plan makeIndexSelectPlan() {
-		if (embField != null) {
-			// 找找看在 DB 存的 IndexInfo 有沒有符合這個 tableName 和 FieldName 的。
-			List<IndexInfo> iis = VanillaDb.catalogMgr().getIndexInfo(tblName, embField.fieldName(), tx);
-			// 有的話就加個 IndexSelectVecPlan()，在本來的TablePlan上
-			if (!iis.isEmpty())
-				return new IndexSelectVecPlan(tp, iis.get(0), embField.queryVector(), tx);
-		}
-		// 用一些方法找最好的 Index(原本的code只有面這行)，
-		// 但因為我們只有一種IndexPlan，所以要做ANN的話只會走上面。
 		return IndexSelector.selectByBestMatchedIndex(tblName, tp, pred, tx);
+	}
+
+	/**
+	 * Constructs an index select plan that searches the vector index for the
+	 * nearest neighbors, or returns null if it is cheaper to scan the table,
+	 * or to filter it by the select predicate first, and rank all the records
+	 * left.
+	 * 
+	 * <p>
+	 * Under a select predicate of selectivity s, estimated from the
+	 * histograms of the table, the index must yield about k / s candidates,
+	 * nearest first, to find k matching ones (post-filtering). Filtering first
+	 * instead (pre-filtering) ranks the matching records, which are fetched
+	 * through an index on the predicate, if any, or by scanning the whole
+	 * table. The plan accessing fewer blocks wins.
+	 * </p>
+	 */
+	private Plan makeIndexSelectVecPlan() {
+		// 找找看在 DB 存的 IndexInfo 有沒有符合這個 tableName 和 FieldName 的。
+		List<IndexInfo> iis = VanillaDb.catalogMgr().getIndexInfo(tblName, embField.fieldName(), tx);
+		if (iis.isEmpty())
+			return null;
+		// 有的話就加個 IndexSelectVecPlan()，在本來的TablePlan上
+		Predicate selectPred = pred.selectPredicate(sch);
+		if (selectPred == null) {
+			// a small table is cheaper to scan in full than through the index
+			Plan ip = new IndexSelectVecPlan(tp, iis.get(0), embField.indexQueryVector(), limit, tx);
+			return ip.blocksAccessed() < tp.blocksAccessed() ? ip : null;
+		}
+		if (limit < 0)
+			return null;
 
+		Plan prefilter = makeIndexSelectPlan();
+		double total = Math.max(tp.recordsOutput(), 1);
+		Plan filtered = new SelectPlan(prefilter == null ? tp : prefilter, selectPred);
+		double matching = filtered.recordsOutput();
+		double selectivity = Math.min(Math.max(matching, 1) / total, 1);
+		double candidates = Math.ceil(limit / selectivity);
+		if (candidates >= total)
+			return null;
+		Plan ip = new IndexSelectVecPlan(tp, iis.get(0), embField.indexQueryVector(),
+				(int) candidates, selectPred, tx);
+		return ip.blocksAccessed() < filtered.blocksAccessed() ? ip : null;
 	}
 
 	/**
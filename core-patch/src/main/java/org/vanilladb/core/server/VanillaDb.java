@@ -190,6 +190,9 @@ public class VanillaDb {
 	 */
 	public static void initFileAndLogMgr(String dirName) {
 		initFileMgr(dirName);
+		// stop the flusher of the log manager being replaced
+		if (logMgr != null)
+			logMgr.close();
 		logMgr = new LogMgr();
 	}
 
@@ -55,6 +55,9 @@ public abstract class Constant implements Comparable<Constant> {
 			return new VarcharConstant(val, type);
 		case (ARRAY):
 			return new VectorConstant(val);
+		case (VectorType.VECTOR_F16):
+		case (VectorType.VECTOR_I8):
+			return new VectorConstant(val, (VectorType) type);
 		}
 		throw new UnsupportedOperationException("Unspported SQL type: " + type.getSqlType());
 	}
@@ -79,6 +82,8 @@ public abstract class Constant implements Comparable<Constant> {
 		case (VARCHAR):
 			return defaultVarchar;
 		case (ARRAY):
+		case (VectorType.VECTOR_F16):
+		case (VectorType.VECTOR_I8):
 			return defaultVector;
 		}
 		throw new UnsupportedOperationException("Unspported SQL type: " + type.getSqlType());
@@ -32,6 +32,18 @@ public abstract class Type {
 		return new VectorType(size);
 	}
 
+	public static Type VECTOR_F16(int size) {
+		return new VectorType(size, VectorType.VECTOR_F16, 1, 0);
+	}
+
+	public static Type VECTOR_I8(int size) {
+		return VECTOR_I8(size, 1, 0);
+	}
+
+	public static Type VECTOR_I8(int size, float scale, float offset) {
+		return new VectorType(size, VectorType.VECTOR_I8, scale, offset);
+	}
+
 	/**
 	 * Constructs a new instance corresponding to the specified SQL type and
 	 * argument.
@@ -55,6 +67,10 @@ public abstract class Type {
 			return VARCHAR(arg);
 		case (java.sql.Types.ARRAY):
 			return VECTOR(arg);
+		case (VectorType.VECTOR_F16):
+			return VECTOR_F16(arg);
+		case (VectorType.VECTOR_I8):
+			return VECTOR_I8(arg);
 		}
 		throw new UnsupportedOperationException("Unspported SQL type: "
 				+ sqlType);
@@ -1,8 +1,10 @@
 package org.vanilladb.core.sql;
 
+import static java.sql.Types.ARRAY;
 import static java.sql.Types.VARCHAR;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 
 import org.vanilladb.core.util.ByteHelper;
 
@@ -103,6 +105,18 @@ public class VectorConstant extends Constant implements Serializable {
         }
     }
 
+    /**
+     * Reconstruct a vector constant from bytes stored in the form of the
+     * specified vector type
+     * @param bytes bytes to reconstruct
+     * @param type the type of the vector
+     */
+    public VectorConstant(byte[] bytes, VectorType type) {
+        this.type = type;
+        vec = new float[type.dimension()];
+        type.decode(ByteBuffer.wrap(bytes), 0, vec);
+    }
+
     /**
      * Return the type of the constant
      */
@@ -133,6 +147,8 @@ public class VectorConstant extends Constant implements Serializable {
     */
     @Override
     public byte[] asBytes() {
+        if (type.getSqlType() != ARRAY)
+            return ((VectorType) type).encode(vec);
         int bufferSize = this.size();
         byte[] buf = new byte[bufferSize];
 
@@ -149,7 +165,7 @@ public class VectorConstant extends Constant implements Serializable {
      */
     @Override
     public int size() {
-        return Float.BYTES * vec.length;
+        return type.maxSize();
     }
 
     /**
@@ -167,6 +183,13 @@ public class VectorConstant extends Constant implements Serializable {
         switch (type.getSqlType()) {
             case VARCHAR:
                 return new VarcharConstant(toString(), type);
+            case ARRAY:
+            case VectorType.VECTOR_F16:
+            case VectorType.VECTOR_I8:
+                // keeps the values representable in the stored form
+                VectorType vt = (VectorType) type;
+                if (vt.dimension() == dimension())
+                    return new VectorConstant(vt.encode(vec), vt);
             }
         throw new IllegalArgumentException("Cannot cast vector to " + type);
     }
@@ -231,7 +254,7 @@ public class VectorConstant extends Constant implements Serializable {
     }
 
     public boolean equals(VectorConstant o) {
-        if (o.size() != this.size())
+        if (o.dimension() != this.dimension())
             return false;
 
         for (int i = 0; i < dimension(); i++) {
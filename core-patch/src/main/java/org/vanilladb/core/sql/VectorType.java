@@ -1,20 +1,41 @@
 package org.vanilladb.core.sql;
 
+import java.nio.ByteBuffer;
 import java.sql.Types;
 
 /**
- * The type of a vector constant.
+ * The type of a vector constant. The elements of a vector are stored as
+ * float32 by default, or in a compact form: float16, or int8 codes that decode
+ * to {@code code * scale + offset} with a scale and an offset of the column.
  */
 public class VectorType extends Type {
+
+    /**
+     * The vendor-specific SQL types of the vectors stored in float16 and in
+     * int8. A float32 vector has the SQL type {@link Types#ARRAY}.
+     */
+    public static final int VECTOR_F16 = 2101, VECTOR_I8 = 2102;
+
     private int size;
+    private int sqlType;
+    private float scale, offset;
 
     VectorType(int size) {
+        this(size, Types.ARRAY, 1, 0);
+    }
+
+    VectorType(int size, int sqlType, float scale, float offset) {
+        if (scale == 0)
+            throw new IllegalArgumentException("the scale of a vector type cannot be 0");
         this.size = size;
+        this.sqlType = sqlType;
+        this.scale = scale;
+        this.offset = offset;
     }
 
     @Override
     public int getSqlType() {
-        return Types.ARRAY;
+        return sqlType;
     }
 
     @Override
@@ -34,7 +55,7 @@ public class VectorType extends Type {
 
     @Override
     public int maxSize() {
-        return size * Float.BYTES;
+        return size * elementSize();
     }
 
     @Override
@@ -47,6 +68,133 @@ public class VectorType extends Type {
         throw new UnsupportedOperationException("VectorType does not support minValue()");
     }
 
+    /**
+     * Returns the number of elements of a vector of this type.
+     */
+    public int dimension() {
+        return size;
+    }
+
+    /**
+     * Returns the number of bytes storing an element.
+     */
+    public int elementSize() {
+        switch (sqlType) {
+            case VECTOR_F16:
+                return Short.BYTES;
+            case VECTOR_I8:
+                return Byte.BYTES;
+            default:
+                return Float.BYTES;
+        }
+    }
+
+    /**
+     * Returns the scale of the int8 codes. It is 1 for the other types.
+     */
+    public float scale() {
+        return scale;
+    }
+
+    /**
+     * Returns the offset of the int8 codes. It is 0 for the other types.
+     */
+    public float offset() {
+        return offset;
+    }
+
+    /**
+     * Encodes the elements of a vector into the stored form of this type, in
+     * big-endian byte order.
+     *
+     * @param vec
+     *            the elements of the vector
+     * @return the bytes of the vector
+     */
+    public byte[] encode(float[] vec) {
+        ByteBuffer buf = ByteBuffer.allocate(vec.length * elementSize());
+        for (float v : vec) {
+            switch (sqlType) {
+                case VECTOR_F16:
+                    buf.putShort(toFloat16(v));
+                    break;
+                case VECTOR_I8:
+                    buf.put(toInt8(v));
+                    break;
+                default:
+                    buf.putFloat(v);
+            }
+        }
+        return buf.array();
+    }
+
+    /**
+     * Decodes the vector of this type stored at the specified offset of a
+     * buffer.
+     *
+     * @param buf
+     *            the buffer
+     * @param offset
+     *            the byte offset of the vector within the buffer
+     * @param dst
+     *            the array to hold the elements, whose length is the
+     *            dimension
+     */
+    public void decode(ByteBuffer buf, int offset, float[] dst) {
+        for (int i = 0; i < dst.length; i++) {
+            switch (sqlType) {
+                case VECTOR_F16:
+                    dst[i] = fromFloat16(buf.getShort(offset + i * Short.BYTES));
+                    break;
+                case VECTOR_I8:
+                    dst[i] = buf.get(offset + i) * scale + this.offset;
+                    break;
+                default:
+                    dst[i] = buf.getFloat(offset + i * Float.BYTES);
+            }
+        }
+    }
+
+    private byte toInt8(float v) {
+        float code = Math.round((v - offset) / scale);
+        return (byte) Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, code));
+    }
+
+    /**
+     * Returns the float16 nearest to the specified float, saturating to
+     * infinity beyond the float16 range.
+     */
+    public static short toFloat16(float v) {
+        int bits = Float.floatToRawIntBits(v);
+        int sign = (bits >>> 16) & 0x8000;
+        int abs = bits & 0x7fffffff;
+        if (abs >= 0x7f800000) // infinity and NaN
+            return (short) (sign | 0x7c00 | (abs > 0x7f800000 ? 0x200 : 0));
+        int rounded = abs + 0x1000;
+        if (rounded >= 0x47800000) // overflow
+            return (short) (sign | 0x7c00);
+        if (rounded >= 0x38800000) // normal
+            return (short) (sign | ((rounded - 0x38000000) >>> 13));
+        if (abs < 0x33000000) // underflow
+            return (short) sign;
+        // subnormal
+        int exp = abs >>> 23;
+        int mantissa = (abs & 0x7fffff) | 0x800000;
+        return (short) (sign | ((mantissa + (0x800000 >>> (exp - 102))) >>> (126 - exp)));
+    }
+
+    /**
+     * Returns the float of the specified float16.
+     */
+    public static float fromFloat16(short h) {
+        int sign = (h & 0x8000) << 16;
+        int abs = h & 0x7fff;
+        if (abs >= 0x7c00) // infinity and NaN
+            return Float.intBitsToFloat(sign | 0x7f800000 | ((abs & 0x3ff) << 13));
+        // rebias the exponent, which also scales subnormals right
+        return Float.intBitsToFloat(sign | (abs << 13)) * 0x1p112f;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj == this)
@@ -55,6 +203,24 @@ public class VectorType extends Type {
             return false;
         VectorType t = (VectorType) obj;
         return getSqlType() == t.getSqlType()
-                && getArgument() == t.getArgument();
+                && getArgument() == t.getArgument()
+                && scale == t.scale && offset == t.offset;
+    }
+
+    @Override
+    public String toString() {
+        switch (sqlType) {
+            case VECTOR_F16:
+                return "VECTOR_F16(" + size + ")";
+            case VECTOR_I8:
+                return "VECTOR_I8(" + size + ", " + scale + ", " + offset + ")";
+            default:
+                return "VECTOR(" + size + ")";
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
     }
 }
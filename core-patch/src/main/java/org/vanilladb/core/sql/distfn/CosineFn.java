@@ -1,25 +1,130 @@
 package org.vanilladb.core.sql.distfn;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 import org.vanilladb.core.sql.VectorConstant;
+import org.vanilladb.core.util.CoreProperties;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
 
+/**
+ * The cosine distance, one minus the cosine similarity, of the query and a
+ * vector.
+ */
 public class CosineFn extends DistanceFn {
 
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    /**
+     * Whether the stored vectors have unit length, e.g. normalized by the
+     * loader, so that their norms need not be computed.
+     */
+    private static final boolean PRE_NORMALIZED;
+
+    static {
+        PRE_NORMALIZED = CoreProperties.getLoader().getPropertyAsBoolean(
+                CosineFn.class.getName() + ".PRE_NORMALIZED", false);
+    }
+
+    // computed once per query instead of once per vector
+    private float queryNorm;
+    private VectorConstant unitQuery;
+
     public CosineFn(String fld) {
         super(fld);
     }
 
+    @Override
+    protected DistanceFn newInstance(String fieldName) {
+        return new CosineFn(fieldName);
+    }
+
+    @Override
+    public void setQueryVector(VectorConstant query) {
+        super.setQueryVector(query);
+        float[] queryArray = query.asJavaVal();
+        queryNorm = (float) Math.sqrt(InnerProductFn.dot(queryArray, 0, queryArray, 0,
+                queryArray.length));
+        float[] unit = new float[queryArray.length];
+        if (queryNorm > 0)
+            for (int i = 0; i < unit.length; i++)
+                unit[i] = queryArray[i] / queryNorm;
+        unitQuery = new VectorConstant(unit);
+    }
+
+    /**
+     * Returns the query scaled to unit length if the stored vectors have unit
+     * length, since its Euclidean distances then rank them the same as the
+     * cosine distances do.
+     */
+    @Override
+    public VectorConstant indexQueryVector() {
+        return PRE_NORMALIZED ? unitQuery : query;
+    }
+
     @Override
     protected double calculateDistance(VectorConstant vec) {
+        float[] queryArray = query.asJavaVal();
+        float[] vecArray = vec.asJavaVal();
+        if (PRE_NORMALIZED)
+            return distance(InnerProductFn.dot(queryArray, 0, vecArray, 0, queryArray.length), 1);
+
+        FloatVector dotAcc = FloatVector.zero(SPECIES);
+        FloatVector normAcc = FloatVector.zero(SPECIES);
+        int len = queryArray.length;
+        int i = 0;
+        for (int upper = SPECIES.loopBound(len); i < upper; i += SPECIES.length()) {
+            FloatVector vQuery = FloatVector.fromArray(SPECIES, queryArray, i);
+            FloatVector vVec = FloatVector.fromArray(SPECIES, vecArray, i);
+            dotAcc = vQuery.fma(vVec, dotAcc);
+            normAcc = vVec.fma(vVec, normAcc);
+        }
+        float dot = dotAcc.reduceLanes(VectorOperators.ADD);
+        float norm2 = normAcc.reduceLanes(VectorOperators.ADD);
 
-        double sum = 0;
-        double querySum = 0;
-        double vecSum = 0;
-        // WARNING: Don't use vec.size() here, it will return the number of bytes
-        for (int i = 0; i < vec.dimension(); i++) { 
-            sum += query.get(i) * vec.get(i);
-            querySum += query.get(i) * query.get(i);
-            vecSum += vec.get(i) * vec.get(i);
+        for (; i < len; i++) {
+            dot += queryArray[i] * vecArray[i];
+            norm2 += vecArray[i] * vecArray[i];
         }
-        return sum / (Math.sqrt(querySum) * Math.sqrt(vecSum));
+        return distance(dot, norm2);
+    }
+
+    // Computes on the bytes of the page in place, without a VectorConstant
+    @Override
+    protected double calculateDistance(ByteBuffer buf, int offset) {
+        float[] queryArray = query.asJavaVal();
+        if (PRE_NORMALIZED)
+            return distance(InnerProductFn.dot(queryArray, buf, offset), 1);
+
+        FloatVector dotAcc = FloatVector.zero(SPECIES);
+        FloatVector normAcc = FloatVector.zero(SPECIES);
+        int len = queryArray.length;
+        int i = 0;
+        for (int upper = SPECIES.loopBound(len); i < upper; i += SPECIES.length()) {
+            FloatVector vQuery = FloatVector.fromArray(SPECIES, queryArray, i);
+            FloatVector vVec = FloatVector.fromByteBuffer(SPECIES, buf,
+                    offset + i * Float.BYTES, ByteOrder.BIG_ENDIAN);
+            dotAcc = vQuery.fma(vVec, dotAcc);
+            normAcc = vVec.fma(vVec, normAcc);
+        }
+        float dot = dotAcc.reduceLanes(VectorOperators.ADD);
+        float norm2 = normAcc.reduceLanes(VectorOperators.ADD);
+
+        for (; i < len; i++) {
+            float v = buf.getFloat(offset + i * Float.BYTES);
+            dot += queryArray[i] * v;
+            norm2 += v * v;
+        }
+        return distance(dot, norm2);
+    }
+
+    // a zero vector is taken as orthogonal to everything
+    private double distance(float dot, float vecNorm2) {
+        if (queryNorm == 0 || vecNorm2 == 0)
+            return 1;
+        return 1 - dot / (queryNorm * Math.sqrt(vecNorm2));
     }
 }
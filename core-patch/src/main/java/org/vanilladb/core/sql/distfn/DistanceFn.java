@@ -1,6 +1,10 @@
 package org.vanilladb.core.sql.distfn;
 
+import java.nio.ByteBuffer;
+import java.sql.Types;
+
 import org.vanilladb.core.sql.VectorConstant;
+import org.vanilladb.core.sql.VectorType;
 
 public abstract class DistanceFn {
 
@@ -15,6 +19,22 @@ public abstract class DistanceFn {
         this.query = query;
     }
 
+    /**
+     * Returns a distance function of the same kind on the same field and query
+     * vector, for a thread that computes distances alongside this one.
+     */
+    public DistanceFn copy() {
+        DistanceFn fn = newInstance(fieldName);
+        if (query != null)
+            fn.setQueryVector(query);
+        return fn;
+    }
+
+    /**
+     * Creates a distance function of the same kind on the specified field.
+     */
+    protected abstract DistanceFn newInstance(String fieldName);
+
     public double distance(VectorConstant vec) {
         // check vector dimension
         if (query.dimension() != vec.dimension()) {
@@ -25,6 +45,97 @@ public abstract class DistanceFn {
 
     protected abstract double calculateDistance(VectorConstant vec);
 
+    /**
+     * Returns the distance between the query vector and the vector of the
+     * specified type stored at {@code offset} of {@code buf}, in the
+     * big-endian form of {@link VectorType#encode(float[])}.
+     */
+    public double distance(ByteBuffer buf, int offset, VectorType type) {
+        if (query.dimension() != type.dimension()) {
+            throw new IllegalArgumentException("Vector length does not match");
+        }
+        if (type.getSqlType() == Types.ARRAY)
+            return calculateDistance(buf, offset);
+        return calculateDistance(buf, offset, type);
+    }
+
+    /**
+     * Computes the distance to a float32 vector stored in a buffer. The
+     * default reads the vector out of the buffer; subclasses override it to
+     * compute the distance in place.
+     */
+    protected double calculateDistance(ByteBuffer buf, int offset) {
+        float[] vec = new float[query.dimension()];
+        for (int i = 0; i < vec.length; i++)
+            vec[i] = buf.getFloat(offset + i * Float.BYTES);
+        return calculateDistance(new VectorConstant(vec));
+    }
+
+    /**
+     * Computes the distance to a float16 or int8 vector stored in a buffer.
+     * The default decodes the vector out of the buffer; subclasses override it
+     * to compute the distance on the codes.
+     */
+    protected double calculateDistance(ByteBuffer buf, int offset, VectorType type) {
+        float[] vec = new float[type.dimension()];
+        type.decode(buf, offset, vec);
+        return calculateDistance(new VectorConstant(vec));
+    }
+
+    /**
+     * Returns a distance for ranking vectors by their distances to the query,
+     * which may be cheaper than {@link #distance(VectorConstant)}: it orders
+     * vectors the same way, but is on the scale of
+     * {@link #toRankingDistance(double)}. Once the distance is known to be no
+     * less than {@code bound}, the computation may stop and return any value
+     * no less than {@code bound}.
+     *
+     * @param vec
+     *            the vector to rank
+     * @param bound
+     *            the ranking distance beyond which the caller discards the
+     *            vector, or infinity
+     * @return the ranking distance of the vector
+     */
+    public double rankingDistance(VectorConstant vec, double bound) {
+        if (query.dimension() != vec.dimension()) {
+            throw new IllegalArgumentException("Vector length does not match");
+        }
+        return calculateRankingDistance(vec, bound);
+    }
+
+    /**
+     * Returns the ranking distance of the vector of the specified type stored
+     * at {@code offset} of {@code buf}.
+     *
+     * @see #rankingDistance(VectorConstant, double)
+     */
+    public double rankingDistance(ByteBuffer buf, int offset, VectorType type, double bound) {
+        if (query.dimension() != type.dimension()) {
+            throw new IllegalArgumentException("Vector length does not match");
+        }
+        return calculateRankingDistance(buf, offset, type, bound);
+    }
+
+    /**
+     * Maps a distance to the scale of the ranking distances. The default
+     * ranks by the distances themselves.
+     */
+    public double toRankingDistance(double distance) {
+        return distance;
+    }
+
+    protected double calculateRankingDistance(VectorConstant vec, double bound) {
+        return calculateDistance(vec);
+    }
+
+    protected double calculateRankingDistance(ByteBuffer buf, int offset, VectorType type,
+            double bound) {
+        if (type.getSqlType() == Types.ARRAY)
+            return calculateDistance(buf, offset);
+        return calculateDistance(buf, offset, type);
+    }
+
     public String fieldName() {
         return fieldName;
     }
@@ -32,4 +143,12 @@ public abstract class DistanceFn {
     public VectorConstant queryVector() {
         return query;
     }
+
+    /**
+     * Returns the vector to search the vector indexes with, which are built
+     * on Euclidean distances. The default is the query vector itself.
+     */
+    public VectorConstant indexQueryVector() {
+        return query;
+    }
 }
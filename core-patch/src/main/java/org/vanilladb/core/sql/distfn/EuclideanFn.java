@@ -2,19 +2,66 @@ package org.vanilladb.core.sql.distfn;
 
 // import java.lang.invoke.ClassSpecializer.SpeciesData;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 import org.vanilladb.core.sql.VectorConstant;
+import org.vanilladb.core.sql.VectorType;
+
+import jdk.incubator.vector.ByteVector;
 import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
 import jdk.incubator.vector.VectorOperators;
 import jdk.incubator.vector.VectorSpecies;
 
 public class EuclideanFn extends DistanceFn {
 
     private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+    // The codes of the same shape, each widened to several float vectors
+    private static final VectorSpecies<Byte> BYTE_SPECIES = ByteVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Short> SHORT_SPECIES = ShortVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> INT_SPECIES = IntVector.SPECIES_PREFERRED;
+
+    /**
+     * The number of dimensions between two tests of a bounded ranking
+     * distance, a few SIMD steps so that the lanes are reduced rarely.
+     */
+    private static final int ABANDON_INTERVAL = 4 * SPECIES.length();
+
+    /**
+     * The query mapped to the code space of an int8 vector type, so that the
+     * distance to a vector is {@code scale} times its distance to the codes.
+     */
+    private static class CodeQuery {
+        final VectorType type;
+        final float[] vals;
+
+        CodeQuery(VectorType type, float[] query) {
+            this.type = type;
+            vals = new float[query.length];
+            for (int i = 0; i < query.length; i++)
+                vals[i] = (query[i] - type.offset()) / type.scale();
+        }
+    }
+
+    private volatile CodeQuery codeQuery;
 
     public EuclideanFn(String fld) {
         super(fld);
     }
 
+    @Override
+    protected DistanceFn newInstance(String fieldName) {
+        return new EuclideanFn(fieldName);
+    }
+
+    @Override
+    public void setQueryVector(VectorConstant query) {
+        super.setQueryVector(query);
+        codeQuery = null;
+    }
+
     // @Override
     // protected double calculateDistance(VectorConstant vec) {
     // double sum = 0;
@@ -27,37 +74,266 @@ public class EuclideanFn extends DistanceFn {
 
     @Override
     protected double calculateDistance(VectorConstant vec) {
-        int len = vec.dimension();
+        return Math.sqrt(calculateRankingDistance(vec, Double.POSITIVE_INFINITY));
+    }
+
+    // Computes on the bytes of the page in place, without a VectorConstant
+    @Override
+    protected double calculateDistance(ByteBuffer buf, int offset) {
+        return Math.sqrt(float32Distance(buf, offset, Float.POSITIVE_INFINITY));
+    }
+
+    // Computes on the int8 or float16 codes of the page in place
+    @Override
+    protected double calculateDistance(ByteBuffer buf, int offset, VectorType type) {
+        return Math.sqrt(calculateRankingDistance(buf, offset, type, Double.POSITIVE_INFINITY));
+    }
+
+    /**
+     * The squared distance, which ranks the same as the distance without the
+     * square root.
+     */
+    @Override
+    protected double calculateRankingDistance(VectorConstant vec, double bound) {
         float[] queryArray = query.asJavaVal();
-        float[] vecArray = vec.asJavaVal();
+        return squaredDistance(queryArray, 0, vec.asJavaVal(), 0, queryArray.length, (float) bound);
+    }
+
+    @Override
+    protected double calculateRankingDistance(ByteBuffer buf, int offset, VectorType type,
+            double bound) {
+        switch (type.getSqlType()) {
+            case VectorType.VECTOR_I8:
+                return int8Distance(buf, offset, type, (float) bound);
+            case VectorType.VECTOR_F16:
+                return float16Distance(buf, offset, (float) bound);
+            default:
+                return float32Distance(buf, offset, (float) bound);
+        }
+    }
 
-        float sum = 0.0f;
+    @Override
+    public double toRankingDistance(double distance) {
+        return distance * distance;
+    }
+
+    /**
+     * Returns the squared Euclidean distance between {@code a[aFrom, aFrom +
+     * len)} and {@code b[bFrom, bFrom + len)}. The lanes are accumulated in a
+     * register and reduced only to test the bound every
+     * {@link #ABANDON_INTERVAL} dimensions; once the partial sum reaches the
+     * bound, the sum so far is returned.
+     *
+     * @param bound
+     *            the distance at which the caller stops caring, or infinity
+     */
+    public static float squaredDistance(float[] a, int aFrom, float[] b, int bFrom, int len,
+            float bound) {
+        boolean bounded = bound < Float.POSITIVE_INFINITY;
+        FloatVector acc = FloatVector.zero(SPECIES);
         int i = 0;
+        int upper = SPECIES.loopBound(len);
+        while (i < upper) {
+            int end = Math.min(i + ABANDON_INTERVAL, upper);
+            for (; i < end; i += SPECIES.length()) {
+                FloatVector diff = FloatVector.fromArray(SPECIES, a, aFrom + i)
+                        .sub(FloatVector.fromArray(SPECIES, b, bFrom + i));
+                acc = diff.fma(diff, acc);
+            }
+            if (bounded && i < upper) {
+                float partial = acc.reduceLanes(VectorOperators.ADD);
+                if (partial >= bound)
+                    return partial;
+            }
+        }
+        float sum = acc.reduceLanes(VectorOperators.ADD);
 
-        // SIMD
-        // Use SIMD for the bulk of the computation
-        // If SPECIES.length() is 4 and length is 10, SPECIES.loopBound(length) will
-        // return 8. This means the loop will process elements in chunks of 4 up to
-        // index 8, and any remaining elements (from index 8 to 9) will be handled
-        // separately.
-        for (; i < SPECIES.loopBound(len); i += SPECIES.length()) {
-            FloatVector vQuery = FloatVector.fromArray(SPECIES, queryArray, i);
-            FloatVector vVec = FloatVector.fromArray(SPECIES, vecArray, i);
-            FloatVector diff = vQuery.sub(vVec);
-            FloatVector sqr = diff.mul(diff);
-            // reduceLanes(): This method takes in a mathematical operation, such as ADD,
-            // and combines all elements of the vector into a single value
-            sum += sqr.reduceLanes(VectorOperators.ADD);
+        for (; i < len; i++) {
+            float diff = a[aFrom + i] - b[bFrom + i];
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    /**
+     * Computes the squared Euclidean distances between {@code vec} and each of
+     * {@code rows[from, to)} into {@code out[from, to)}, where every row is as
+     * long as {@code vec}. Four rows are compared in each pass, so that each
+     * lane of {@code vec} is loaded once for all of them, and their sums are
+     * accumulated in separate registers.
+     */
+    public static void squaredDistances(float[] vec, float[][] rows, int from, int to,
+            float[] out) {
+        int r = from;
+        for (; r + 4 <= to; r += 4)
+            squaredDistances4(vec, rows[r], 0, rows[r + 1], 0, rows[r + 2], 0, rows[r + 3], 0,
+                    out, r);
+        for (; r < to; r++)
+            out[r] = squaredDistance(vec, 0, rows[r], 0, vec.length, Float.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Computes the squared Euclidean distances between {@code vec} and each of
+     * the rows {@code [from, to)} of a row-major matrix whose rows are as long
+     * as {@code vec}, into {@code out[from, to)}, four rows per pass.
+     *
+     * @see #squaredDistances(float[], float[][], int, int, float[])
+     */
+    public static void squaredDistances(float[] vec, float[] matrix, int from, int to,
+            float[] out) {
+        int len = vec.length;
+        int r = from;
+        for (; r + 4 <= to; r += 4) {
+            int base = r * len;
+            squaredDistances4(vec, matrix, base, matrix, base + len, matrix, base + 2 * len,
+                    matrix, base + 3 * len, out, r);
+        }
+        for (; r < to; r++)
+            out[r] = squaredDistance(vec, 0, matrix, r * len, len, Float.POSITIVE_INFINITY);
+    }
+
+    private static void squaredDistances4(float[] vec, float[] r0, int o0, float[] r1, int o1,
+            float[] r2, int o2, float[] r3, int o3, float[] out, int outPos) {
+        int len = vec.length;
+        int upper = SPECIES.loopBound(len);
+        FloatVector acc0 = FloatVector.zero(SPECIES), acc1 = acc0, acc2 = acc0, acc3 = acc0;
+        int i = 0;
+        for (; i < upper; i += SPECIES.length()) {
+            FloatVector v = FloatVector.fromArray(SPECIES, vec, i);
+            FloatVector d0 = v.sub(FloatVector.fromArray(SPECIES, r0, o0 + i));
+            FloatVector d1 = v.sub(FloatVector.fromArray(SPECIES, r1, o1 + i));
+            FloatVector d2 = v.sub(FloatVector.fromArray(SPECIES, r2, o2 + i));
+            FloatVector d3 = v.sub(FloatVector.fromArray(SPECIES, r3, o3 + i));
+            acc0 = d0.fma(d0, acc0);
+            acc1 = d1.fma(d1, acc1);
+            acc2 = d2.fma(d2, acc2);
+            acc3 = d3.fma(d3, acc3);
+        }
+        float s0 = acc0.reduceLanes(VectorOperators.ADD);
+        float s1 = acc1.reduceLanes(VectorOperators.ADD);
+        float s2 = acc2.reduceLanes(VectorOperators.ADD);
+        float s3 = acc3.reduceLanes(VectorOperators.ADD);
+        for (; i < len; i++) {
+            float d0 = vec[i] - r0[o0 + i], d1 = vec[i] - r1[o1 + i];
+            float d2 = vec[i] - r2[o2 + i], d3 = vec[i] - r3[o3 + i];
+            s0 += d0 * d0;
+            s1 += d1 * d1;
+            s2 += d2 * d2;
+            s3 += d3 * d3;
+        }
+        out[outPos] = s0;
+        out[outPos + 1] = s1;
+        out[outPos + 2] = s2;
+        out[outPos + 3] = s3;
+    }
+
+    private float float32Distance(ByteBuffer buf, int offset, float bound) {
+        float[] queryArray = query.asJavaVal();
+        int len = queryArray.length;
+        boolean bounded = bound < Float.POSITIVE_INFINITY;
+
+        FloatVector acc = FloatVector.zero(SPECIES);
+        int i = 0;
+        int upper = SPECIES.loopBound(len);
+        while (i < upper) {
+            int end = Math.min(i + ABANDON_INTERVAL, upper);
+            for (; i < end; i += SPECIES.length()) {
+                FloatVector vQuery = FloatVector.fromArray(SPECIES, queryArray, i);
+                FloatVector vVec = FloatVector.fromByteBuffer(SPECIES, buf,
+                        offset + i * Float.BYTES, ByteOrder.BIG_ENDIAN);
+                FloatVector diff = vQuery.sub(vVec);
+                acc = diff.fma(diff, acc);
+            }
+            if (bounded && i < upper) {
+                float partial = acc.reduceLanes(VectorOperators.ADD);
+                if (partial >= bound)
+                    return partial;
+            }
+        }
+        float sum = acc.reduceLanes(VectorOperators.ADD);
+
+        for (; i < len; i++) {
+            float diff = queryArray[i] - buf.getFloat(offset + i * Float.BYTES);
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    private float int8Distance(ByteBuffer buf, int offset, VectorType type, float bound) {
+        CodeQuery cq = codeQuery;
+        if (cq == null || !cq.type.equals(type)) {
+            cq = new CodeQuery(type, query.asJavaVal());
+            codeQuery = cq;
+        }
+        float[] queryArray = cq.vals;
+        int len = queryArray.length;
+        // the distances to the codes are 1 / scale^2 of the real ones
+        float scale2 = type.scale() * type.scale();
+        bound /= scale2;
+        boolean bounded = bound < Float.POSITIVE_INFINITY;
+
+        FloatVector acc = FloatVector.zero(SPECIES);
+        int i = 0;
+        int upper = BYTE_SPECIES.loopBound(len);
+        while (i < upper) {
+            ByteVector codes = ByteVector.fromByteBuffer(BYTE_SPECIES, buf, offset + i,
+                    ByteOrder.BIG_ENDIAN);
+            for (int part = 0, j = i; j < i + BYTE_SPECIES.length(); part++, j += SPECIES.length()) {
+                FloatVector vVec = (FloatVector) codes.convertShape(VectorOperators.B2F, SPECIES, part);
+                FloatVector diff = FloatVector.fromArray(SPECIES, queryArray, j).sub(vVec);
+                acc = diff.fma(diff, acc);
+            }
+            i += BYTE_SPECIES.length();
+            if (bounded && i < upper) {
+                float partial = acc.reduceLanes(VectorOperators.ADD);
+                if (partial >= bound)
+                    return partial * scale2;
+            }
+        }
+        float sum = acc.reduceLanes(VectorOperators.ADD);
+
+        for (; i < len; i++) {
+            float diff = queryArray[i] - buf.get(offset + i);
+            sum += diff * diff;
+        }
+        return sum * scale2;
+    }
+
+    private float float16Distance(ByteBuffer buf, int offset, float bound) {
+        float[] queryArray = query.asJavaVal();
+        int len = queryArray.length;
+        boolean bounded = bound < Float.POSITIVE_INFINITY;
+
+        FloatVector acc = FloatVector.zero(SPECIES);
+        int i = 0;
+        int upper = SHORT_SPECIES.loopBound(len);
+        while (i < upper) {
+            ShortVector halves = ShortVector.fromByteBuffer(SHORT_SPECIES, buf,
+                    offset + i * Short.BYTES, ByteOrder.BIG_ENDIAN);
+            for (int part = 0, j = i; j < i + SHORT_SPECIES.length(); part++, j += SPECIES.length()) {
+                // widens the finite halves as VectorType.fromFloat16 does
+                IntVector h = (IntVector) halves.convertShape(VectorOperators.S2I, INT_SPECIES, part);
+                FloatVector vVec = h.and(0x8000).lanewise(VectorOperators.LSHL, 16)
+                        .or(h.and(0x7fff).lanewise(VectorOperators.LSHL, 13))
+                        .reinterpretAsFloats().mul(0x1p112f);
+                FloatVector diff = FloatVector.fromArray(SPECIES, queryArray, j).sub(vVec);
+                acc = diff.fma(diff, acc);
+            }
+            i += SHORT_SPECIES.length();
+            if (bounded && i < upper) {
+                float partial = acc.reduceLanes(VectorOperators.ADD);
+                if (partial >= bound)
+                    return partial;
+            }
         }
+        float sum = acc.reduceLanes(VectorOperators.ADD);
 
-        // Handle any remaining elements (if length is not a multiple of
-        // SPECIES.length())
         for (; i < len; i++) {
-            float diff = queryArray[i] - vecArray[i];
+            float diff = queryArray[i]
+                    - VectorType.fromFloat16(buf.getShort(offset + i * Short.BYTES));
             sum += diff * diff;
         }
-        // this will return double
-        return Math.sqrt(sum);
+        return sum;
     }
 
     // @Override
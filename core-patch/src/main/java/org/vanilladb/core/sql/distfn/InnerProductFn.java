@@ -0,0 +1,80 @@
+package org.vanilladb.core.sql.distfn;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.vanilladb.core.sql.VectorConstant;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The negated inner product of the query and a vector, so that the vectors
+ * with the maximum inner products are the nearest ones.
+ */
+public class InnerProductFn extends DistanceFn {
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    public InnerProductFn(String fld) {
+        super(fld);
+    }
+
+    @Override
+    protected DistanceFn newInstance(String fieldName) {
+        return new InnerProductFn(fieldName);
+    }
+
+    @Override
+    protected double calculateDistance(VectorConstant vec) {
+        float[] queryArray = query.asJavaVal();
+        return -dot(queryArray, 0, vec.asJavaVal(), 0, queryArray.length);
+    }
+
+    // Computes on the bytes of the page in place, without a VectorConstant
+    @Override
+    protected double calculateDistance(ByteBuffer buf, int offset) {
+        return -dot(query.asJavaVal(), buf, offset);
+    }
+
+    /**
+     * Returns the inner product of {@code a[aFrom, aFrom + len)} and
+     * {@code b[bFrom, bFrom + len)}.
+     */
+    public static float dot(float[] a, int aFrom, float[] b, int bFrom, int len) {
+        FloatVector acc = FloatVector.zero(SPECIES);
+        int i = 0;
+        for (int upper = SPECIES.loopBound(len); i < upper; i += SPECIES.length()) {
+            FloatVector va = FloatVector.fromArray(SPECIES, a, aFrom + i);
+            FloatVector vb = FloatVector.fromArray(SPECIES, b, bFrom + i);
+            acc = va.fma(vb, acc);
+        }
+        float sum = acc.reduceLanes(VectorOperators.ADD);
+
+        for (; i < len; i++)
+            sum += a[aFrom + i] * b[bFrom + i];
+        return sum;
+    }
+
+    /**
+     * Returns the inner product of {@code a} and the float32 vector of the
+     * same dimension stored big-endian at {@code offset} of {@code buf}.
+     */
+    static float dot(float[] a, ByteBuffer buf, int offset) {
+        int len = a.length;
+        FloatVector acc = FloatVector.zero(SPECIES);
+        int i = 0;
+        for (int upper = SPECIES.loopBound(len); i < upper; i += SPECIES.length()) {
+            FloatVector va = FloatVector.fromArray(SPECIES, a, i);
+            FloatVector vb = FloatVector.fromByteBuffer(SPECIES, buf,
+                    offset + i * Float.BYTES, ByteOrder.BIG_ENDIAN);
+            acc = va.fma(vb, acc);
+        }
+        float sum = acc.reduceLanes(VectorOperators.ADD);
+
+        for (; i < len; i++)
+            sum += a[i] * buf.getFloat(offset + i * Float.BYTES);
+        return sum;
+    }
+}
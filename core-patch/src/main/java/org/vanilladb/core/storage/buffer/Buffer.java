@@ -25,6 +25,7 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 import org.vanilladb.core.server.VanillaDb;
 import org.vanilladb.core.sql.Constant;
 import org.vanilladb.core.sql.Type;
+import org.vanilladb.core.sql.distfn.DistanceFn;
 import org.vanilladb.core.storage.file.BlockId;
 import org.vanilladb.core.storage.file.Page;
 import org.vanilladb.core.storage.log.LogSeqNum;
@@ -50,8 +51,12 @@ public class Buffer {
 	
 	private Page contents = new Page();
 	private BlockId blk = null;
+	// The pin count, or REPLACING while the buffer is being assigned to
+	// another block
+	private static final int REPLACING = -1;
 	private AtomicInteger pins = new AtomicInteger(0);
 	private AtomicBoolean isRecentlyPinned = new AtomicBoolean(false);
+	private volatile boolean isReadAhead = false;
 	private boolean isNew = false;
 	private boolean isModified = false;
 	// TODO: We use (-1, -1) for the default value. Will this be a problem ?
@@ -97,6 +102,61 @@ public class Buffer {
 		}
 	}
 	
+	/**
+	 * Returns the distance between the query vector of the specified distance
+	 * function and the vector stored at the specified offset of this buffer.
+	 * 
+	 * @see Page#distance(int, Type, DistanceFn)
+	 */
+	public double distance(int offset, Type type, DistanceFn distFn) {
+		contentLock.readLock().lock();
+		try {
+			if (offset < 0 || offset >= BUFFER_SIZE)
+				throw new IndexOutOfBoundsException("" + offset);
+		
+			return contents.distance(DATA_START_OFFSET + offset, type, distFn);
+		} finally {
+			contentLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the ranking distance between the query vector of the specified
+	 * distance function and the vector stored at the specified offset of this
+	 * buffer.
+	 * 
+	 * @see Page#rankingDistance(int, Type, DistanceFn, double)
+	 */
+	public double rankingDistance(int offset, Type type, DistanceFn distFn, double bound) {
+		contentLock.readLock().lock();
+		try {
+			if (offset < 0 || offset >= BUFFER_SIZE)
+				throw new IndexOutOfBoundsException("" + offset);
+		
+			return contents.rankingDistance(DATA_START_OFFSET + offset, type, distFn, bound);
+		} finally {
+			contentLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Copies the vector stored at the specified offset of this buffer into the
+	 * specified array.
+	 * 
+	 * @see Page#getVector(int, Type, float[])
+	 */
+	public void getVector(int offset, Type type, float[] dst) {
+		contentLock.readLock().lock();
+		try {
+			if (offset < 0 || offset >= BUFFER_SIZE)
+				throw new IndexOutOfBoundsException("" + offset);
+		
+			contents.getVector(DATA_START_OFFSET + offset, type, dst);
+		} finally {
+			contentLock.readLock().unlock();
+		}
+	}
+	
 	void setVal(int offset, Constant val) {
 		contentLock.writeLock().lock();
 		try {
@@ -236,24 +296,60 @@ public class Buffer {
 	}
 
 	/**
-	 * Increases the buffer's pin count.
+	 * Increases the buffer's pin count. The swap lock of the buffer must be
+	 * held, so that the buffer is not being replaced.
+	 * 
+	 * @return true if the buffer was not pinned before
 	 */
-	void pin() {
-		// Optimization: This might be a danger optimization
-		// We have to make sure that txs have acquired swapLock before pin(),
-		// so that no two txs can call pin at the same time.
-		pins.incrementAndGet();
-		isRecentlyPinned.set(true);
+	boolean pin() {
+		boolean wasUnpinned = pins.getAndIncrement() == 0;
+		pinned();
+		return wasUnpinned;
+	}
+
+	/**
+	 * Increases the buffer's pin count without holding its swap lock, unless
+	 * the buffer is being replaced. The caller must check the block of the
+	 * buffer after pinning it, since the buffer may have been assigned to
+	 * another block in the meantime; a pinned buffer keeps its block.
+	 * 
+	 * @return the pin count before, or -1 if the buffer is being replaced
+	 */
+	int pinIfNotReplacing() {
+		while (true) {
+			int count = pins.get();
+			if (count == REPLACING)
+				return -1;
+			if (pins.compareAndSet(count, count + 1)) {
+				pinned();
+				return count;
+			}
+		}
+	}
+
+	private void pinned() {
+		// The first pin of a block read ahead is not a reuse of it
+		if (isReadAhead)
+			isReadAhead = false;
+		else
+			isRecentlyPinned.set(true);
+	}
+
+	/**
+	 * Marks the buffer as read ahead of its first use, so that the next pin
+	 * does not count as a recent pin. The swap lock of the buffer must be held.
+	 */
+	void markReadAhead() {
+		isReadAhead = true;
 	}
 
 	/**
 	 * Decreases the buffer's pin count.
+	 * 
+	 * @return true if the buffer is no longer pinned
 	 */
-	void unpin() {
-		// Optimization: This might be a danger optimization
-		// We have to make sure that txs have acquired swapLock before unpin(),
-		// so that no two txs can call unpin at the same time.
-		pins.decrementAndGet();
+	boolean unpin() {
+		return pins.decrementAndGet() == 0;
 	}
 
 	/**
@@ -263,11 +359,29 @@ public class Buffer {
 	 * @return true if the buffer is pinned
 	 */
 	boolean isPinned() {
-		// Optimization: This might be a danger optimization
-		// We have to make sure that txs have acquired swapLock before isPinned(),
-		// so that no two txs can call isPinned at the same time.
 		return pins.get() > 0;
 	}
+
+	/**
+	 * Starts replacing the buffer if it is not pinned, so that it cannot be
+	 * pinned until it is assigned to another block by
+	 * {@link #assignToBlock(BlockId)} or
+	 * {@link #assignToNew(String, PageFormatter)}, or until
+	 * {@link #cancelReplacing()} is called. The swap lock of the buffer must be
+	 * held.
+	 * 
+	 * @return false if the buffer is pinned
+	 */
+	boolean startReplacing() {
+		return pins.compareAndSet(0, REPLACING);
+	}
+
+	/**
+	 * Lets the buffer be pinned again without assigning it to another block.
+	 */
+	void cancelReplacing() {
+		pins.compareAndSet(REPLACING, 0);
+	}
 	
 	boolean checkRecentlyPinnedAndReset() {
 		return isRecentlyPinned.getAndSet(false);
@@ -306,8 +420,11 @@ public class Buffer {
 		flush();
 		this.blk = blk;
 		contents.read(blk);
-		pins.set(0);
+		isReadAhead = false;
 		lastLsn = LogSeqNum.readFromPage(contents, LAST_LSN_OFFSET);
+
+		// The buffer can be pinned from now on
+		pins.set(0);
 	}
 
 	/**
@@ -331,9 +448,12 @@ public class Buffer {
 		flush();
 		fmtr.format(this);
 		blk = contents.append(fileName);
-		pins.set(0);
+		isReadAhead = false;
 		isNew = true;
 		lastLsn = LogSeqNum.DEFAULT_VALUE;
+
+		// The buffer can be pinned from now on
+		pins.set(0);
 	}
 	
 	/**
@@ -346,6 +466,6 @@ public class Buffer {
 	}
 	
 	public int getPinCount() {
-		return pins.get();
+		return Math.max(pins.get(), 0);
 	}
 }
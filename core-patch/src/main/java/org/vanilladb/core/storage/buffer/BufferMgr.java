@@ -22,6 +22,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -53,15 +57,56 @@ public class BufferMgr implements TransactionLifecycleListener {
 	private static Logger logger = Logger.getLogger(BufferMgr.class.getName());
 	
 	protected static final int BUFFER_POOL_SIZE;
+
+	/**
+	 * The number of blocks a file must exceed for a scan through it to be
+	 * pinned as a sequential scan, which the replacement policy may evict
+	 * before other blocks.
+	 */
+	public static final long SEQUENTIAL_SCAN_THRESHOLD;
+
+	/**
+	 * The number of blocks a sequential scan reads ahead of the block it is
+	 * at, or 0 if blocks are not read ahead.
+	 */
+	public static final int READ_AHEAD_BLOCKS;
+
+	private static final int READ_AHEAD_THREADS;
 	private static final long MAX_TIME;
 	private static final long EPSILON;
 	private static final AtomicBoolean hasWaitingTx = new AtomicBoolean();
 
+	// The blocks waiting to be read ahead. There are only a few of them, so that
+	// a block is not read long after the scan has passed it.
+	private static final Set<BlockId> blocksToReadAhead = ConcurrentHashMap.newKeySet();
+	private static final int MAX_BLOCKS_TO_READ_AHEAD;
+	private static final ExecutorService readAheadExecutor;
+
 	static {
 		MAX_TIME = CoreProperties.getLoader().getPropertyAsLong(BufferMgr.class.getName() + ".MAX_TIME", 10000);
 		EPSILON = CoreProperties.getLoader().getPropertyAsLong(BufferMgr.class.getName() + ".EPSILON", 50);
 		BUFFER_POOL_SIZE = CoreProperties.getLoader()
 				.getPropertyAsInteger(BufferMgr.class.getName() + ".BUFFER_POOL_SIZE", 1024);
+		SEQUENTIAL_SCAN_THRESHOLD = CoreProperties.getLoader().getPropertyAsLong(
+				BufferMgr.class.getName() + ".SEQUENTIAL_SCAN_THRESHOLD", BUFFER_POOL_SIZE / 4);
+		READ_AHEAD_THREADS = CoreProperties.getLoader()
+				.getPropertyAsInteger(BufferMgr.class.getName() + ".READ_AHEAD_THREADS", 2);
+		int readAheadBlocks = CoreProperties.getLoader()
+				.getPropertyAsInteger(BufferMgr.class.getName() + ".READ_AHEAD_BLOCKS", 8);
+		READ_AHEAD_BLOCKS = READ_AHEAD_THREADS > 0 ? Math.max(readAheadBlocks, 0) : 0;
+		MAX_BLOCKS_TO_READ_AHEAD = 2 * READ_AHEAD_THREADS * READ_AHEAD_BLOCKS;
+
+		if (READ_AHEAD_BLOCKS > 0) {
+			readAheadExecutor = Executors.newFixedThreadPool(READ_AHEAD_THREADS, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "ReadAhead");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		} else
+			readAheadExecutor = null;
 	}
 
 	class PinningBuffer {
@@ -111,6 +156,22 @@ public class BufferMgr implements TransactionLifecycleListener {
 	 * @return the buffer pinned to that block
 	 */
 	public Buffer pin(BlockId blk) {
+		return pin(blk, false);
+	}
+
+	/**
+	 * Pins a buffer to the specified block, as {@link #pin(BlockId)} does. A
+	 * block read by a sequential scan over a large file is unlikely to be read
+	 * again soon, so the buffer pool may replace it before the blocks pinned
+	 * otherwise.
+	 * 
+	 * @param blk
+	 *            a block ID
+	 * @param sequential
+	 *            whether the block is read by a sequential scan
+	 * @return the buffer pinned to that block
+	 */
+	public Buffer pin(BlockId blk, boolean sequential) {
 		// Try to find out if this block has been pinned by this transaction
 		PinningBuffer pinnedBuff = pinningBuffers.get(blk);
 		if (pinnedBuff != null) {
@@ -129,7 +190,7 @@ public class BufferMgr implements TransactionLifecycleListener {
 			boolean waitOnce = false;
 
 			// Try to pin a buffer or the pinned buffer for the given BlockId
-			buff = bufferPool.pin(blk);
+			buff = bufferPool.pin(blk, sequential);
 
 			// If there is no such buffer or no available buffer,
 			// wait for it
@@ -142,7 +203,7 @@ public class BufferMgr implements TransactionLifecycleListener {
 					while (buff == null && !waitingTooLong(timestamp)) {
 						bufferPool.wait(MAX_TIME);
 						if (waitingThreads.get(0).equals(Thread.currentThread()))
-							buff = bufferPool.pin(blk);
+							buff = bufferPool.pin(blk, sequential);
 					}
 
 					waitingThreads.remove(Thread.currentThread());
@@ -154,7 +215,7 @@ public class BufferMgr implements TransactionLifecycleListener {
 			// release and re-pin all buffers it has
 			if (buff == null) {
 				repin();
-				buff = pin(blk);
+				buff = pin(blk, sequential);
 			} else {
 				pinningBuffers.put(buff.block(), new PinningBuffer(buff));
 				buffersToFlush.add(buff);
@@ -238,6 +299,38 @@ public class BufferMgr implements TransactionLifecycleListener {
 
 	}
 
+	/**
+	 * Asks the read-ahead threads to read the specified block into the buffer
+	 * pool, so that the scan reaching it later does not wait for the disk. It
+	 * returns at once. The block is not read if too many blocks are already
+	 * waiting to be read, or if no buffer is available by then.
+	 * 
+	 * @param blk
+	 *            a block ID
+	 * @param sequential
+	 *            whether the block is read by a sequential scan
+	 * @see #pin(BlockId, boolean)
+	 */
+	public static void readAhead(final BlockId blk, final boolean sequential) {
+		if (readAheadExecutor == null || blocksToReadAhead.size() >= MAX_BLOCKS_TO_READ_AHEAD
+				|| !blocksToReadAhead.add(blk))
+			return;
+		readAheadExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					bufferPool.readAhead(blk, sequential);
+				} catch (RuntimeException e) {
+					// the scan reads the block by itself
+					if (logger.isLoggable(Level.FINE))
+						logger.fine("cannot read ahead " + blk + ": " + e);
+				} finally {
+					blocksToReadAhead.remove(blk);
+				}
+			}
+		});
+	}
+
 	/**
 	 * Unpins the specified buffer. If the buffer's pin count becomes 0, then
 	 * the threads on the wait list are notified.
@@ -23,14 +23,23 @@ import java.util.concurrent.locks.ReentrantLock;
 import org.vanilladb.core.server.VanillaDb;
 import org.vanilladb.core.storage.file.BlockId;
 import org.vanilladb.core.storage.file.FileMgr;
+import org.vanilladb.core.util.CoreProperties;
 
 /**
  * Manages the pinning and unpinning of buffers to blocks.
  */
 class BufferPoolMgr {
+	private static final Class<?> REPLACEMENT_POLICY;
+
+	static {
+		REPLACEMENT_POLICY = CoreProperties.getLoader().getPropertyAsClass(
+				BufferPoolMgr.class.getName() + ".REPLACEMENT_POLICY", TwoQueueReplacementPolicy.class,
+				ReplacementPolicy.class);
+	}
+
 	private Buffer[] bufferPool;
 	private Map<BlockId, Buffer> blockMap;
-	private volatile int lastReplacedBuff;
+	private ReplacementPolicy policy;
 	private AtomicInteger numAvailable;
 	
 	// Optimization: Lock striping
@@ -53,9 +62,14 @@ class BufferPoolMgr {
 		bufferPool = new Buffer[numBuffs];
 		blockMap = new ConcurrentHashMap<BlockId, Buffer>(numBuffs);
 		numAvailable = new AtomicInteger(numBuffs);
-		lastReplacedBuff = 0;
 		for (int i = 0; i < numBuffs; i++)
 			bufferPool[i] = new Buffer();
+		try {
+			policy = (ReplacementPolicy) REPLACEMENT_POLICY.getConstructor(Integer.TYPE)
+					.newInstance(numBuffs);
+		} catch (Exception e) {
+			throw new RuntimeException("cannot create the replacement policy " + REPLACEMENT_POLICY, e);
+		}
 
 		for (int i = 0; i < stripSize; ++i) {
 			fileLocks[i] = new ReentrantLock();
@@ -109,11 +123,30 @@ class BufferPoolMgr {
 	 * Pins a buffer to the specified block. If there is already a buffer assigned
 	 * to that block then that buffer is used; otherwise, an unpinned buffer from
 	 * the pool is chosen. Returns a null value if there are no available buffers.
+	 * If the block is read by a sequential scan, the replacement policy may
+	 * replace it before the blocks pinned otherwise.
 	 * 
-	 * @param blk a block ID
+	 * @param blk        a block ID
+	 * @param sequential whether the block is read by a sequential scan
 	 * @return the pinned buffer
 	 */
-	Buffer pin(BlockId blk) {
+	Buffer pin(BlockId blk, boolean sequential) {
+		// Optimization: Pin a resident buffer without any latch or lock. A
+		// buffer cannot be pinned while it is being replaced, and keeps its
+		// block once pinned, so it is the right one if its block matches.
+		Buffer buff = findExistingBuffer(blk);
+		if (buff != null) {
+			int pins = buff.pinIfNotReplacing();
+			if (pins >= 0) {
+				if (pins == 0)
+					numAvailable.decrementAndGet();
+				if (blk.equals(buff.block()))
+					return buff;
+				if (buff.unpin())
+					numAvailable.incrementAndGet();
+			}
+		}
+
 		// The blockLatch prevents race condition.
 		// Only one tx can trigger the swapping action for the same block.
 		ReentrantLock blockLatch;
@@ -128,46 +161,13 @@ class BufferPoolMgr {
 
 		try {
 			// Find existing buffer
-			Buffer buff = findExistingBuffer(blk);
+			buff = findExistingBuffer(blk);
 
 			// If there is no such buffer
 			if (buff == null) {
 
 				// Choose Unpinned Buffer
-				int lastReplacedBuff = this.lastReplacedBuff;
-				int currBlk = (lastReplacedBuff + 1) % bufferPool.length;
-				// Note: this check will fail if there is only one buffer
-				while (currBlk != lastReplacedBuff) {
-					buff = bufferPool[currBlk];
-
-					// Get the lock of buffer if it is free
-					if (buff.getSwapLock().tryLock()) {
-						try {
-							// Check if there is no one use it
-							if (!buff.isPinned() && !buff.checkRecentlyPinnedAndReset()) {
-								this.lastReplacedBuff = currBlk;
-
-								// Swap
-								BlockId oldBlk = buff.block();
-								if (oldBlk != null)
-									blockMap.remove(oldBlk);
-								buff.assignToBlock(blk);
-								blockMap.put(blk, buff);
-								if (!buff.isPinned())
-									numAvailable.decrementAndGet();
-
-								// Pin this buffer
-								buff.pin();
-								return buff;
-							}
-						} finally {
-							// Release the lock of buffer
-							buff.getSwapLock().unlock();
-						}
-					}
-					currBlk = (currBlk + 1) % bufferPool.length;
-				}
-				return null;
+				return replace(blk, null, null, sequential);
 
 			// If it exists
 			} else {
@@ -183,12 +183,11 @@ class BufferPoolMgr {
 				try {
 					// Check its block id before pinning since it might be swapped
 					if (buff.block().equals(blk)) {
-						if (!buff.isPinned())
+						if (buff.pin())
 							numAvailable.decrementAndGet();
-						buff.pin();
 						return buff;
 					}
-					return pin(blk);
+					return pin(blk, sequential);
 
 				} finally {
 					// Release the lock of buffer
@@ -204,6 +203,45 @@ class BufferPoolMgr {
 		}
 	}
 
+	/**
+	 * Reads the specified block into an unpinned buffer chosen from the pool,
+	 * without pinning it, if no buffer is assigned to that block yet. The next
+	 * pin of the buffer does not count as a reuse of the block. Returns false
+	 * if there are no available buffers.
+	 * 
+	 * @param blk        a block ID
+	 * @param sequential whether the block is read by a sequential scan
+	 * @return false if the block could not be read for lack of buffers
+	 */
+	boolean readAhead(BlockId blk, boolean sequential) {
+		ReentrantLock blockLatch;
+		if (blk.fileName().endsWith(".idx"))
+			blockLatch = prepareIndexBlockLatch(blk);
+		else
+			blockLatch = prepareDataBlockLatch(blk);
+
+		// No one else can pin the block before the buffer is unpinned
+		blockLatch.lock();
+		try {
+			if (findExistingBuffer(blk) != null)
+				return true;
+			Buffer buff = replace(blk, null, null, sequential);
+			if (buff == null)
+				return false;
+			try {
+				buff.getSwapLock().lock();
+				buff.markReadAhead();
+				if (buff.unpin())
+					numAvailable.incrementAndGet();
+			} finally {
+				buff.getSwapLock().unlock();
+			}
+			return true;
+		} finally {
+			blockLatch.unlock();
+		}
+	}
+
 	/**
 	 * Allocates a new block in the specified file, and pins a buffer to it. Returns
 	 * null (without allocating the block) if there are no available buffers.
@@ -218,38 +256,7 @@ class BufferPoolMgr {
 		fileLock.lock();
 		try {
 			// Choose Unpinned Buffer
-			int lastReplacedBuff = this.lastReplacedBuff;
-			int currBlk = (lastReplacedBuff + 1) % bufferPool.length;
-			while (currBlk != lastReplacedBuff) {
-				Buffer buff = bufferPool[currBlk];
-
-				// Get the lock of buffer if it is free
-				if (buff.getSwapLock().tryLock()) {
-					try {
-						if (!buff.isPinned() && !buff.checkRecentlyPinnedAndReset()) {
-							this.lastReplacedBuff = currBlk;
-
-							// Swap
-							BlockId oldBlk = buff.block();
-							if (oldBlk != null)
-								blockMap.remove(oldBlk);
-							buff.assignToNew(fileName, fmtr);
-							blockMap.put(buff.block(), buff);
-							if (!buff.isPinned())
-								numAvailable.decrementAndGet();
-
-							// Pin this buffer
-							buff.pin();
-							return buff;
-						}
-					} finally {
-						// Release the lock of buffer
-						buff.getSwapLock().unlock();
-					}
-				}
-				currBlk = (currBlk + 1) % bufferPool.length;
-			}
-			return null;
+			return replace(null, fileName, fmtr, false);
 		} finally {
 			fileLock.unlock();
 		}
@@ -261,17 +268,10 @@ class BufferPoolMgr {
 	 * @param buffs the buffers to be unpinned
 	 */
 	void unpin(Buffer... buffs) {
+		// The pin count is atomic, so no lock is needed
 		for (Buffer buff : buffs) {
-			try {
-				// Get the lock of buffer
-				buff.getSwapLock().lock();
-				buff.unpin();
-				if (!buff.isPinned())
-					numAvailable.incrementAndGet();
-			} finally {
-				// Release the lock of buffer
-				buff.getSwapLock().unlock();
-			}
+			if (buff.unpin())
+				numAvailable.incrementAndGet();
 		}
 	}
 
@@ -284,6 +284,57 @@ class BufferPoolMgr {
 		return numAvailable.get();
 	}
 
+	/**
+	 * Assigns an unpinned buffer chosen by the replacement policy to the
+	 * specified block, or to a new block in the specified file if the block is
+	 * null, and pins it. Returns null if the policy finds no such buffer.
+	 */
+	private Buffer replace(BlockId blk, String fileName, PageFormatter fmtr, boolean sequential) {
+		for (int attempt = 0;; attempt++) {
+			int currBlk = policy.candidate(attempt, sequential);
+			if (currBlk < 0)
+				return null;
+			Buffer buff = bufferPool[currBlk];
+
+			// Get the lock of buffer if it is free
+			if (buff.getSwapLock().tryLock()) {
+				try {
+					// Check if there is no one use it, and keep others from
+					// pinning it without the lock from now on
+					if (!buff.startReplacing())
+						continue;
+					if (!policy.isVictim(currBlk, buff, sequential)) {
+						buff.cancelReplacing();
+						continue;
+					}
+
+					// Swap
+					BlockId oldBlk = buff.block();
+					if (oldBlk != null)
+						blockMap.remove(oldBlk);
+					try {
+						if (blk != null)
+							buff.assignToBlock(blk);
+						else
+							buff.assignToNew(fileName, fmtr);
+					} finally {
+						buff.cancelReplacing();
+					}
+					blockMap.put(buff.block(), buff);
+
+					// Pin this buffer
+					if (buff.pin())
+						numAvailable.decrementAndGet();
+					policy.replaced(currBlk, buff, oldBlk, sequential);
+					return buff;
+				} finally {
+					// Release the lock of buffer
+					buff.getSwapLock().unlock();
+				}
+			}
+		}
+	}
+
 	private Buffer findExistingBuffer(BlockId blk) {
 		return blockMap.get(blk);
 	}
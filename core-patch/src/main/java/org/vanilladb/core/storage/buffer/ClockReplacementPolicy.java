@@ -0,0 +1,49 @@
+/*******************************************************************************
+ * Copyright 2016, 2017 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.storage.buffer;
+
+import org.vanilladb.core.storage.file.BlockId;
+
+/**
+ * The clock replacement policy. The hand sweeps the buffers from the last
+ * replaced one, giving each recently pinned buffer a second chance. It makes
+ * no difference between sequential scans and other pins.
+ */
+public class ClockReplacementPolicy extends ReplacementPolicy {
+	private volatile int lastReplacedBuff;
+
+	public ClockReplacementPolicy(int numBuffs) {
+		super(numBuffs);
+	}
+
+	@Override
+	protected int candidate(int attempt, boolean sequential) {
+		// Note: this check will fail if there is only one buffer
+		if (attempt >= numBuffs - 1)
+			return -1;
+		return (lastReplacedBuff + 1 + attempt) % numBuffs;
+	}
+
+	@Override
+	protected boolean isVictim(int index, Buffer buff, boolean sequential) {
+		return !wasPinnedSinceChecked(buff);
+	}
+
+	@Override
+	protected void replaced(int index, Buffer buff, BlockId oldBlk, boolean sequential) {
+		lastReplacedBuff = index;
+	}
+}
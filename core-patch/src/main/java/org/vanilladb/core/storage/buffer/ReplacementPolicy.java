@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright 2016, 2017 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.storage.buffer;
+
+import org.vanilladb.core.storage.file.BlockId;
+
+/**
+ * Decides which unpinned buffer of the buffer pool is replaced when a block
+ * that is not in the pool is pinned. The buffers are identified by their
+ * indices in the pool. A search for a victim asks the policy for one
+ * candidate after another, skipping those that are pinned or whose swap locks
+ * are held by others, until the policy accepts a candidate or gives up.
+ * 
+ * <p>
+ * A pin may be marked as part of a sequential scan over a large file. Such a
+ * block is unlikely to be needed again soon, so a policy may replace it before
+ * the blocks pinned otherwise.
+ * </p>
+ */
+public abstract class ReplacementPolicy {
+	protected final int numBuffs;
+
+	/**
+	 * Creates a policy for a buffer pool of the specified size.
+	 * 
+	 * @param numBuffs
+	 *            the number of buffers in the pool
+	 */
+	public ReplacementPolicy(int numBuffs) {
+		this.numBuffs = numBuffs;
+	}
+
+	/**
+	 * Returns the index of the buffer to be considered at the specified
+	 * attempt of a search for a victim.
+	 * 
+	 * @param attempt
+	 *            the number of candidates considered so far in the search
+	 * @param sequential
+	 *            whether the block to be pinned is read by a sequential scan
+	 * @return the index of the candidate, or -1 to give up the search
+	 */
+	protected abstract int candidate(int attempt, boolean sequential);
+
+	/**
+	 * Returns true if the specified unpinned buffer should be replaced. It is
+	 * called with the swap lock of the buffer held, and may update the state
+	 * the policy keeps for the buffer if it returns false.
+	 * 
+	 * @param index
+	 *            the index of the buffer
+	 * @param buff
+	 *            the buffer
+	 * @param sequential
+	 *            whether the block to be pinned is read by a sequential scan
+	 * @return true if the buffer is the victim
+	 */
+	protected abstract boolean isVictim(int index, Buffer buff, boolean sequential);
+
+	/**
+	 * Notifies the policy that the specified buffer has been assigned to a new
+	 * block and pinned. It is called with the swap lock of the buffer held.
+	 * 
+	 * @param index
+	 *            the index of the buffer
+	 * @param buff
+	 *            the buffer
+	 * @param oldBlk
+	 *            the block the buffer was assigned to, or null
+	 * @param sequential
+	 *            whether the new block is read by a sequential scan
+	 */
+	protected abstract void replaced(int index, Buffer buff, BlockId oldBlk, boolean sequential);
+
+	/**
+	 * Returns true if the specified buffer has been pinned since the last time
+	 * this method was called on it.
+	 */
+	protected static boolean wasPinnedSinceChecked(Buffer buff) {
+		return buff.checkRecentlyPinnedAndReset();
+	}
+}
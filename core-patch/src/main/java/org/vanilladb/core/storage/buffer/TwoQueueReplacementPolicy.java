@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * Copyright 2016, 2017 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.storage.buffer;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.vanilladb.core.storage.file.BlockId;
+
+/**
+ * A scan-resistant replacement policy that approximates 2Q with a clock. A
+ * newly read block is <em>cold</em>, and becomes <em>hot</em> only if it is
+ * pinned again before the hand comes back to it, or if it is read again soon
+ * after being replaced while cold. The hand replaces cold buffers that have not
+ * been pinned since it last passed them, and makes hot ones that have not been
+ * pinned cold, so a hot block survives at least two rounds without a pin.
+ * 
+ * <p>
+ * The blocks read by sequential scans are kept in a small ring of buffers
+ * instead: once the ring is full, a sequential scan replaces the oldest block
+ * in it, so one scan over a large file does not push the hot blocks out of the
+ * pool. The hand also replaces such a block right away, unless it has been
+ * pinned again, in which case it becomes cold.
+ * </p>
+ */
+public class TwoQueueReplacementPolicy extends ReplacementPolicy {
+	private static final byte COLD = 0, HOT = 1, SCANNED = 2;
+
+	// The number of rounds of the hand before a search gives up
+	private static final int MAX_ROUNDS = 3;
+
+	// The state of each buffer, guarded by its swap lock
+	private final byte[] states;
+	private final AtomicInteger hand = new AtomicInteger();
+
+	// The buffers holding the blocks of sequential scans, oldest first
+	private final ArrayDeque<Integer> ring = new ArrayDeque<Integer>();
+	private final boolean[] inRing;
+	private final int ringSize;
+
+	// The blocks recently replaced while cold, oldest first
+	private final Set<BlockId> ghosts = new LinkedHashSet<BlockId>();
+	private final int maxGhosts;
+
+	public TwoQueueReplacementPolicy(int numBuffs) {
+		super(numBuffs);
+		states = new byte[numBuffs];
+		inRing = new boolean[numBuffs];
+		ringSize = Math.min(Math.max(16, numBuffs / 64), numBuffs / 2);
+		maxGhosts = numBuffs / 2;
+	}
+
+	@Override
+	protected int candidate(int attempt, boolean sequential) {
+		if (attempt == 0 && sequential) {
+			synchronized (ring) {
+				if (!ring.isEmpty() && ring.size() >= ringSize) {
+					int index = ring.poll();
+					inRing[index] = false;
+					return index;
+				}
+			}
+		}
+		if (attempt >= MAX_ROUNDS * numBuffs)
+			return -1;
+		return Math.floorMod(hand.getAndIncrement(), numBuffs);
+	}
+
+	@Override
+	protected boolean isVictim(int index, Buffer buff, boolean sequential) {
+		boolean pinned = wasPinnedSinceChecked(buff);
+		switch (states[index]) {
+		case SCANNED:
+			if (!pinned)
+				return true;
+			states[index] = COLD;
+			return false;
+		case COLD:
+			if (!pinned)
+				return true;
+			states[index] = HOT;
+			return false;
+		default:
+			if (!pinned)
+				states[index] = COLD;
+			return false;
+		}
+	}
+
+	@Override
+	protected void replaced(int index, Buffer buff, BlockId oldBlk, boolean sequential) {
+		if (states[index] == COLD && oldBlk != null)
+			synchronized (ghosts) {
+				ghosts.add(oldBlk);
+				if (ghosts.size() > maxGhosts) {
+					Iterator<BlockId> iter = ghosts.iterator();
+					iter.next();
+					iter.remove();
+				}
+			}
+
+		// the pin that read the block does not count as a reuse
+		wasPinnedSinceChecked(buff);
+		if (sequential) {
+			states[index] = SCANNED;
+			synchronized (ring) {
+				if (!inRing[index]) {
+					ring.add(index);
+					inRing[index] = true;
+				}
+			}
+		} else {
+			boolean reread;
+			synchronized (ghosts) {
+				reread = ghosts.remove(buff.block());
+			}
+			states[index] = reread ? HOT : COLD;
+		}
+	}
+}
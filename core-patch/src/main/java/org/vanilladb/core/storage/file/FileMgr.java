@@ -273,6 +273,11 @@ public class FileMgr {
 	 * @throws IOException
 	 */
 	private IoChannel getFileChannel(String fileName) throws IOException {
+		// Optimization: skip the anchor once the file is open
+		IoChannel openChannel = openFiles.get(fileName);
+		if (openChannel != null)
+			return openChannel;
+
 		synchronized (prepareAnchor(fileName)) {
 			IoChannel fileChannel = openFiles.get(fileName);
 
@@ -288,6 +293,18 @@ public class FileMgr {
 		}
 	}
 
+	/**
+	 * Returns the file of the specified name in the database directory, for
+	 * the files accessed without the file manager, e.g. mapped into memory.
+	 * 
+	 * @param fileName
+	 *            the name of the file
+	 * @return the file in the database directory
+	 */
+	public File dbFile(String fileName) {
+		return new File(dbDirectory, fileName);
+	}
+
 	/**
 	 * Delete the specified file.
 	 * 
@@ -16,10 +16,14 @@
 package org.vanilladb.core.storage.file;
 
 import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 
 import org.vanilladb.core.server.VanillaDb;
 import org.vanilladb.core.sql.Constant;
 import org.vanilladb.core.sql.Type;
+import org.vanilladb.core.sql.VectorConstant;
+import org.vanilladb.core.sql.VectorType;
+import org.vanilladb.core.sql.distfn.DistanceFn;
 import org.vanilladb.core.storage.file.io.IoAllocator;
 import org.vanilladb.core.storage.file.io.IoBuffer;
 import org.vanilladb.core.util.ByteHelper;
@@ -167,6 +171,83 @@ public class Page {
 		return Constant.newInstance(type, byteVal);
 	}
 
+	/**
+	 * Returns the distance between the query vector of the specified distance
+	 * function and the vector stored at the specified offset of this page. The
+	 * distance is computed on the page contents, without materializing a
+	 * {@link VectorConstant}.
+	 * 
+	 * @param offset
+	 *            the byte offset within the page
+	 * @param type
+	 *            the vector type of the value
+	 * @param distFn
+	 *            the distance function holding the query vector
+	 * 
+	 * @return the distance to the vector at that offset
+	 */
+	public synchronized double distance(int offset, Type type, DistanceFn distFn) {
+		ByteBuffer buf = contents.asReadOnlyByteBuffer(offset, type.maxSize());
+		if (buf == null)
+			return distFn.distance(copyOf(offset, type.maxSize()), 0, (VectorType) type);
+		return distFn.distance(buf, offset, (VectorType) type);
+	}
+
+	/**
+	 * Returns the ranking distance between the query vector of the specified
+	 * distance function and the vector stored at the specified offset of this
+	 * page, computed on the page contents.
+	 * 
+	 * @param offset
+	 *            the byte offset within the page
+	 * @param type
+	 *            the vector type of the value
+	 * @param distFn
+	 *            the distance function holding the query vector
+	 * @param bound
+	 *            the ranking distance at which the computation may stop
+	 * 
+	 * @return the ranking distance to the vector at that offset
+	 * @see DistanceFn#rankingDistance(ByteBuffer, int, VectorType, double)
+	 */
+	public synchronized double rankingDistance(int offset, Type type, DistanceFn distFn,
+			double bound) {
+		ByteBuffer buf = contents.asReadOnlyByteBuffer(offset, type.maxSize());
+		if (buf == null)
+			return distFn.rankingDistance(copyOf(offset, type.maxSize()), 0,
+					(VectorType) type, bound);
+		return distFn.rankingDistance(buf, offset, (VectorType) type, bound);
+	}
+
+	/**
+	 * Copies the vector stored at the specified offset of this page into the
+	 * specified array, whose length is the dimension of the vector.
+	 * 
+	 * @param offset
+	 *            the byte offset within the page
+	 * @param type
+	 *            the vector type of the value
+	 * @param dst
+	 *            the array to hold the vector
+	 */
+	public synchronized void getVector(int offset, Type type, float[] dst) {
+		ByteBuffer buf = contents.asReadOnlyByteBuffer(offset, type.maxSize());
+		if (buf == null)
+			((VectorType) type).decode(copyOf(offset, type.maxSize()), 0, dst);
+		else
+			((VectorType) type).decode(buf, offset, dst);
+	}
+
+	/**
+	 * Copies the specified bytes of the page into a new buffer, for the
+	 * contents that cannot be read in place.
+	 */
+	private ByteBuffer copyOf(int offset, int length) {
+		byte[] bytes = new byte[length];
+		contents.get(offset, bytes);
+		return ByteBuffer.wrap(bytes);
+	}
+
 	/**
 	 * Writes a constant value to the specified offset on the page.
 	 * 
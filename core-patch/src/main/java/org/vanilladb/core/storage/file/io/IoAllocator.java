@@ -20,6 +20,7 @@ import java.io.IOException;
 
 import org.vanilladb.core.storage.file.io.javanio.JavaNioByteBuffer;
 import org.vanilladb.core.storage.file.io.javanio.JavaNioFileChannel;
+import org.vanilladb.core.storage.file.io.javanio.JavaNioMappedFileChannel;
 import org.vanilladb.core.storage.file.io.jaydio.JaydioDirectByteBuffer;
 import org.vanilladb.core.storage.file.io.jaydio.JaydioDirectIoChannel;
 import org.vanilladb.core.util.CoreProperties;
@@ -28,9 +29,14 @@ public class IoAllocator {
 
 	private static boolean USE_O_DIRECT;
 
+	// Reads files through memory mappings, unless O_DIRECT is used
+	private static boolean USE_MMAP;
+
 	static {
 		USE_O_DIRECT = CoreProperties.getLoader().getPropertyAsBoolean(
 				IoAllocator.class.getName() + ".USE_O_DIRECT", false);
+		USE_MMAP = CoreProperties.getLoader().getPropertyAsBoolean(
+				IoAllocator.class.getName() + ".USE_MMAP", false);
 	}
 
 	public static IoBuffer newIoBuffer(int capacity) {
@@ -43,6 +49,8 @@ public class IoAllocator {
 	public static IoChannel newIoChannel(File file) throws IOException {
 		if (USE_O_DIRECT)
 			return new JaydioDirectIoChannel(file);
+		else if (USE_MMAP)
+			return new JavaNioMappedFileChannel(file);
 		else
 			return new JavaNioFileChannel(file);
 	}
@@ -15,12 +15,21 @@
  *******************************************************************************/
 package org.vanilladb.core.storage.file.io;
 
+import java.nio.ByteBuffer;
+
 public interface IoBuffer {
 
 	IoBuffer get(int position, byte[] dst);
 
 	IoBuffer put(int position, byte[] src);
 
+	/**
+	 * Returns a read-only buffer in which the bytes in [position, position +
+	 * length) are the same as in this buffer at the same indices, or null if
+	 * this buffer cannot expose its memory. The returned buffer may be shared.
+	 */
+	ByteBuffer asReadOnlyByteBuffer(int position, int length);
+
 	void clear();
 
 	void rewind();
@@ -22,9 +22,11 @@ import org.vanilladb.core.storage.file.io.IoBuffer;
 public class JavaNioByteBuffer implements IoBuffer {
 
 	private ByteBuffer byteBuffer;
+	private ByteBuffer readOnlyView;
 	
 	public JavaNioByteBuffer(int capacity) {
 		byteBuffer = ByteBuffer.allocateDirect(capacity);
+		readOnlyView = byteBuffer.asReadOnlyBuffer();
 	}
 	
 	@Override
@@ -41,6 +43,12 @@ public class JavaNioByteBuffer implements IoBuffer {
 		return this;
 	}
 	
+	@Override
+	public ByteBuffer asReadOnlyByteBuffer(int position, int length) {
+		// shares the content, so there is nothing to copy
+		return readOnlyView;
+	}
+	
 	@Override
 	public void clear() {
 		byteBuffer.clear();
@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * Copyright 2016, 2017 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.storage.file.io.javanio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.vanilladb.core.storage.file.Page;
+import org.vanilladb.core.storage.file.io.IoBuffer;
+import org.vanilladb.core.storage.file.io.IoChannel;
+import org.vanilladb.core.util.CoreProperties;
+
+/**
+ * A file channel that reads from read-only memory mappings of the file,
+ * which are made lazily in segments of {@link #SEGMENT_SIZE} bytes. A read
+ * copies the block straight from the page cache of the operating system
+ * without a system call. Writes and appends still go through the file
+ * channel, since a page must not reach the file before its log records do;
+ * the mappings see them as soon as they are written.
+ * 
+ * <p>
+ * The mappings are released only when they are garbage collected, so a
+ * deleted file may hold its disk space until then.
+ * </p>
+ */
+public class JavaNioMappedFileChannel implements IoChannel {
+
+	/**
+	 * The size of a mapped segment, in bytes. It is a multiple of the block
+	 * size, so a block never spans two segments.
+	 */
+	public static final int SEGMENT_SIZE;
+
+	static {
+		int size = CoreProperties.getLoader().getPropertyAsInteger(
+				JavaNioMappedFileChannel.class.getName() + ".SEGMENT_SIZE", 64 * 1024 * 1024);
+		SEGMENT_SIZE = Math.max(size / Page.BLOCK_SIZE, 1) * Page.BLOCK_SIZE;
+	}
+
+	private FileChannel fileChannel;
+	private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	// Optimization: store the size of each table
+	private long fileSize;
+
+	// The mapped segments, some of which may be null or shorter than a
+	// segment if they were mapped when the file was smaller
+	private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+	public JavaNioMappedFileChannel(File file) throws IOException {
+		@SuppressWarnings("resource")
+		RandomAccessFile f = new RandomAccessFile(file, "rws");
+		fileChannel = f.getChannel();
+		fileSize = fileChannel.size();
+	}
+
+	@Override
+	public int read(IoBuffer buffer, long position) throws IOException {
+		lock.readLock().lock();
+		try {
+			ByteBuffer dst = ((JavaNioByteBuffer) buffer).getByteBuffer();
+			if (position >= fileSize)
+				return -1;
+			int length = (int) Math.min(dst.remaining(), fileSize - position);
+			int segNum = (int) (position / SEGMENT_SIZE);
+			int offset = (int) (position % SEGMENT_SIZE);
+			if (offset + length > SEGMENT_SIZE)
+				return fileChannel.read(dst, position);
+
+			MappedByteBuffer seg = segment(segNum, offset + length);
+			if (seg == null)
+				return fileChannel.read(dst, position);
+			dst.put(dst.position(), seg, offset, length);
+			dst.position(dst.position() + length);
+			return length;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int write(IoBuffer buffer, long position) throws IOException {
+		lock.writeLock().lock();
+		try {
+			JavaNioByteBuffer javaBuffer = (JavaNioByteBuffer) buffer;
+			int writeSize = fileChannel.write(javaBuffer.getByteBuffer(), position);
+			
+			// Check if we need to update the size
+			if (position + writeSize > fileSize)
+				fileSize = position + writeSize;
+			
+			return writeSize;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public long append(IoBuffer buffer) throws IOException {
+		lock.writeLock().lock();
+		try {
+			JavaNioByteBuffer javaBuffer = (JavaNioByteBuffer) buffer;
+			int appendSize = fileChannel.write(javaBuffer.getByteBuffer(), fileSize);
+			fileSize += appendSize;
+			return fileSize;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public long size() throws IOException {
+		lock.readLock().lock();
+		try {
+			return fileSize;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		lock.writeLock().lock();
+		try {
+			segments = new MappedByteBuffer[0];
+			fileChannel.close();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the specified segment if its first {@code length} bytes are
+	 * mapped, mapping it again if needed. The caller must hold the read lock
+	 * and make sure that the bytes are in the file. Since the mappings are
+	 * only released by the garbage collector, a segment at the end of a
+	 * growing file is mapped again only once the file has grown to twice the
+	 * mapped length or filled the segment; null is returned before that.
+	 */
+	private MappedByteBuffer segment(int segNum, int length) throws IOException {
+		MappedByteBuffer[] segs = segments;
+		if (segNum < segs.length && segs[segNum] != null && length <= segs[segNum].capacity())
+			return segs[segNum];
+		synchronized (this) {
+			segs = segments;
+			MappedByteBuffer seg = segNum < segs.length ? segs[segNum] : null;
+			if (seg != null && length <= seg.capacity())
+				return seg;
+			long start = (long) segNum * SEGMENT_SIZE;
+			int mapLength = (int) Math.min(SEGMENT_SIZE, fileSize - start);
+			if (seg != null && mapLength < SEGMENT_SIZE && mapLength < 2 * seg.capacity())
+				return null;
+
+			MappedByteBuffer[] grown = new MappedByteBuffer[Math.max(segs.length, segNum + 1)];
+			System.arraycopy(segs, 0, grown, 0, segs.length);
+			grown[segNum] = fileChannel.map(FileChannel.MapMode.READ_ONLY, start, mapLength);
+			segments = grown;
+			return grown[segNum];
+		}
+	}
+}
@@ -15,6 +15,8 @@
  *******************************************************************************/
 package org.vanilladb.core.storage.file.io.jaydio;
 
+import java.nio.ByteBuffer;
+
 import net.smacke.jaydio.DirectIoLib;
 import net.smacke.jaydio.buffer.AlignedDirectByteBuffer;
 
@@ -44,6 +46,13 @@ public class JaydioDirectByteBuffer implements IoBuffer {
 		return this;
 	}
 	
+	@Override
+	public ByteBuffer asReadOnlyByteBuffer(int position, int length) {
+		// Jaydio does not expose its aligned memory, so the contents are
+		// read through copies
+		return null;
+	}
+	
 	@Override
 	public void clear() {
 		byteBuffer.clear();
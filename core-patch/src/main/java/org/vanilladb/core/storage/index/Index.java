@@ -17,6 +17,7 @@ package org.vanilladb.core.storage.index;
 
 import org.vanilladb.core.storage.index.btree.BTreeIndex;
 import org.vanilladb.core.storage.index.hash.HashIndex;
+import org.vanilladb.core.storage.index.hnsw.HNSWIndex;
 // import org.vanilladb.core.storage.index.lsh.LSHashIndex;
 import org.vanilladb.core.storage.index.ivf.IVFIndex;
 
@@ -56,6 +57,10 @@ public abstract class Index {
 			return HashIndex.searchCost(keyType, totRecs, matchRecs);
 		else if (idxType == IndexType.BTREE)
 			return BTreeIndex.searchCost(keyType, totRecs, matchRecs);
+		else if (idxType == IndexType.IVF)
+			return IVFIndex.searchCost(keyType, totRecs, matchRecs);
+		else if (idxType == IndexType.HNSW)
+			return HNSWIndex.searchCost(keyType, totRecs, matchRecs);
 		else
 			throw new IllegalArgumentException("unsupported index type");
 	}
@@ -69,6 +74,8 @@ public abstract class Index {
 		// return new LSHashIndex(ii, keyType, tx);
 		else if (ii.indexType() == IndexType.IVF)
 			return new IVFIndex(ii, keyType, tx);
+		else if (ii.indexType() == IndexType.HNSW)
+			return new HNSWIndex(ii, keyType, tx);
 		else
 			throw new IllegalArgumentException("unsupported index type");
 	}
@@ -107,6 +114,20 @@ public abstract class Index {
 	public void beforeFirst(VectorConstant vec) {
 	};
 
+	/**
+	 * Positions the index before the nearest neighbors of the specified
+	 * vector, knowing that the caller needs no more than {@code k} of them.
+	 * An index may use the bound to stop its search early.
+	 * 
+	 * @param vec
+	 *            the query vector
+	 * @param k
+	 *            the number of nearest neighbors needed, or -1 if unbounded
+	 */
+	public void beforeFirst(VectorConstant vec, int k) {
+		beforeFirst(vec);
+	}
+
 	/**
 	 * Moves the index to the next record matching the search range specified in
 	 * the {@link #beforeFirst} method. Returns false if there are no more such
@@ -19,7 +19,7 @@ package org.vanilladb.core.storage.index;
  * Supported index types.
  */
 public enum IndexType {
-	HASH, BTREE, LSH, IVF;
+	HASH, BTREE, LSH, IVF, HNSW;
 
 	public static IndexType fromInteger(int typeVal) {
 		switch (typeVal) {
@@ -31,6 +31,8 @@ public enum IndexType {
 				return LSH;
 			case 3:
 				return IVF;
+			case 4:
+				return HNSW;
 		}
 		throw new UnsupportedOperationException();
 	}
@@ -45,6 +47,8 @@ public enum IndexType {
 				return 2;
 			case IVF:
 				return 3;
+			case HNSW:
+				return 4;
 		}
 		throw new UnsupportedOperationException();
 	}
@@ -0,0 +1,640 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.storage.index.hnsw;
+
+import static org.vanilladb.core.sql.Type.BIGINT;
+import static org.vanilladb.core.sql.Type.INTEGER;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.vanilladb.core.server.VanillaDb;
+import org.vanilladb.core.sql.BigIntConstant;
+import org.vanilladb.core.sql.IntegerConstant;
+import org.vanilladb.core.sql.Schema;
+import org.vanilladb.core.sql.VectorConstant;
+import org.vanilladb.core.sql.distfn.DistanceFn;
+import org.vanilladb.core.sql.distfn.EuclideanFn;
+import org.vanilladb.core.storage.buffer.Buffer;
+import org.vanilladb.core.storage.file.BlockId;
+import org.vanilladb.core.storage.index.Index;
+import org.vanilladb.core.storage.index.IndexType;
+import org.vanilladb.core.storage.index.SearchKey;
+import org.vanilladb.core.storage.index.SearchKeyType;
+import org.vanilladb.core.storage.index.SearchRange;
+import org.vanilladb.core.storage.index.btree.BTreeIndex;
+import org.vanilladb.core.storage.metadata.TableInfo;
+import org.vanilladb.core.storage.metadata.index.IndexInfo;
+import org.vanilladb.core.storage.record.RecordFile;
+import org.vanilladb.core.storage.record.RecordId;
+import org.vanilladb.core.storage.record.RecordPage;
+import org.vanilladb.core.storage.tx.Transaction;
+import org.vanilladb.core.util.CoreProperties;
+
+/**
+ * A hierarchical navigable small-world (HNSW) graph implementation of
+ * {@link Index} for a single vector field. The graph is kept in three record
+ * files so that it lives in the buffer pool and survives restarts:
+ * <ul>
+ * <li>the node file, which holds one record per indexed vector, the data
+ * record ID and its neighbor list on the bottom layer,</li>
+ * <li>the upper file, which holds the neighbor lists of the upper layers,
+ * chained from the node record layer by layer, and</li>
+ * <li>the meta file, which holds the entry point and the top layer.</li>
+ * </ul>
+ * A node is identified by the position of its record in the node file, so
+ * neighbor lists can address a node directly without any lookup. A deletion
+ * finds the node of a data record through a B-tree keyed by the data record
+ * ID. Distances are measured by {@link EuclideanFn}.
+ * <p>
+ * The files are created along with the index, so a search never writes. The
+ * record files are logged, and an insertion or a deletion is one logical
+ * operation that is undone physically if it does not finish.
+ * </p>
+ */
+public class HNSWIndex extends Index {
+
+    /**
+     * A field name of the schema of index records.
+     */
+    private static final String SCHEMA_KEY = "key0", SCHEMA_RID_BLOCK = "block",
+            SCHEMA_RID_ID = "id", SCHEMA_LEVEL = "level", SCHEMA_UPPER = "upper",
+            SCHEMA_NEXT = "next", SCHEMA_COUNT = "cnt", SCHEMA_NEIGHBOR = "nb",
+            SCHEMA_ENTRY = "entry", SCHEMA_MAX_LEVEL = "maxlevel";
+
+    private static final int NO_NODE = -1;
+    private static final long DELETED_BLOCK = -1;
+
+    /**
+     * The maximum number of neighbors of a node on the upper layers. The bottom
+     * layer keeps twice as many.
+     */
+    public static final int M;
+    public static final int M_BOTTOM;
+    public static final int EF_CONSTRUCTION;
+    public static final int EF_SEARCH;
+    private static final int MAX_LEVEL = 16;
+    private static final double LEVEL_MULT;
+
+    static {
+        M = CoreProperties.getLoader().getPropertyAsInteger(
+                HNSWIndex.class.getName() + ".M", 16);
+        EF_CONSTRUCTION = CoreProperties.getLoader().getPropertyAsInteger(
+                HNSWIndex.class.getName() + ".EF_CONSTRUCTION", 100);
+        EF_SEARCH = CoreProperties.getLoader().getPropertyAsInteger(
+                HNSWIndex.class.getName() + ".EF_SEARCH", 64);
+        M_BOTTOM = 2 * M;
+        LEVEL_MULT = 1 / Math.log(M);
+    }
+
+    public static long searchCost(SearchKeyType keyType, long totRecs, long matchRecs) {
+        // a greedy descent visits a logarithmic number of nodes, and
+        // the bottom layer search expands about EF_SEARCH nodes
+        int rpb = Buffer.BUFFER_SIZE / RecordPage.slotSize(nodeSchema(keyType));
+        long levels = totRecs > 1 ? (long) Math.ceil(Math.log(totRecs) * LEVEL_MULT) : 1;
+        return Math.min(levels + EF_SEARCH, totRecs / rpb + 1);
+    }
+
+    private static String neighborFieldName(int index) {
+        return SCHEMA_NEIGHBOR + index;
+    }
+
+    /**
+     * Returns the schema of the node records, which also carry the neighbor
+     * list of the bottom layer.
+     */
+    private static Schema nodeSchema(SearchKeyType keyType) {
+        Schema sch = new Schema();
+        sch.addField(SCHEMA_KEY, keyType.get(0));
+        sch.addField(SCHEMA_RID_BLOCK, BIGINT);
+        sch.addField(SCHEMA_RID_ID, INTEGER);
+        sch.addField(SCHEMA_LEVEL, INTEGER);
+        sch.addField(SCHEMA_UPPER, INTEGER);
+        sch.addField(SCHEMA_COUNT, INTEGER);
+        for (int i = 0; i < M_BOTTOM; i++)
+            sch.addField(neighborFieldName(i), INTEGER);
+        return sch;
+    }
+
+    /**
+     * Returns the schema of the neighbor lists on the upper layers. Each record
+     * points to the record of the same node on the next layer.
+     */
+    private static Schema upperSchema() {
+        Schema sch = new Schema();
+        sch.addField(SCHEMA_NEXT, INTEGER);
+        sch.addField(SCHEMA_COUNT, INTEGER);
+        for (int i = 0; i < M; i++)
+            sch.addField(neighborFieldName(i), INTEGER);
+        return sch;
+    }
+
+    private static Schema metaSchema() {
+        Schema sch = new Schema();
+        sch.addField(SCHEMA_ENTRY, INTEGER);
+        sch.addField(SCHEMA_MAX_LEVEL, INTEGER);
+        return sch;
+    }
+
+    // A candidate node and its distance to the target vector
+    static class Candidate {
+        Candidate(int node, double dist) {
+            this.node = node;
+            this.dist = dist;
+        }
+
+        int node;
+        double dist;
+    }
+
+    private TableInfo nodeTi, upperTi, metaTi;
+    private IndexInfo ridIi;
+    private RecordFile nodeRf, upperRf;
+    private int nodesPerBlock, uppersPerBlock;
+    private List<Candidate> results;
+    private int resultIdx;
+    private boolean isBeforeFirsted;
+
+    /**
+     * Opens a HNSW index for the specified index.
+     *
+     * @param ii
+     *                the information of this index
+     * @param keyType
+     *                the type of the search key
+     * @param tx
+     *                the calling transaction
+     */
+    public HNSWIndex(IndexInfo ii, SearchKeyType keyType, Transaction tx) {
+        super(ii, keyType, tx);
+        if (keyType.length() != 1)
+            throw new UnsupportedOperationException("HNSW index supports a single vector field only");
+
+        Schema nodeSch = nodeSchema(keyType), upperSch = upperSchema();
+        nodeTi = new TableInfo(ii.indexName() + "_hnswnode", nodeSch);
+        upperTi = new TableInfo(ii.indexName() + "_hnswupper", upperSch);
+        metaTi = new TableInfo(ii.indexName() + "_hnswmeta", metaSchema());
+        ridIi = new IndexInfo(ii.indexName() + "_hnswrid", ii.tableName(),
+                Arrays.asList(SCHEMA_RID_BLOCK, SCHEMA_RID_ID), IndexType.BTREE);
+        nodesPerBlock = Buffer.BUFFER_SIZE / RecordPage.slotSize(nodeSch);
+        uppersPerBlock = Buffer.BUFFER_SIZE / RecordPage.slotSize(upperSch);
+    }
+
+    /**
+     * Creates the files of an empty graph. Called when the index is created,
+     * so that searching an empty index does not have to create them.
+     */
+    public void createFiles() {
+        if (tx.isReadOnly())
+            throw new UnsupportedOperationException();
+        for (TableInfo ti : new TableInfo[] { nodeTi, upperTi, metaTi })
+            RecordFile.formatFileHeader(ti.fileName(), tx);
+        openRidIndex().close();
+    }
+
+    @Override
+    public void preLoadToMemory() {
+        for (String tblname : new String[] { nodeTi.fileName(), upperTi.fileName() }) {
+            long size = fileSize(tblname);
+            BlockId blk;
+            for (int j = 0; j < size; j++) {
+                blk = new BlockId(tblname, j);
+                tx.bufferMgr().pin(blk);
+            }
+        }
+    }
+
+    @Override
+    public void beforeFirst(SearchRange searchRange) {
+        throw new UnsupportedOperationException("HNSW index only supports nearest neighbor search");
+    }
+
+    /**
+     * Searches the graph for the nodes closest to the query vector. The
+     * following calls to {@link #next()} iterate over at most
+     * {@link #EF_SEARCH} matches in ascending order of distance.
+     *
+     * @see Index#beforeFirst(VectorConstant)
+     */
+    @Override
+    public void beforeFirst(VectorConstant query) {
+        beforeFirst(query, -1);
+    }
+
+    /**
+     * Searches the graph for the {@code k} nodes closest to the query vector.
+     * The candidate list is widened to {@code k} if it is larger than
+     * {@link #EF_SEARCH}, and only the {@code k} closest are returned.
+     *
+     * @see Index#beforeFirst(VectorConstant, int)
+     */
+    @Override
+    public void beforeFirst(VectorConstant query, int k) {
+        close();
+        openFiles();
+
+        results = new ArrayList<Candidate>();
+        resultIdx = -1;
+        isBeforeFirsted = true;
+
+        int[] meta = readMeta();
+        int entry = meta[0];
+        if (entry == NO_NODE)
+            return;
+
+        DistanceFn distFn = new EuclideanFn(SCHEMA_KEY);
+        distFn.setQueryVector(query);
+        Candidate ep = new Candidate(entry, distFn.distance(getVector(entry)));
+        for (int level = meta[1]; level > 0; level--)
+            ep = greedySearch(distFn, ep, level);
+
+        List<Candidate> found = searchLayer(distFn, ep, Math.max(Math.max(EF_SEARCH, k), 1), 0);
+        for (Candidate c : found) {
+            if (k >= 0 && results.size() >= k)
+                break;
+            if (!isDeleted(c.node))
+                results.add(c);
+        }
+    }
+
+    /**
+     * Moves to the next nearest neighbor found by the last search.
+     *
+     * @see Index#next()
+     */
+    @Override
+    public boolean next() {
+        if (!isBeforeFirsted)
+            throw new IllegalStateException("You must call beforeFirst() before iterating index '"
+                    + ii.indexName() + "'");
+
+        resultIdx++;
+        return resultIdx < results.size();
+    }
+
+    /**
+     * Retrieves the data record ID of the current nearest neighbor.
+     *
+     * @see Index#getDataRecordId()
+     */
+    @Override
+    public RecordId getDataRecordId() {
+        moveToNode(results.get(resultIdx).node);
+        long blkNum = (Long) nodeRf.getVal(SCHEMA_RID_BLOCK).asJavaVal();
+        int id = (Integer) nodeRf.getVal(SCHEMA_RID_ID).asJavaVal();
+        return new RecordId(new BlockId(dataFileName, blkNum), id);
+    }
+
+    /**
+     * Inserts a new node into the graph and links it to its nearest neighbors
+     * on every layer it belongs to.
+     *
+     * @see Index#insert(SearchKey, RecordId, boolean)
+     */
+    @Override
+    public void insert(SearchKey key, RecordId dataRecordId, boolean doLogicalLogging) {
+        if (tx.isReadOnly())
+            throw new UnsupportedOperationException();
+        close();
+        openFiles();
+        VectorConstant vec = (VectorConstant) key.get(0);
+        int level = randomLevel();
+
+        // log the logical operation starts, so that the records appended to
+        // the files are undone along with the links if it does not end
+        if (doLogicalLogging)
+            tx.recoveryMgr().logLogicalStart();
+
+        // chain the upper layer records from the top layer down,
+        // so that each record knows the record of the next layer
+        int upper = NO_NODE;
+        for (int l = level; l > 0; l--) {
+            upperRf.insert();
+            upperRf.setVal(SCHEMA_NEXT, new IntegerConstant(upper));
+            upperRf.setVal(SCHEMA_COUNT, new IntegerConstant(0));
+            upper = upperOrdinal(upperRf.currentRecordId());
+        }
+
+        nodeRf.insert();
+        nodeRf.setVal(SCHEMA_KEY, vec);
+        nodeRf.setVal(SCHEMA_RID_BLOCK, new BigIntConstant(dataRecordId.block().number()));
+        nodeRf.setVal(SCHEMA_RID_ID, new IntegerConstant(dataRecordId.id()));
+        nodeRf.setVal(SCHEMA_LEVEL, new IntegerConstant(level));
+        nodeRf.setVal(SCHEMA_UPPER, new IntegerConstant(upper));
+        nodeRf.setVal(SCHEMA_COUNT, new IntegerConstant(0));
+        RecordId nodeRid = nodeRf.currentRecordId();
+        int node = nodeOrdinal(nodeRid);
+
+        BTreeIndex ridIdx = openRidIndex();
+        ridIdx.insert(ridKey(dataRecordId), nodeRid, false);
+        ridIdx.close();
+
+        int[] meta = readMeta();
+        int entry = meta[0], maxLevel = meta[1];
+        if (entry == NO_NODE) {
+            writeMeta(node, level);
+        } else {
+            DistanceFn distFn = new EuclideanFn(SCHEMA_KEY);
+            distFn.setQueryVector(vec);
+            Candidate ep = new Candidate(entry, distFn.distance(getVector(entry)));
+            for (int l = maxLevel; l > level; l--)
+                ep = greedySearch(distFn, ep, l);
+
+            for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+                List<Candidate> found = searchLayer(distFn, ep, EF_CONSTRUCTION, l);
+                int maxConn = l == 0 ? M_BOTTOM : M;
+                List<Candidate> selected = found.subList(0, Math.min(M, found.size()));
+                int[] neighbors = new int[selected.size()];
+                for (int i = 0; i < neighbors.length; i++)
+                    neighbors[i] = selected.get(i).node;
+                setNeighbors(node, l, neighbors);
+                for (int neighbor : neighbors)
+                    link(neighbor, node, l, maxConn);
+                ep = found.get(0);
+            }
+
+            if (level > maxLevel)
+                writeMeta(node, level);
+        }
+
+        // log the logical operation ends
+        if (doLogicalLogging)
+            tx.recoveryMgr().logIndexInsertionEnd(ii.indexName(), key,
+                    dataRecordId.block().number(), dataRecordId.id());
+    }
+
+    /**
+     * Deletes the specified node by marking it as a tombstone. The node stays
+     * in the graph as a routing point but is never returned by a search.
+     *
+     * @see Index#delete(SearchKey, RecordId, boolean)
+     */
+    @Override
+    public void delete(SearchKey key, RecordId dataRecordId, boolean doLogicalLogging) {
+        if (tx.isReadOnly())
+            throw new UnsupportedOperationException();
+        close();
+        openFiles();
+
+        // log the logical operation starts
+        if (doLogicalLogging)
+            tx.recoveryMgr().logLogicalStart();
+
+        SearchKey ridKey = ridKey(dataRecordId);
+        BTreeIndex ridIdx = openRidIndex();
+        ridIdx.beforeFirst(new SearchRange(ridKey));
+        if (ridIdx.next()) {
+            RecordId nodeRid = ridIdx.getDataRecordId();
+            moveToNode(nodeOrdinal(nodeRid));
+            nodeRf.setVal(SCHEMA_RID_BLOCK, new BigIntConstant(DELETED_BLOCK));
+            ridIdx.delete(ridKey, nodeRid, false);
+        }
+        ridIdx.close();
+
+        // log the logical operation ends
+        if (doLogicalLogging)
+            tx.recoveryMgr().logIndexDeletionEnd(ii.indexName(), key,
+                    dataRecordId.block().number(), dataRecordId.id());
+    }
+
+    /**
+     * Closes the index by closing the underlying record files.
+     *
+     * @see Index#close()
+     */
+    @Override
+    public void close() {
+        if (nodeRf != null)
+            nodeRf.close();
+        if (upperRf != null)
+            upperRf.close();
+    }
+
+    private long fileSize(String fileName) {
+        tx.concurrencyMgr().readFile(fileName);
+        return VanillaDb.fileMgr().size(fileName);
+    }
+
+    private void openFiles() {
+        nodeRf = nodeTi.open(tx, true);
+        upperRf = upperTi.open(tx, true);
+    }
+
+    /**
+     * Returns the B-tree that maps the ID of a data record to the record ID of
+     * its node, which the B-tree keeps in place of a data record ID.
+     */
+    private BTreeIndex openRidIndex() {
+        return new BTreeIndex(ridIi, new SearchKeyType(BIGINT, INTEGER), tx);
+    }
+
+    private static SearchKey ridKey(RecordId dataRecordId) {
+        return new SearchKey(new BigIntConstant(dataRecordId.block().number()),
+                new IntegerConstant(dataRecordId.id()));
+    }
+
+    /**
+     * Returns the entry point and the top layer of the graph, which has no
+     * entry point until the first node is inserted.
+     */
+    private int[] readMeta() {
+        RecordFile rf = metaTi.open(tx, true);
+        try {
+            rf.beforeFirst();
+            if (rf.next())
+                return new int[] { (Integer) rf.getVal(SCHEMA_ENTRY).asJavaVal(),
+                        (Integer) rf.getVal(SCHEMA_MAX_LEVEL).asJavaVal() };
+            return new int[] { NO_NODE, 0 };
+        } finally {
+            rf.close();
+        }
+    }
+
+    private void writeMeta(int entry, int maxLevel) {
+        RecordFile rf = metaTi.open(tx, true);
+        try {
+            rf.beforeFirst();
+            if (!rf.next())
+                rf.insert();
+            rf.setVal(SCHEMA_ENTRY, new IntegerConstant(entry));
+            rf.setVal(SCHEMA_MAX_LEVEL, new IntegerConstant(maxLevel));
+        } finally {
+            rf.close();
+        }
+    }
+
+    private int randomLevel() {
+        double r = 1.0 - ThreadLocalRandom.current().nextDouble();
+        return Math.min((int) (-Math.log(r) * LEVEL_MULT), MAX_LEVEL);
+    }
+
+    /**
+     * Moves from the entry point towards the target vector on the specified
+     * layer, until no neighbor is closer.
+     */
+    private Candidate greedySearch(DistanceFn distFn, Candidate ep, int level) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int neighbor : getNeighbors(ep.node, level)) {
+                double dist = distFn.distance(getVector(neighbor));
+                if (dist < ep.dist) {
+                    ep = new Candidate(neighbor, dist);
+                    changed = true;
+                }
+            }
+        }
+        return ep;
+    }
+
+    /**
+     * Searches the specified layer from the entry point and returns the
+     * {@code ef} closest nodes found, in ascending order of distance.
+     */
+    private List<Candidate> searchLayer(DistanceFn distFn, Candidate ep, int ef, int level) {
+        Set<Integer> visited = new HashSet<Integer>();
+        PriorityQueue<Candidate> candidates = new PriorityQueue<Candidate>(
+                (Candidate c1, Candidate c2) -> Double.compare(c1.dist, c2.dist));
+        PriorityQueue<Candidate> found = new PriorityQueue<Candidate>(
+                (Candidate c1, Candidate c2) -> Double.compare(c2.dist, c1.dist));
+
+        visited.add(ep.node);
+        candidates.add(ep);
+        found.add(ep);
+        while (!candidates.isEmpty()) {
+            Candidate c = candidates.poll();
+            if (c.dist > found.peek().dist)
+                break;
+
+            for (int neighbor : getNeighbors(c.node, level)) {
+                if (!visited.add(neighbor))
+                    continue;
+                double dist = distFn.distance(getVector(neighbor));
+                if (found.size() < ef || dist < found.peek().dist) {
+                    Candidate n = new Candidate(neighbor, dist);
+                    candidates.add(n);
+                    found.add(n);
+                    if (found.size() > ef)
+                        found.poll();
+                }
+            }
+        }
+
+        Candidate[] sorted = new Candidate[found.size()];
+        for (int i = sorted.length - 1; i >= 0; i--)
+            sorted[i] = found.poll();
+        List<Candidate> ret = new ArrayList<Candidate>(sorted.length);
+        for (Candidate c : sorted)
+            ret.add(c);
+        return ret;
+    }
+
+    /**
+     * Adds a link from the specified node to the new neighbor. If the node
+     * already has too many neighbors, only the closest ones are kept.
+     */
+    private void link(int node, int newNeighbor, int level, int maxConn) {
+        int[] neighbors = getNeighbors(node, level);
+        if (neighbors.length < maxConn) {
+            int[] linked = new int[neighbors.length + 1];
+            System.arraycopy(neighbors, 0, linked, 0, neighbors.length);
+            linked[neighbors.length] = newNeighbor;
+            setNeighbors(node, level, linked);
+            return;
+        }
+
+        // shrink the neighbor list
+        DistanceFn distFn = new EuclideanFn(SCHEMA_KEY);
+        distFn.setQueryVector(getVector(node));
+        PriorityQueue<Candidate> closest = new PriorityQueue<Candidate>(
+                (Candidate c1, Candidate c2) -> Double.compare(c2.dist, c1.dist));
+        closest.add(new Candidate(newNeighbor, distFn.distance(getVector(newNeighbor))));
+        for (int neighbor : neighbors) {
+            closest.add(new Candidate(neighbor, distFn.distance(getVector(neighbor))));
+            if (closest.size() > maxConn)
+                closest.poll();
+        }
+        int[] kept = new int[closest.size()];
+        for (int i = 0; i < kept.length; i++)
+            kept[i] = closest.poll().node;
+        setNeighbors(node, level, kept);
+    }
+
+    private VectorConstant getVector(int node) {
+        moveToNode(node);
+        return (VectorConstant) nodeRf.getVal(SCHEMA_KEY);
+    }
+
+    private boolean isDeleted(int node) {
+        moveToNode(node);
+        return (Long) nodeRf.getVal(SCHEMA_RID_BLOCK).asJavaVal() == DELETED_BLOCK;
+    }
+
+    private int[] getNeighbors(int node, int level) {
+        RecordFile rf = moveToLayer(node, level);
+        int count = (Integer) rf.getVal(SCHEMA_COUNT).asJavaVal();
+        int[] neighbors = new int[count];
+        for (int i = 0; i < count; i++)
+            neighbors[i] = (Integer) rf.getVal(neighborFieldName(i)).asJavaVal();
+        return neighbors;
+    }
+
+    private void setNeighbors(int node, int level, int[] neighbors) {
+        RecordFile rf = moveToLayer(node, level);
+        rf.setVal(SCHEMA_COUNT, new IntegerConstant(neighbors.length));
+        for (int i = 0; i < neighbors.length; i++)
+            rf.setVal(neighborFieldName(i), new IntegerConstant(neighbors[i]));
+    }
+
+    /**
+     * Positions the record file holding the neighbor list of the node on the
+     * specified layer, and returns that record file.
+     */
+    private RecordFile moveToLayer(int node, int level) {
+        moveToNode(node);
+        if (level == 0)
+            return nodeRf;
+
+        int upper = (Integer) nodeRf.getVal(SCHEMA_UPPER).asJavaVal();
+        moveToUpper(upper);
+        for (int l = 1; l < level; l++)
+            moveToUpper((Integer) upperRf.getVal(SCHEMA_NEXT).asJavaVal());
+        return upperRf;
+    }
+
+    private void moveToNode(int node) {
+        nodeRf.moveToRecordId(new RecordId(new BlockId(nodeTi.fileName(),
+                1 + node / nodesPerBlock), node % nodesPerBlock));
+    }
+
+    private void moveToUpper(int upper) {
+        upperRf.moveToRecordId(new RecordId(new BlockId(upperTi.fileName(),
+                1 + upper / uppersPerBlock), upper % uppersPerBlock));
+    }
+
+    private int nodeOrdinal(RecordId rid) {
+        return (int) (rid.block().number() - 1) * nodesPerBlock + rid.id();
+    }
+
+    private int upperOrdinal(RecordId rid) {
+        return (int) (rid.block().number() - 1) * uppersPerBlock + rid.id();
+    }
+}
@@ -0,0 +1,156 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.storage.index.ivf;
+
+import java.util.Arrays;
+
+import org.vanilladb.core.query.algebra.vector.TopKHeap;
+import org.vanilladb.core.sql.distfn.EuclideanFn;
+
+/**
+ * An in-memory copy of the centroids of an {@link IVFIndex}, kept as one
+ * contiguous row-major matrix so that a query can be scored against all
+ * centroids in a single vectorized pass.
+ *
+ * <p>
+ * Along with each centroid, the set keeps the radius of its cluster, the
+ * largest Euclidean distance between the centroid and a member. The centroids
+ * are immutable, while a radius only grows as members are inserted.
+ * </p>
+ */
+public class CentroidSet {
+
+    private final float[] matrix;
+    private final float[] radii;
+    private final int size, dimension;
+
+    /**
+     * Creates a set of centroids whose radii are unknown, which leaves their
+     * clusters unbounded.
+     */
+    public CentroidSet(float[][] centroids) {
+        this(centroids, null);
+    }
+
+    public CentroidSet(float[][] centroids, float[] radii) {
+        size = centroids.length;
+        dimension = size == 0 ? 0 : centroids[0].length;
+        matrix = new float[size * dimension];
+        for (int c = 0; c < size; c++)
+            System.arraycopy(centroids[c], 0, matrix, c * dimension, dimension);
+        this.radii = new float[size];
+        if (radii != null)
+            System.arraycopy(radii, 0, this.radii, 0, size);
+        else
+            Arrays.fill(this.radii, Float.POSITIVE_INFINITY);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int dimension() {
+        return dimension;
+    }
+
+    /**
+     * Returns a copy of the specified centroid.
+     */
+    public float[] centroid(int c) {
+        float[] v = new float[dimension];
+        System.arraycopy(matrix, c * dimension, v, 0, dimension);
+        return v;
+    }
+
+    public float radius(int c) {
+        return radii[c];
+    }
+
+    /**
+     * Widens the radius of the specified cluster to {@code dist} if it is
+     * smaller.
+     *
+     * @return true if the radius is widened
+     */
+    public synchronized boolean growRadius(int c, float dist) {
+        if (dist <= radii[c])
+            return false;
+        radii[c] = dist;
+        return true;
+    }
+
+    /**
+     * Returns the Euclidean distance between the vector and the specified
+     * centroid.
+     */
+    public float distance(float[] vec, int c) {
+        return (float) Math.sqrt(EuclideanFn.squaredDistance(vec, 0, matrix, c * dimension,
+                dimension, Float.POSITIVE_INFINITY));
+    }
+
+    /**
+     * Writes {@code vec - centroid(c)} into {@code residual}.
+     */
+    public void residual(float[] vec, int c, float[] residual) {
+        int base = c * dimension;
+        for (int d = 0; d < dimension; d++)
+            residual[d] = vec[d] - matrix[base + d];
+    }
+
+    /**
+     * Returns the squared Euclidean distances between the query and every
+     * centroid, computed in one pass over the matrix that compares the query
+     * with several centroids at a time.
+     */
+    public float[] distances(float[] query) {
+        float[] dists = new float[size];
+        EuclideanFn.squaredDistances(query, matrix, 0, size, dists);
+        return dists;
+    }
+
+    /**
+     * Returns the index of the centroid closest to the query.
+     */
+    public int nearest(float[] query) {
+        // a centroid stops being measured once it is farther than the best
+        int best = 0;
+        float bestDist = Float.POSITIVE_INFINITY;
+        for (int c = 0, base = 0; c < size; c++, base += dimension) {
+            float dist = EuclideanFn.squaredDistance(query, 0, matrix, base, dimension, bestDist);
+            if (dist < bestDist) {
+                bestDist = dist;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the indices of the {@code n} centroids closest to the query,
+     * closest first.
+     */
+    public int[] nearest(float[] query, int n) {
+        float[] dists = distances(query);
+        TopKHeap heap = new TopKHeap(Math.min(n, size));
+        for (int c = 0; c < size; c++)
+            heap.offer(c, dists[c]);
+        heap.sort();
+        int[] best = new int[heap.size()];
+        for (int i = 0; i < best.length; i++)
+            best[i] = heap.id(i);
+        return best;
+    }
+}
@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.storage.index.ivf;
+
+import static org.vanilladb.core.storage.record.RecordPage.EMPTY;
+import static org.vanilladb.core.storage.record.RecordPage.FLAG_SIZE;
+import static org.vanilladb.core.storage.record.RecordPage.INUSE;
+
+import java.util.List;
+import java.util.Map;
+
+import org.vanilladb.core.sql.Constant;
+import org.vanilladb.core.sql.IntegerConstant;
+import org.vanilladb.core.storage.buffer.Buffer;
+import org.vanilladb.core.storage.buffer.PageFormatter;
+import org.vanilladb.core.storage.metadata.TableInfo;
+import org.vanilladb.core.storage.record.RecordPage;
+
+/**
+ * A formatter that lays out a new page of a cluster table already filled with
+ * the given records, in the same slot layout as {@link RecordPage}. Used to
+ * bulk load the clusters one full page at a time.
+ */
+public class ClusterPageFormatter extends PageFormatter {
+
+    private static final Constant INUSE_FLAG = new IntegerConstant(INUSE),
+            EMPTY_FLAG = new IntegerConstant(EMPTY);
+
+    private TableInfo ti;
+    private String[] fields;
+    private List<Constant[]> records;
+
+    /**
+     * Creates a formatter for a page holding the specified records.
+     *
+     * @param ti
+     *            the metadata of the cluster table
+     * @param fields
+     *            the names of the fields, in the order of the values of each
+     *            record
+     * @param records
+     *            the records, which must fit in a page
+     */
+    public ClusterPageFormatter(TableInfo ti, String[] fields, List<Constant[]> records) {
+        this.ti = ti;
+        this.fields = fields;
+        this.records = records;
+    }
+
+    /**
+     * Returns the number of records that fit in a page of the table.
+     */
+    public static int recordsPerPage(TableInfo ti) {
+        return Buffer.BUFFER_SIZE / RecordPage.slotSize(ti.schema());
+    }
+
+    @Override
+    public void format(Buffer buf) {
+        int slotSize = RecordPage.slotSize(ti.schema());
+        Map<String, Integer> offsetMap = RecordPage.offsetMap(ti.schema());
+        int[] offsets = new int[fields.length];
+        for (int f = 0; f < fields.length; f++)
+            offsets[f] = FLAG_SIZE + offsetMap.get(fields[f]);
+
+        int slot = 0;
+        for (int pos = 0; pos + slotSize <= Buffer.BUFFER_SIZE; pos += slotSize, slot++) {
+            if (slot < records.size()) {
+                Constant[] rec = records.get(slot);
+                setVal(buf, pos, INUSE_FLAG);
+                for (int f = 0; f < fields.length; f++)
+                    setVal(buf, pos + offsets[f], rec[f]);
+            } else {
+                setVal(buf, pos, EMPTY_FLAG);
+                for (int f = 0; f < fields.length; f++)
+                    setVal(buf, pos + offsets[f],
+                            Constant.defaultInstance(ti.schema().type(fields[f])));
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.storage.index.ivf;
+
+import java.util.List;
+
+import org.vanilladb.core.sql.Record;
+import org.vanilladb.core.storage.metadata.TableInfo;
+import org.vanilladb.core.storage.record.RecordId;
+
+/**
+ * The clusters a nearest neighbor search may probe for a query, with a lower
+ * bound on the Euclidean distance between the query and any member of each
+ * cluster, derived from the triangle inequality: {@code dist(q, centroid) -
+ * radius}.
+ *
+ * <p>
+ * The first {@link #numProbes()} clusters are ordered by the distance from the
+ * query to their centroids, and are always probed. The rest are ordered by
+ * their bounds, and are probed only while the bound says they might hold
+ * something closer than the k-th record found so far.
+ * </p>
+ */
+public class ClusterProbe {
+
+    private List<TableInfo> clusters;
+    private float[] lowerBounds;
+    private int numProbes;
+    private String dataFileName;
+
+    public ClusterProbe(List<TableInfo> clusters, float[] lowerBounds, int numProbes,
+            String dataFileName) {
+        this.clusters = clusters;
+        this.lowerBounds = lowerBounds;
+        this.numProbes = numProbes;
+        this.dataFileName = dataFileName;
+    }
+
+    public int size() {
+        return clusters.size();
+    }
+
+    public TableInfo cluster(int i) {
+        return clusters.get(i);
+    }
+
+    public float lowerBound(int i) {
+        return lowerBounds[i];
+    }
+
+    public int numProbes() {
+        return numProbes;
+    }
+
+    /**
+     * Returns the ID of the data record of the current entry of a cluster.
+     */
+    public RecordId dataRecordId(Record entry) {
+        return IVFIndex.dataRecordId(entry, dataFileName);
+    }
+}
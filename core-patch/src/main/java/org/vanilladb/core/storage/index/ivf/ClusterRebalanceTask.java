@@ -0,0 +1,62 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.storage.index.ivf;
+
+import java.sql.Connection;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.vanilladb.core.server.VanillaDb;
+import org.vanilladb.core.server.task.Task;
+import org.vanilladb.core.storage.metadata.index.IndexInfo;
+import org.vanilladb.core.storage.tx.Transaction;
+
+/**
+ * Rebalances the clusters of an {@link IVFIndex} in a transaction of its own,
+ * after enough records have been inserted to skew the cluster sizes.
+ */
+public class ClusterRebalanceTask extends Task {
+    private static Logger logger = Logger.getLogger(ClusterRebalanceTask.class.getName());
+
+    private IndexInfo ii;
+
+    public ClusterRebalanceTask(IndexInfo ii) {
+        this.ii = ii;
+    }
+
+    @Override
+    public void run() {
+        if (logger.isLoggable(Level.FINE))
+            logger.fine("start rebalancing the clusters of index " + ii.indexName());
+        Transaction tx = VanillaDb.txMgr().newTransaction(
+                Connection.TRANSACTION_SERIALIZABLE, false);
+        boolean committed = false;
+        try {
+            IVFIndex idx = (IVFIndex) ii.open(tx);
+            idx.rebalance();
+            idx.close();
+            tx.commit();
+            committed = true;
+        } catch (RuntimeException e) {
+            if (logger.isLoggable(Level.WARNING))
+                logger.warning("rebalancing of index " + ii.indexName()
+                        + " is aborted: " + e);
+            tx.rollback();
+        } finally {
+            IVFIndex.rebalanced(ii.indexName(), committed);
+        }
+    }
+}
@@ -16,32 +16,40 @@
 package org.vanilladb.core.storage.index.ivf;
 
 import static org.vanilladb.core.sql.Type.BIGINT;
+import static org.vanilladb.core.sql.Type.DOUBLE;
 import static org.vanilladb.core.sql.Type.INTEGER;
 import static org.vanilladb.core.sql.Type.VECTOR;
 
 import org.vanilladb.core.query.algebra.Scan;
 import org.vanilladb.core.query.algebra.TableScan;
+import org.vanilladb.core.query.algebra.vector.TopKHeap;
 import org.vanilladb.core.server.VanillaDb;
 import org.vanilladb.core.sql.BigIntConstant;
 import org.vanilladb.core.sql.Constant;
+import org.vanilladb.core.sql.DoubleConstant;
 import org.vanilladb.core.sql.IntegerConstant;
+import org.vanilladb.core.sql.Record;
 import org.vanilladb.core.sql.Schema;
+import org.vanilladb.core.sql.distfn.EuclideanFn;
 import org.vanilladb.core.storage.buffer.Buffer;
 import org.vanilladb.core.storage.file.BlockId;
 import org.vanilladb.core.storage.index.Index;
+import org.vanilladb.core.storage.index.IndexType;
 import org.vanilladb.core.storage.index.SearchKey;
 import org.vanilladb.core.storage.index.SearchKeyType;
 import org.vanilladb.core.storage.index.SearchRange;
+import org.vanilladb.core.storage.index.btree.BTreeIndex;
 import org.vanilladb.core.storage.metadata.TableInfo;
 import org.vanilladb.core.storage.metadata.index.IndexInfo;
+import org.vanilladb.core.storage.record.FileHeaderPage;
 import org.vanilladb.core.storage.record.RecordFile;
 import org.vanilladb.core.storage.record.RecordId;
 import org.vanilladb.core.storage.record.RecordPage;
+import org.vanilladb.core.storage.record.VectorColumnFile;
 import org.vanilladb.core.storage.tx.Transaction;
 import org.vanilladb.core.util.CoreProperties;
 
 import org.vanilladb.core.sql.VectorConstant;
-import org.vanilladb.core.sql.distfn.EuclideanFn;
 
 import java.util.Comparator;
 import java.util.List;
@@ -51,7 +59,13 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 import java.util.Comparator;
+import java.util.Arrays;
 import java.util.HashMap;
 import org.vanilladb.core.query.algebra.MultiTableScan;
 
@@ -63,20 +77,117 @@ public class IVFIndex extends Index {
 
     private static final String centroidTableName = "siftCentroid",
             clusterTableName = "siftCluster",
-            centroidTablefldName = "sift_idx";
-
+            codebookTableName = "siftCodebook",
+            centroidTablefldName = "sift_idx",
+            centroidTableRadiusFldName = "radius",
+            centroidTableClusterFldName = "cluster",
+            codebookTablefldName = "codeword";
+
+    // fields of the cluster tables: the data record ID, which addresses an
+    // entry on deletion, and in PQ mode the codes in place of the vector
+    private static final String SCHEMA_RID_BLOCK = "block", SCHEMA_RID_ID = "id",
+            SCHEMA_CODE = "code";
+
+    private static final int DIMENSION = 128;
     private static final int NUM_CLUSTERS;
     private static final int NUM_CLUSTERS_PROBE;
+    /**
+     * The number of clusters a search may probe beyond NUM_CLUSTERS_PROBE when
+     * their radii say they might hold records closer than those found.
+     */
+    private static final int MAX_CLUSTERS_PROBE;
+
+    /**
+     * The number of one-byte codes stored per vector in the cluster tables.
+     * Zero keeps the full vectors in the cluster tables.
+     */
+    private static final int PQ_SUBQUANTIZERS;
+    /**
+     * The number of candidates with the closest approximate distances that
+     * are handed to the caller for re-ranking on the exact vectors.
+     */
+    private static final int PQ_RERANK_SIZE;
+    private static final int PQ_TRAIN_SIZE;
+    private static final int PQ_TRAIN_ITERATIONS = 20;
+    private static final int PQ_RERANK_FACTOR = 4;
+    private static final int BUILD_BATCH_SIZE = 8192;
+
+    /**
+     * The maximum number of vectors sampled from the data table to train the
+     * centroids on, the number of vectors per mini-batch (0 runs full Lloyd's
+     * iterations instead), and the maximum number of iterations.
+     */
+    private static final int KMEANS_TRAIN_SIZE;
+    private static final int KMEANS_BATCH_SIZE;
+    private static final int KMEANS_ITERATIONS;
+
+    /**
+     * The number of records inserted into an index after which its clusters
+     * are rebalanced in the background, or 0 to never rebalance. Rebalancing
+     * also saves the radii widened by the insertions, which are otherwise
+     * kept in memory only. A cluster holding more than SPLIT_FACTOR times the
+     * average number of entries is split in two, and one holding less than
+     * 1/MERGE_FACTOR of the average is merged into the others, up to
+     * MAX_REBALANCE_STEPS clusters at a time.
+     */
+    private static final int REBALANCE_THRESHOLD;
+    private static final int SPLIT_FACTOR;
+    private static final int MERGE_FACTOR;
+    private static final int MAX_REBALANCE_STEPS;
 
     static {
         NUM_CLUSTERS = CoreProperties.getLoader().getPropertyAsInteger(
                 IVFIndex.class.getName() + ".NUM_CLUSTERS", 9);
         NUM_CLUSTERS_PROBE = CoreProperties.getLoader().getPropertyAsInteger(
                 IVFIndex.class.getName() + ".NUM_CLUSTERS_PROBE", 9);
+        MAX_CLUSTERS_PROBE = CoreProperties.getLoader().getPropertyAsInteger(
+                IVFIndex.class.getName() + ".MAX_CLUSTERS_PROBE", NUM_CLUSTERS_PROBE);
+        PQ_SUBQUANTIZERS = CoreProperties.getLoader().getPropertyAsInteger(
+                IVFIndex.class.getName() + ".PQ_SUBQUANTIZERS", 0);
+        PQ_RERANK_SIZE = CoreProperties.getLoader().getPropertyAsInteger(
+                IVFIndex.class.getName() + ".PQ_RERANK_SIZE", 100);
+        PQ_TRAIN_SIZE = CoreProperties.getLoader().getPropertyAsInteger(
+                IVFIndex.class.getName() + ".PQ_TRAIN_SIZE", 20000);
+        KMEANS_TRAIN_SIZE = CoreProperties.getLoader().getPropertyAsInteger(
+                IVFIndex.class.getName() + ".KMEANS_TRAIN_SIZE", 262144);
+        KMEANS_BATCH_SIZE = CoreProperties.getLoader().getPropertyAsInteger(
+                IVFIndex.class.getName() + ".KMEANS_BATCH_SIZE", 10000);
+        KMEANS_ITERATIONS = CoreProperties.getLoader().getPropertyAsInteger(
+                IVFIndex.class.getName() + ".KMEANS_ITERATIONS", 100);
+        REBALANCE_THRESHOLD = CoreProperties.getLoader().getPropertyAsInteger(
+                IVFIndex.class.getName() + ".REBALANCE_THRESHOLD", 10000);
+        SPLIT_FACTOR = CoreProperties.getLoader().getPropertyAsInteger(
+                IVFIndex.class.getName() + ".SPLIT_FACTOR", 2);
+        MERGE_FACTOR = CoreProperties.getLoader().getPropertyAsInteger(
+                IVFIndex.class.getName() + ".MERGE_FACTOR", 10);
+        MAX_REBALANCE_STEPS = CoreProperties.getLoader().getPropertyAsInteger(
+                IVFIndex.class.getName() + ".MAX_REBALANCE_STEPS", 8);
     }
 
+    /**
+     * Estimates the number of blocks a search reads from the cluster tables,
+     * assuming the entries are spread evenly over NUM_CLUSTERS clusters. The
+     * centroids are cached in memory and not counted.
+     */
     public static long searchCost(SearchKeyType keyType, long totRecs, long matchRecs) {
-        return 1;
+        int rpb = Buffer.BUFFER_SIZE / RecordPage.slotSize(clusterSchema(keyType));
+        double blocksPerCluster = Math.ceil((double) totRecs / NUM_CLUSTERS / rpb);
+        return (long) (Math.min(NUM_CLUSTERS_PROBE, NUM_CLUSTERS) * blocksPerCluster);
+    }
+
+    /**
+     * Returns the number of clusters an unfiltered search probes at least.
+     */
+    public static int numProbes() {
+        return NUM_CLUSTERS_PROBE;
+    }
+
+    /**
+     * Returns the number of candidates a search for {@code k} neighbors
+     * yields in PQ mode for re-ranking on the exact vectors.
+     */
+    public static int rerankSize(int k) {
+        return Math.max(PQ_RERANK_SIZE, PQ_RERANK_FACTOR * k);
     }
 
     /**
@@ -89,10 +200,31 @@ public class IVFIndex extends Index {
      */
 
     private RecordFile rf;
+    // the B-tree that maps the ID of a data record to the cluster of its
+    // entry and the ordinal of the entry in the cluster table
+    private IndexInfo ridIi;
+    private int entriesPerBlock;
     private static boolean inited = false;
     private static boolean insertable = false;
     private TableScan selected_ts;
-    private static Comparator<siftRecord> comp = new siftRecordComparator();
+
+    // the centroids of each index, keyed by index name; dropped on retraining
+    private static final Map<String, CentroidSet> centroidCache = new ConcurrentHashMap<>();
+
+    // the centroids written by a rebalancing transaction that has yet to be
+    // committed, keyed by index name
+    private static final Map<String, CentroidSet> pendingCentroids = new ConcurrentHashMap<>();
+
+    // the records inserted into each index since it was last rebalanced, and
+    // the indexes being rebalanced
+    private static final Map<String, AtomicInteger> insertCounts = new ConcurrentHashMap<>();
+    private static final Set<String> rebalancing = ConcurrentHashMap.newKeySet();
+
+    // PQ mode: the trained quantizer of each index, keyed by index name, and
+    // the candidates found by beforeFirst()
+    private static final Map<String, ProductQuantizer> quantizers = new ConcurrentHashMap<>();
+    private List<RecordId> candidates;
+    private int candidatePos;
 
     /**
      * Opens a hash index for the specified index.
@@ -106,12 +238,15 @@ public class IVFIndex extends Index {
      */
     public IVFIndex(IndexInfo ii, SearchKeyType keyType, Transaction tx) {
         super(ii, keyType, tx);
-
+        ridIi = new IndexInfo(ii.indexName() + "_ivfrid", ii.tableName(),
+                Arrays.asList(SCHEMA_RID_BLOCK, SCHEMA_RID_ID), IndexType.BTREE);
+        entriesPerBlock = RecordPage.slotsPerBlock(clusterSchema(keyType));
     }
 
     @Override // 優化到可以一次全load進BufferPool時可以用
     public void preLoadToMemory() {
-        for (int i = 0; i < NUM_CLUSTERS; i++) {
+        int numClusters = getCentroids().size();
+        for (int i = 0; i < numClusters; i++) {
             String tblname = clusterTableName + "_" + String.valueOf(i) + ".tbl";
             long size = fileSize(tblname);
             BlockId blk;
@@ -130,90 +265,198 @@ public class IVFIndex extends Index {
     @Override
     public void beforeFirst(VectorConstant query) {
 
-        close();
-
-        getCentroidTable();
-
-        double min_val = Double.MAX_VALUE;
-        int min_idx = -1;
-        EuclideanFn distFn = new EuclideanFn("i_imb");
-        distFn.setQueryVector(query);
-
-        int idx = 0;
-
-        rf.beforeFirst();
-        while (this.rf.next()) {
-            VectorConstant centriod = (VectorConstant) this.rf.getVal(centroidTablefldName);
-            double dist = distFn.distance(centriod);
-            if (dist < min_val) {
-                min_val = dist;
-                min_idx = idx;
-            }
-            idx++;
+        if (isCompressed()) {
+            searchCompressed(query, PQ_RERANK_SIZE);
+            return;
         }
 
+        int min_idx = getCentroids().nearest(query.asJavaVal());
+
         selected_ts = new TableScan(getClusterTableInfo(min_idx), tx);
         close();
     }
 
-    // 用於 PriorityQueue 的 element
-    static class siftRecord {
-        siftRecord(int idx, double dist) {
-            this.idx = idx;
-            this.dist = dist;
-        }
+    // 和TopKPlan.open()的做法一樣，尋找前NUM_CLUSTERS_PROBE個近的centroid，並回傳對應的NUM_CLUSTERS_PROBE個clusters的table合起來的MultiTableScan()
+    public MultiTableScan OpenTopk(VectorConstant query) {
+        List<TableInfo> ti = probedClusters(query);
+        return new MultiTableScan(ti, tx, ti.size());
+    }
 
-        int idx;
-        double dist;
+    /**
+     * Returns the metadata of the NUM_CLUSTERS_PROBE cluster tables whose
+     * centroids are closest to the query, closest first.
+     */
+    public List<TableInfo> probedClusters(VectorConstant query) {
+        int[] probes = getCentroids().nearest(query.asJavaVal(), NUM_CLUSTERS_PROBE);
+        List<TableInfo> ti = new ArrayList<>(probes.length);
+        for (int probe : probes)
+            ti.add(getClusterTableInfo(probe));
+        return ti;
     }
 
-    // 用於 PriorityQueue 的 Comparator， dist愈小，優先級越小
-    static class siftRecordComparator implements Comparator<siftRecord> {
-        public int compare(siftRecord r1, siftRecord r2) {
-            int result = Double.compare(r1.dist, r2.dist);
-            if (result != 0)
-                return -result;
-            else
-                return 0;
+    /**
+     * Returns the clusters a search for the query may probe, with the lower
+     * bounds on the distance between the query and their members: the
+     * NUM_CLUSTERS_PROBE clusters whose centroids are closest to the query,
+     * closest first, followed by up to MAX_CLUSTERS_PROBE - NUM_CLUSTERS_PROBE
+     * others in ascending order of their bounds.
+     */
+    public ClusterProbe probe(VectorConstant query) {
+        return probe(query, MAX_CLUSTERS_PROBE);
+    }
 
+    /**
+     * Returns the clusters a search for the query may probe, the same as
+     * {@link #probe(VectorConstant)} but with up to {@code maxProbes} clusters
+     * in all. A filtered search passes a larger number to keep probing until
+     * it finds enough matching records.
+     */
+    public ClusterProbe probe(VectorConstant query, int maxProbes) {
+        float[] q = query.asJavaVal();
+        CentroidSet centroids = getCentroids();
+        float[] dists = centroids.distances(q);
+        maxProbes = Math.min(Math.max(maxProbes, NUM_CLUSTERS_PROBE), centroids.size());
+        int[] nearest = centroids.nearest(q, maxProbes);
+        int numProbes = Math.min(NUM_CLUSTERS_PROBE, nearest.length);
+
+        TopKHeap extras = new TopKHeap(-1);
+        float[] bounds = new float[nearest.length];
+        for (int i = 0; i < nearest.length; i++) {
+            int c = nearest[i];
+            bounds[i] = Math.max(0f, (float) Math.sqrt(dists[c]) - centroids.radius(c));
+            if (i >= numProbes)
+                extras.offer(c, bounds[i]);
         }
+        extras.sort();
+
+        List<TableInfo> clusters = new ArrayList<>(nearest.length);
+        for (int i = 0; i < numProbes; i++)
+            clusters.add(getClusterTableInfo(nearest[i]));
+        for (int i = 0; i < extras.size(); i++) {
+            clusters.add(getClusterTableInfo(extras.id(i)));
+            bounds[numProbes + i] = extras.distance(i);
+        }
+        return new ClusterProbe(clusters, bounds, numProbes, dataFileName);
     }
 
-    // 和TopKPlan.open()的做法一樣，尋找前NUM_CLUSTERS_PROBE個近的centroid，並回傳對應的NUM_CLUSTERS_PROBE個clusters的table合起來的MultiTableScan()
-    public MultiTableScan OpenTopk(VectorConstant query) {
-        // CLUSTER_PROBE_NUMS
-        int limit = NUM_CLUSTERS_PROBE;
-        PriorityQueue<siftRecord> pq = new PriorityQueue<>(limit,
-                (siftRecord r1, siftRecord r2) -> comp.compare(r1, r2));
-
-        close();
+    /**
+     * Returns the ID of the data record of the current entry of a cluster
+     * scan.
+     */
+    public RecordId dataRecordId(Record entry) {
+        return dataRecordId(entry, dataFileName);
+    }
 
-        getCentroidTable();
+    static RecordId dataRecordId(Record entry, String dataFileName) {
+        long blkNum = (Long) entry.getVal(SCHEMA_RID_BLOCK).asJavaVal();
+        int id = (Integer) entry.getVal(SCHEMA_RID_ID).asJavaVal();
+        return new RecordId(new BlockId(dataFileName, blkNum), id);
+    }
 
-        EuclideanFn distFn = new EuclideanFn("i_imb");
-        distFn.setQueryVector(query);
+    /**
+     * In PQ mode, widens the candidates for re-ranking to a few times
+     * {@code k} when PQ_RERANK_SIZE is not enough for that, since the
+     * approximate distances misorder close neighbors.
+     *
+     * @see Index#beforeFirst(VectorConstant, int)
+     */
+    @Override
+    public void beforeFirst(VectorConstant query, int k) {
+        if (isCompressed())
+            searchCompressed(query, rerankSize(k));
+        else
+            beforeFirst(query);
+    }
 
-        int idx = 0;
+    /**
+     * Returns true if the cluster tables keep product-quantized codes instead
+     * of the vectors. In that case the index is searched through
+     * {@link #beforeFirst(VectorConstant)}, which yields the record IDs of the
+     * candidates in the data table, rather than through {@link #OpenTopk}.
+     */
+    public boolean isCompressed() {
+        return PQ_SUBQUANTIZERS > 0;
+    }
 
-        rf.beforeFirst();
-        while (this.rf.next()) {
-            VectorConstant centriod = (VectorConstant) this.rf.getVal(centroidTablefldName);
-            double dist = distFn.distance(centriod);
+    /**
+     * Returns the number of clusters, or zero if the index is not built yet.
+     */
+    public int numClusters() {
+        return isBuilt() ? getCentroids().size() : 0;
+    }
 
-            siftRecord rec = new siftRecord(idx, dist);
-            pq.add(rec);
-            if (pq.size() > limit)
-                pq.poll();
-            idx++;
+    /**
+     * Returns the number of blocks in all the cluster tables. The file sizes
+     * are read without locking them, which is good enough for statistics.
+     */
+    public long clusterBlocks() {
+        long blocks = 0;
+        int numClusters = numClusters();
+        for (int c = 0; c < numClusters; c++) {
+            // the first block of a table holds its file header
+            long size = VanillaDb.fileMgr().size(getClusterTableInfo(c).fileName());
+            blocks += Math.max(size - 1, 0);
         }
+        return blocks;
+    }
 
-        Object[] recArr = pq.toArray();
-        List<TableInfo> ti = new ArrayList<>();
-        for (int i = 0; i < limit; i++) {
-            ti.add(getClusterTableInfo(((siftRecord) recArr[i]).idx));
+    /**
+     * Probes the clusters closest to the query, ranks their members by the
+     * asymmetric distance between the query and their codes, and keeps the
+     * {@code rerankSize} best as candidates. The caller re-ranks the
+     * candidates on the exact vectors of the data table.
+     */
+    private void searchCompressed(VectorConstant query, int rerankSize) {
+        ProductQuantizer pq = getQuantizer();
+        float[] q = query.asJavaVal();
+        CentroidSet centroids = getCentroids();
+        int[] probes = centroids.nearest(q, NUM_CLUSTERS_PROBE);
+
+        // a max-heap of the best candidates seen so far
+        PriorityQueue<PqCandidate> heap = new PriorityQueue<>(rerankSize + 1,
+                (PqCandidate a, PqCandidate b) -> Float.compare(b.dist, a.dist));
+        float[] residual = new float[q.length];
+        long[] words = new long[ProductQuantizer.numWords(PQ_SUBQUANTIZERS)];
+        for (int probe : probes) {
+            centroids.residual(q, probe, residual);
+            float[] table = pq.lookupTable(residual);
+
+            close();
+            rf = getClusterTableInfo(probe).open(tx, false);
+            rf.beforeFirst();
+            while (rf.next()) {
+                for (int w = 0; w < words.length; w++)
+                    words[w] = (Long) rf.getVal(SCHEMA_CODE + w).asJavaVal();
+                float dist = pq.distance(table, words);
+                if (heap.size() < rerankSize || dist < heap.peek().dist) {
+                    long blkNum = (Long) rf.getVal(SCHEMA_RID_BLOCK).asJavaVal();
+                    int id = (Integer) rf.getVal(SCHEMA_RID_ID).asJavaVal();
+                    heap.add(new PqCandidate(blkNum, id, dist));
+                    if (heap.size() > rerankSize)
+                        heap.poll();
+                }
+            }
         }
         close();
-        return new MultiTableScan(ti, tx, limit);
+
+        candidates = new ArrayList<>(heap.size());
+        while (!heap.isEmpty()) {
+            PqCandidate cand = heap.poll();
+            candidates.add(new RecordId(new BlockId(dataFileName, cand.blkNum), cand.id));
+        }
+        candidatePos = -1;
+    }
+
+    private static class PqCandidate {
+        long blkNum;
+        int id;
+        float dist;
+
+        PqCandidate(long blkNum, int id, float dist) {
+            this.blkNum = blkNum;
+            this.id = id;
+            this.dist = dist;
+        }
     }
 
     @Override
@@ -228,9 +471,11 @@ public class IVFIndex extends Index {
      */
     @Override
     public boolean next() {
-        throw new IllegalStateException("You must call beforeFirst() before iterating index '"
-                + ii.indexName() + "'");
-
+        if (candidates == null)
+            throw new IllegalStateException("You must call beforeFirst() before iterating index '"
+                    + ii.indexName() + "'");
+        candidatePos++;
+        return candidatePos < candidates.size();
     }
 
     /**
@@ -240,81 +485,220 @@ public class IVFIndex extends Index {
      */
     @Override
     public RecordId getDataRecordId() {
-        throw new RuntimeException("cannot go here");
+        if (candidates == null)
+            throw new RuntimeException("cannot go here");
+        return candidates.get(candidatePos);
     }
 
     /**
-     * Inserts a new index record into this index.
+     * Inserts the vector of a data record whose vector was updated. The i_id
+     * kept alongside the vector is read from the data record.
      * 
      * @see Index#insert(SearchKey, RecordId, boolean)
      */
     @Override
     public void insert(SearchKey key, RecordId dataRecordId, boolean doLogicalLogging) {
+        if (tx.isReadOnly())
+            throw new UnsupportedOperationException();
+        if (!isBuilt())
+            return;
+        close();
+        RecordFile dataRf = openDataFile();
+        dataRf.moveToRecordId(dataRecordId);
+        Constant id = dataRf.getVal("i_id").castTo(INTEGER);
+        dataRf.close();
+        insertEntry((VectorConstant) key.get(0), id, dataRecordId, doLogicalLogging);
     }
 
     // 在 benchmark 時， 將 vec 插入對應的 cluster
     // fldValMap 存要 insert 的 record 的資料 (用fldName access)
-    public void insertRecord(Map<String, Constant> fldValMap) {
-
-        // 檢查是在 loadtestbed or benchmark (loadtestbed 的話就不要insert)
-        if (!inited) {
-            inited = true;
-            TableInfo ti = getClusterTableInfo(0);
+    // dataRecordId 是該 record 在主 table 的位置
+    public void insertRecord(Map<String, Constant> fldValMap, RecordId dataRecordId) {
 
-            this.rf = ti.open(tx, false);
+        if (tx.isReadOnly())
+            throw new UnsupportedOperationException();
 
-            if (rf.fileSize() == 0) {
-                insertable = false;
-            } else {
-                insertable = true;
-            }
-            return;
-        } else if (!insertable) {
+        // 檢查是在 loadtestbed or benchmark (loadtestbed 的話就不要insert)
+        if (!isBuilt())
             return;
-        }
 
         // 取出要 insert 的 vector 和 id
         VectorConstant vec = (VectorConstant) fldValMap.get("i_emb");
-        IntegerConstant id = (IntegerConstant) fldValMap.get("i_id");
+        Constant id = fldValMap.get("i_id").castTo(INTEGER);
 
-        // 找到對應的 cluster table (loop through 找最近的)
-        getCentroidTable();
-        double min_val = Double.MAX_VALUE;
-        int min_idx = -1;
-        EuclideanFn distFn = new EuclideanFn("i_imb");
-        distFn.setQueryVector(vec);
+        close();
+        insertEntry(vec, id, dataRecordId, true);
+    }
 
-        int idx = 0;
-        rf.beforeFirst();
-        while (this.rf.next()) {
-            VectorConstant centriod = (VectorConstant) this.rf.getVal(centroidTablefldName);
-            double dist = distFn.distance(centriod);
-            if (dist < min_val) {
-                min_val = dist;
-                min_idx = idx;
-            }
-            idx++;
+    /**
+     * Returns true if the clusters have been built, before which records are
+     * not indexed one by one but bulk loaded by {@link #buildIndex()}.
+     */
+    private boolean isBuilt() {
+        if (!inited) {
+            inited = true;
+            insertable = fileSize(getClusterTableInfo(0).fileName()) > 0;
         }
-        close();
+        return insertable;
+    }
 
-        this.rf = getClusterTableInfo(min_idx).open(tx, false);
+    /**
+     * Inserts an entry into the cluster of the centroid closest to its vector.
+     * As in the other indexes, the cluster record is logged physically, and
+     * the whole insertion is undone logically by deleting the entry.
+     */
+    private void insertEntry(VectorConstant vec, Constant id, RecordId dataRecordId,
+            boolean doLogicalLogging) {
+        // 找到對應的 cluster table (最近的 centroid)
+        CentroidSet centroids = lockCentroids(false);
+        int min_idx = centroids.nearest(vec.asJavaVal());
+
+        // log the logical operation starts
+        if (doLogicalLogging)
+            tx.recoveryMgr().logLogicalStart();
+
+        if (isCompressed()) {
+            insertCode(centroids, min_idx, vec.asJavaVal(), dataRecordId);
+        } else {
+            this.rf = getClusterTableInfo(min_idx).open(tx, true);
+
+            // insert 到對應的 cluster table
+            rf.insert();
+            rf.setVal("i_emb", vec);
+            rf.setVal("i_id", id);
+            rf.setVal(SCHEMA_RID_BLOCK, new BigIntConstant(dataRecordId.block().number()));
+            rf.setVal(SCHEMA_RID_ID, new IntegerConstant(dataRecordId.id()));
+            RecordId entryRid = rf.currentRecordId();
+            close();
+            insertRidEntry(dataRecordId, min_idx, entryRid);
+        }
+        growRadius(centroids, min_idx, vec.asJavaVal());
 
-        // insert 到對應的 cluster table
-        rf.insert();
-        rf.setVal("i_emb", vec);
-        rf.setVal("i_id", id);
-        close();
+        // log the logical operation ends
+        if (doLogicalLogging)
+            tx.recoveryMgr().logIndexInsertionEnd(ii.indexName(), new SearchKey(vec),
+                    dataRecordId.block().number(), dataRecordId.id());
+        countInsert();
+    }
+
+    /**
+     * Widens the radius of a cluster to cover a new member in the cached
+     * centroids only, which {@link #rebalance()} saves later in the
+     * background. A radius is an upper bound, so one widened by an insertion
+     * that is rolled back stays correct.
+     */
+    private void growRadius(CentroidSet centroids, int cluster, float[] vec) {
+        centroids.growRadius(cluster, centroids.distance(vec, cluster));
     }
 
     /**
-     * Deletes the specified index record.
+     * Schedules a {@link ClusterRebalanceTask} once REBALANCE_THRESHOLD
+     * records have been inserted since the index was last rebalanced, which
+     * also saves the radii widened by the insertions.
+     */
+    private void countInsert() {
+        if (REBALANCE_THRESHOLD <= 0)
+            return;
+        String indexName = ii.indexName();
+        AtomicInteger count = insertCounts.computeIfAbsent(indexName, n -> new AtomicInteger());
+        if (count.incrementAndGet() >= REBALANCE_THRESHOLD && rebalancing.add(indexName)) {
+            count.set(0);
+            VanillaDb.taskMgr().runTask(new ClusterRebalanceTask(ii));
+        }
+    }
+
+    /**
+     * Ends the rebalancing of the specified index after its transaction has
+     * committed or rolled back. The centroids it wrote are cached only if it
+     * has committed; otherwise the table is back to the cached ones.
+     */
+    static void rebalanced(String indexName, boolean committed) {
+        CentroidSet centroids = pendingCentroids.get(indexName);
+        if (committed && centroids != null)
+            centroidCache.put(indexName, centroids);
+        // cache first, so that an update that sees no pending centroids
+        // never sees the stale ones
+        pendingCentroids.remove(indexName);
+        rebalancing.remove(indexName);
+    }
+
+    /**
+     * Deletes the entry of the specified data record from its cluster, in
+     * place. The entry is found by a single lookup of the data record ID in
+     * the B-tree that maps it to the cluster and the slot of the entry. The
+     * freed slot is reused by later inserts into the cluster.
      * 
      * @see Index#delete(SearchKey, RecordId, boolean)
      */
     @Override
     public void delete(SearchKey key, RecordId dataRecordId, boolean doLogicalLogging) {
-        // search the position
-        throw new RuntimeException("public void delete");
+        if (tx.isReadOnly())
+            throw new UnsupportedOperationException();
+        if (!isBuilt())
+            return;
+        close();
+        // keep the entry from being moved by a rebalancing
+        lockCentroids(false);
+
+        // log the logical operation starts
+        if (doLogicalLogging)
+            tx.recoveryMgr().logLogicalStart();
+
+        SearchKey ridKey = ridKey(dataRecordId);
+        BTreeIndex ridIdx = openRidIndex();
+        ridIdx.beforeFirst(new SearchRange(ridKey));
+        if (ridIdx.next()) {
+            RecordId ref = ridIdx.getDataRecordId();
+            int cluster = (int) ref.block().number();
+            rf = getClusterTableInfo(cluster).open(tx, true);
+            rf.moveToRecordId(entryRecordId(cluster, ref.id()));
+            rf.delete();
+            close();
+            ridIdx.delete(ridKey, ref, false);
+        }
+        ridIdx.close();
+
+        // log the logical operation ends
+        if (doLogicalLogging)
+            tx.recoveryMgr().logIndexDeletionEnd(ii.indexName(), key,
+                    dataRecordId.block().number(), dataRecordId.id());
+    }
+
+    /**
+     * Returns the B-tree that maps the ID of a data record to its entry. In
+     * place of a data record ID, the B-tree keeps the cluster number as the
+     * block number and the ordinal of the entry in the cluster table as the
+     * slot.
+     */
+    private BTreeIndex openRidIndex() {
+        return new BTreeIndex(ridIi, new SearchKeyType(BIGINT, INTEGER), tx);
+    }
+
+    private static SearchKey ridKey(RecordId dataRecordId) {
+        return new SearchKey(new BigIntConstant(dataRecordId.block().number()),
+                new IntegerConstant(dataRecordId.id()));
+    }
+
+    private RecordId ridEntry(int cluster, RecordId entryRid) {
+        int ordinal = (int) (entryRid.block().number() - 1) * entriesPerBlock + entryRid.id();
+        return new RecordId(new BlockId(dataFileName, cluster), ordinal);
+    }
+
+    private RecordId entryRecordId(int cluster, int ordinal) {
+        return new RecordId(new BlockId(getClusterTableInfo(cluster).fileName(),
+                1 + ordinal / entriesPerBlock), ordinal % entriesPerBlock);
+    }
+
+    private void insertRidEntry(RecordId dataRecordId, int cluster, RecordId entryRid) {
+        BTreeIndex ridIdx = openRidIndex();
+        ridIdx.insert(ridKey(dataRecordId), ridEntry(cluster, entryRid), false);
+        ridIdx.close();
+    }
+
+    private void deleteRidEntry(RecordId dataRecordId, int cluster, RecordId entryRid) {
+        BTreeIndex ridIdx = openRidIndex();
+        ridIdx.delete(ridKey(dataRecordId), ridEntry(cluster, entryRid), false);
+        ridIdx.close();
     }
 
     /**
@@ -334,15 +718,625 @@ public class IVFIndex extends Index {
     }
 
     public void createCentroidTable(List<VectorConstant> vectors) {
+        createCentroidTable(vectors, null);
+    }
+
+    /**
+     * Stores the centroids along with the radii of their clusters. A null
+     * {@code radii} leaves the clusters unbounded. Each centroid is stored
+     * with the number of its cluster, since deleted slots are reused out of
+     * order.
+     */
+    public void createCentroidTable(List<VectorConstant> vectors, float[] radii) {
 
         // this.rf = CentroidTable 的 RecordFile
         getCentroidTable();
 
-        for (int i = 0; i < vectors.size(); i++) {
+        // overwrite the centroids of a previous training in place
+        boolean[] written = new boolean[vectors.size()];
+        rf.beforeFirst();
+        while (rf.next()) {
+            int c = (Integer) rf.getVal(centroidTableClusterFldName).asJavaVal();
+            if (c < vectors.size() && !written[c]) {
+                setCentroid(c, vectors.get(c), radii);
+                written[c] = true;
+            } else
+                rf.delete();
+        }
+        for (int c = 0; c < vectors.size(); c++) {
+            if (written[c])
+                continue;
             rf.insert();
-            rf.setVal(centroidTablefldName, vectors.get(i));
+            rf.setVal(centroidTableClusterFldName, new IntegerConstant(c));
+            setCentroid(c, vectors.get(c), radii);
+        }
+    }
+
+    private void setCentroid(int cluster, VectorConstant vector, float[] radii) {
+        rf.setVal(centroidTablefldName, vector);
+        rf.setVal(centroidTableRadiusFldName, new DoubleConstant(
+                radii == null ? Float.POSITIVE_INFINITY : radii[cluster]));
+    }
+
+    /**
+     * Builds the index over the records already in the data table: trains
+     * NUM_CLUSTERS centroids by k-means on a sample of up to KMEANS_TRAIN_SIZE
+     * vectors, then distributes every record into the cluster of its closest
+     * centroid (training the product quantizer first in PQ mode). Does nothing
+     * if the data table is empty.
+     */
+    public void buildIndex() {
+        Random random = new Random(0);
+        float[][] samples = sampleVectors(KMEANS_TRAIN_SIZE, random);
+        if (samples.length == 0)
+            return;
+        // rebalancing may have changed the number of clusters
+        int numBuilt = getCentroids().size();
+
+        float[][] centroids = new KMeans(NUM_CLUSTERS, KMEANS_ITERATIONS,
+                KMEANS_BATCH_SIZE, random).fit(samples);
+        samples = null;
+        List<VectorConstant> centroidList = new ArrayList<>(centroids.length);
+        for (float[] centroid : centroids)
+            centroidList.add(new VectorConstant(centroid));
+        createCentroidTable(centroidList);
+        close();
+        CentroidSet centroidSet = new CentroidSet(centroids);
+        centroidCache.put(ii.indexName(), centroidSet);
+
+        // empty the clusters of a previous build
+        for (int i = 0; i < Math.max(NUM_CLUSTERS, numBuilt); i++) {
+            getClusterTable(i);
+            rf.beforeFirst();
+            while (rf.next()) {
+                deleteRidEntry(dataRecordId(rf), i, rf.currentRecordId());
+                rf.delete();
+            }
+            close();
+        }
+
+        if (isCompressed())
+            trainQuantizer();
+        float[] radii = loadClusters(centroidSet);
+        createCentroidTable(centroidList, radii);
+        close();
+        centroidCache.put(ii.indexName(), new CentroidSet(centroids, radii));
+
+        // the clusters are ready to take new records
+        inited = true;
+        insertable = true;
+    }
+
+    /**
+     * Returns a uniform sample of at most {@code size} vectors of the data
+     * table, drawn by reservoir sampling in a single scan.
+     */
+    private float[][] sampleVectors(int size, Random random) {
+        List<float[]> samples = new ArrayList<>();
+        int seen = 0;
+        RecordFile dataRf = openDataFile();
+        dataRf.beforeFirst();
+        while (dataRf.next()) {
+            seen++;
+            int slot = seen <= size ? samples.size() : random.nextInt(seen);
+            if (slot < size) {
+                float[] v = ((VectorConstant) dataRf.getVal(ii.fieldNames().get(0))).copy();
+                if (slot == samples.size())
+                    samples.add(v);
+                else
+                    samples.set(slot, v);
+            }
+        }
+        dataRf.close();
+        return samples.toArray(new float[samples.size()][]);
+    }
+
+    /**
+     * Trains the product quantizer on the residuals of a sample of the data
+     * table with respect to their closest centroids, and stores its codebooks.
+     * The centroid table must have been created.
+     */
+    public void trainQuantizer() {
+        CentroidSet centroids = getCentroids();
+
+        Random random = new Random(0);
+        float[][] samples = sampleVectors(PQ_TRAIN_SIZE, random);
+        if (samples.length == 0)
+            throw new IllegalStateException("cannot train the quantizer of index '"
+                    + ii.indexName() + "' on an empty table");
+
+        float[][] residuals = new float[samples.length][];
+        for (int i = 0; i < residuals.length; i++) {
+            residuals[i] = new float[samples[i].length];
+            centroids.residual(samples[i], centroids.nearest(samples[i]), residuals[i]);
+        }
+        ProductQuantizer pq = ProductQuantizer.train(residuals, PQ_SUBQUANTIZERS,
+                PQ_TRAIN_ITERATIONS, random);
+
+        // store the codebooks, one codeword per record
+        close();
+        TableInfo ti = getCodebookTableInfo(pq.subDimension());
+        rf = ti.open(tx, false);
+        if (rf.fileSize() == 0)
+            RecordFile.formatFileHeader(ti.fileName(), tx);
+        rf.beforeFirst();
+        for (int j = 0; j < pq.numSubQuantizers(); j++)
+            for (int c = 0; c < ProductQuantizer.NUM_CODEWORDS; c++) {
+                // overwrite the codebooks of a previous training
+                if (!rf.next())
+                    rf.insert();
+                rf.setVal(codebookTablefldName, new VectorConstant(pq.codeword(j, c)));
+            }
+        close();
+        quantizers.put(ii.indexName(), pq);
+    }
+
+    /**
+     * Bulk loads every record of the data table into the cluster of its
+     * closest centroid (as codes in PQ mode, in which case the quantizer must
+     * have been trained). The data table is scanned once; each batch of
+     * BUILD_BATCH_SIZE records is assigned and encoded in parallel, and the
+     * records of each cluster are written in scan order as full pages through
+     * {@link ClusterPageFormatter}, bypassing per-record inserts and logging.
+     *
+     * @return the radii of the clusters
+     */
+    private float[] loadClusters(CentroidSet centroids) {
+        boolean compressed = isCompressed();
+        ProductQuantizer pq = compressed ? getQuantizer() : null;
+        String[] fields = clusterFields();
+        ClusterWriter[] writers = new ClusterWriter[centroids.size()];
+
+        VectorConstant[] vecs = new VectorConstant[BUILD_BATCH_SIZE];
+        Constant[] ids = new Constant[BUILD_BATCH_SIZE];
+        RecordId[] rids = new RecordId[BUILD_BATCH_SIZE];
+        int[] assign = new int[BUILD_BATCH_SIZE];
+        float[] assignDist = new float[BUILD_BATCH_SIZE];
+        float[] radii = new float[centroids.size()];
+        long[][] codes = new long[BUILD_BATCH_SIZE][];
+
+        RecordFile dataRf = openDataFile();
+        dataRf.beforeFirst();
+        boolean more = true;
+        while (more) {
+            int n = 0;
+            while (n < BUILD_BATCH_SIZE && (more = dataRf.next())) {
+                vecs[n] = (VectorConstant) dataRf.getVal(ii.fieldNames().get(0));
+                rids[n] = dataRf.currentRecordId();
+                if (!compressed)
+                    ids[n] = dataRf.getVal("i_id");
+                n++;
+            }
+
+            IntStream.range(0, n).parallel().forEach(i -> {
+                float[] vec = vecs[i].asJavaVal();
+                int cluster = centroids.nearest(vec);
+                assign[i] = cluster;
+                assignDist[i] = centroids.distance(vec, cluster);
+                if (compressed) {
+                    float[] residual = new float[vec.length];
+                    centroids.residual(vec, cluster, residual);
+                    codes[i] = pq.encode(residual);
+                }
+            });
+
+            for (int i = 0; i < n; i++) {
+                Constant[] rec = new Constant[fields.length];
+                if (compressed) {
+                    rec[0] = new BigIntConstant(rids[i].block().number());
+                    rec[1] = new IntegerConstant(rids[i].id());
+                    for (int w = 0; w < codes[i].length; w++)
+                        rec[2 + w] = new BigIntConstant(codes[i][w]);
+                } else {
+                    rec[0] = ids[i];
+                    rec[1] = vecs[i];
+                    rec[2] = new BigIntConstant(rids[i].block().number());
+                    rec[3] = new IntegerConstant(rids[i].id());
+                }
+                int cluster = assign[i];
+                radii[cluster] = Math.max(radii[cluster], assignDist[i]);
+                if (writers[cluster] == null)
+                    writers[cluster] = new ClusterWriter(cluster, fields);
+                writers[cluster].add(rec);
+            }
+        }
+        dataRf.close();
+
+        for (ClusterWriter writer : writers)
+            if (writer != null)
+                writer.finish();
+        return radii;
+    }
+
+    /**
+     * Appends full pages of records to the end of a cluster table, and points
+     * the tail slot of the file header at the last record written. The entries
+     * are added to the B-tree of data record IDs page by page. Since the
+     * pages are not written through the record pages, the column files copied
+     * from the table are dropped afterwards, to be rebuilt on their next open.
+     */
+    private class ClusterWriter {
+        private int cluster;
+        private TableInfo ti;
+        private String[] fields;
+        private int ridBlockPos, ridIdPos;
+        private int recordsPerPage;
+        private List<Constant[]> pending = new ArrayList<>();
+        private RecordId tailSlot;
+
+        ClusterWriter(int cluster, String[] fields) {
+            this.cluster = cluster;
+            this.ti = getClusterTableInfo(cluster);
+            this.fields = fields;
+            List<String> fieldList = Arrays.asList(fields);
+            ridBlockPos = fieldList.indexOf(SCHEMA_RID_BLOCK);
+            ridIdPos = fieldList.indexOf(SCHEMA_RID_ID);
+            this.recordsPerPage = ClusterPageFormatter.recordsPerPage(ti);
+            tx.concurrencyMgr().modifyFile(ti.fileName());
+            if (VanillaDb.fileMgr().size(ti.fileName()) == 0)
+                RecordFile.formatFileHeader(ti.fileName(), tx);
+        }
+
+        void add(Constant[] rec) {
+            pending.add(rec);
+            if (pending.size() == recordsPerPage)
+                writePage();
+        }
+
+        void finish() {
+            if (!pending.isEmpty())
+                writePage();
+            if (tailSlot != null) {
+                FileHeaderPage fhp = new FileHeaderPage(ti.fileName(), tx);
+                fhp.setTailSlot(tailSlot);
+                fhp.close();
+            }
+            VectorColumnFile.remove(ti.fileName());
+        }
+
+        private void writePage() {
+            Buffer buff = tx.bufferMgr().pinNew(ti.fileName(),
+                    new ClusterPageFormatter(ti, fields, pending));
+            tx.concurrencyMgr().insertBlock(buff.block());
+            tailSlot = new RecordId(buff.block(), pending.size() - 1);
+            tx.bufferMgr().unpin(buff);
+
+            BTreeIndex ridIdx = openRidIndex();
+            for (int i = 0; i < pending.size(); i++) {
+                Constant[] rec = pending.get(i);
+                RecordId dataRecordId = new RecordId(new BlockId(dataFileName,
+                        (Long) rec[ridBlockPos].asJavaVal()), (Integer) rec[ridIdPos].asJavaVal());
+                ridIdx.insert(ridKey(dataRecordId),
+                        ridEntry(cluster, new RecordId(buff.block(), i)), false);
+            }
+            ridIdx.close();
+            pending = new ArrayList<>(recordsPerPage);
+        }
+    }
+
+    private void insertCode(CentroidSet centroids, int cluster, float[] vec, RecordId dataRecordId) {
+        float[] residual = new float[vec.length];
+        centroids.residual(vec, cluster, residual);
+        long[] words = getQuantizer().encode(residual);
+
+        rf = getClusterTableInfo(cluster).open(tx, true);
+        rf.insert();
+        rf.setVal(SCHEMA_RID_BLOCK, new BigIntConstant(dataRecordId.block().number()));
+        rf.setVal(SCHEMA_RID_ID, new IntegerConstant(dataRecordId.id()));
+        for (int w = 0; w < words.length; w++)
+            rf.setVal(SCHEMA_CODE + w, new BigIntConstant(words[w]));
+        RecordId entryRid = rf.currentRecordId();
+        close();
+        insertRidEntry(dataRecordId, cluster, entryRid);
+    }
+
+    /**
+     * Splits the oversized clusters and merges the tiny ones, one cluster per
+     * step, until every cluster is within bounds or MAX_REBALANCE_STEPS steps
+     * have been taken. Each step moves the affected entries between the
+     * cluster tables. The centroid table is then rewritten once, along with
+     * the radii widened by the insertions since it was last written.
+     * Throughout, the calling transaction holds an exclusive lock on the
+     * centroid table, which every update of the index waits on before it
+     * consults the centroids. All changes are logged. The cached centroids
+     * are replaced only once the transaction commits, by
+     * {@link #rebalanced(String, boolean)}, so they stay those in the table
+     * should the rebalancing be rolled back.
+     */
+    public void rebalance() {
+        close();
+        CentroidSet centroidSet = lockCentroids(true);
+        List<float[]> centroids = new ArrayList<>(centroidSet.size());
+        List<Float> radii = new ArrayList<>(centroidSet.size());
+        List<Integer> sizes = new ArrayList<>(centroidSet.size());
+        long total = 0;
+        for (int c = 0; c < centroidSet.size(); c++) {
+            centroids.add(centroidSet.centroid(c));
+            radii.add(centroidSet.radius(c));
+            int size = countEntries(c);
+            sizes.add(size);
+            total += size;
+        }
+
+        for (int step = 0; step < MAX_REBALANCE_STEPS && !centroids.isEmpty(); step++) {
+            double average = (double) total / centroids.size();
+            int largest = 0, smallest = 0;
+            for (int c = 1; c < sizes.size(); c++) {
+                if (sizes.get(c) > sizes.get(largest))
+                    largest = c;
+                if (sizes.get(c) < sizes.get(smallest))
+                    smallest = c;
+            }
+            if (sizes.get(largest) > SPLIT_FACTOR * average) {
+                if (!split(largest, centroids, radii, sizes))
+                    break;
+            } else if (centroids.size() > 1 && (double) sizes.get(smallest) * MERGE_FACTOR < average)
+                merge(smallest, centroids, radii, sizes);
+            else
+                break;
+        }
+        saveCentroids(centroids, radii);
+    }
+
+    /**
+     * Splits a cluster by 2-means on its entries. The entries closer to the
+     * second centroid move to a new cluster appended to the others.
+     *
+     * @return false if the entries cannot be told apart
+     */
+    private boolean split(int cluster, List<float[]> centroids, List<Float> radii,
+            List<Integer> sizes) {
+        float[][] vecs = readVectors(cluster);
+        if (vecs.length < 2)
+            return false;
+        float[][] halves = new KMeans(2, KMEANS_ITERATIONS, new Random(cluster)).fit(vecs);
+        CentroidSet halfSet = new CentroidSet(halves);
+        int newCluster = centroids.size();
+        int[] targets = new int[vecs.length];
+        int moved = 0;
+        for (int i = 0; i < vecs.length; i++) {
+            targets[i] = halfSet.nearest(vecs[i]) == 0 ? cluster : newCluster;
+            if (targets[i] == newCluster)
+                moved++;
+        }
+        if (moved == 0 || moved == vecs.length)
+            return false;
+
+        centroids.set(cluster, halves[0]);
+        centroids.add(halves[1]);
+        radii.set(cluster, 0f);
+        radii.add(0f);
+        sizes.set(cluster, vecs.length - moved);
+        sizes.add(moved);
+        moveEntries(cluster, vecs, targets, centroids, radii);
+        return true;
+    }
+
+    /**
+     * Moves the entries of a cluster to the clusters of their closest other
+     * centroids. The last cluster then takes the place of the emptied one, so
+     * that the clusters stay numbered from 0.
+     */
+    private void merge(int cluster, List<float[]> centroids, List<Float> radii,
+            List<Integer> sizes) {
+        float[][] vecs = readVectors(cluster);
+        CentroidSet centroidSet = new CentroidSet(centroids.toArray(new float[centroids.size()][]));
+        int[] targets = new int[vecs.length];
+        for (int i = 0; i < vecs.length; i++) {
+            float[] dists = centroidSet.distances(vecs[i]);
+            int best = -1;
+            for (int c = 0; c < dists.length; c++)
+                if (c != cluster && (best < 0 || dists[c] < dists[best]))
+                    best = c;
+            targets[i] = best;
+            sizes.set(best, sizes.get(best) + 1);
+        }
+        moveEntries(cluster, vecs, targets, centroids, radii);
+
+        int last = centroids.size() - 1;
+        if (cluster != last) {
+            centroids.set(cluster, centroids.get(last));
+            radii.set(cluster, radii.get(last));
+            sizes.set(cluster, sizes.get(last));
+            float[][] lastVecs = readVectors(last);
+            int[] lastTargets = new int[lastVecs.length];
+            Arrays.fill(lastTargets, cluster);
+            moveEntries(last, lastVecs, lastTargets, centroids, radii);
+        }
+        centroids.remove(last);
+        radii.remove(last);
+        sizes.remove(last);
+    }
+
+    /**
+     * Moves the entries of a cluster, visited in scan order, to the specified
+     * target clusters, widening the radii of the targets to cover them, and
+     * points their data records at their new places. In PQ
+     * mode, the entries are encoded against the centroids of their targets,
+     * including those staying, whose centroid may have moved.
+     *
+     * @param vecs
+     *                the vectors of the entries, as read by
+     *                {@link #readVectors(int)}
+     */
+    private void moveEntries(int cluster, float[][] vecs, int[] targets, List<float[]> centroids,
+            List<Float> radii) {
+        boolean compressed = isCompressed();
+        ProductQuantizer pq = compressed ? getQuantizer() : null;
+        float[] residual = new float[DIMENSION];
+        Map<Integer, RecordFile> dstRfs = new HashMap<>();
+        RecordFile srcRf = getClusterTableInfo(cluster).open(tx, true);
+        srcRf.beforeFirst();
+        for (int i = 0; srcRf.next(); i++) {
+            int target = targets[i];
+            float dist = distance(vecs[i], centroids.get(target));
+            if (dist > radii.get(target))
+                radii.set(target, dist);
+            RecordFile dstRf = srcRf;
+            if (target != cluster) {
+                dstRf = dstRfs.computeIfAbsent(target, this::openClusterTable);
+                dstRf.insert();
+                dstRf.setVal(SCHEMA_RID_BLOCK, srcRf.getVal(SCHEMA_RID_BLOCK));
+                dstRf.setVal(SCHEMA_RID_ID, srcRf.getVal(SCHEMA_RID_ID));
+                if (!compressed) {
+                    dstRf.setVal("i_id", srcRf.getVal("i_id"));
+                    dstRf.setVal("i_emb", srcRf.getVal("i_emb"));
+                }
+                // point the data record at the moved entry
+                RecordId dataRecordId = dataRecordId(srcRf);
+                deleteRidEntry(dataRecordId, cluster, srcRf.currentRecordId());
+                insertRidEntry(dataRecordId, target, dstRf.currentRecordId());
+            }
+            if (compressed) {
+                float[] centroid = centroids.get(target);
+                for (int d = 0; d < residual.length; d++)
+                    residual[d] = vecs[i][d] - centroid[d];
+                long[] words = pq.encode(residual);
+                for (int w = 0; w < words.length; w++)
+                    dstRf.setVal(SCHEMA_CODE + w, new BigIntConstant(words[w]));
+            }
+            if (target != cluster)
+                srcRf.delete();
         }
+        srcRf.close();
+        for (RecordFile dstRf : dstRfs.values())
+            dstRf.close();
+    }
+
+    /**
+     * Returns the vectors of the entries of a cluster in scan order. In PQ
+     * mode, they are read from the data table.
+     */
+    private float[][] readVectors(int cluster) {
+        List<float[]> vecs = new ArrayList<>();
+        RecordFile dataRf = isCompressed() ? openDataFile() : null;
+        RecordFile clusterRf = getClusterTableInfo(cluster).open(tx, true);
+        clusterRf.beforeFirst();
+        while (clusterRf.next()) {
+            if (dataRf == null) {
+                vecs.add(((VectorConstant) clusterRf.getVal("i_emb")).copy());
+            } else {
+                long blkNum = (Long) clusterRf.getVal(SCHEMA_RID_BLOCK).asJavaVal();
+                int id = (Integer) clusterRf.getVal(SCHEMA_RID_ID).asJavaVal();
+                dataRf.moveToRecordId(new RecordId(new BlockId(dataFileName, blkNum), id));
+                vecs.add(((VectorConstant) dataRf.getVal(ii.fieldNames().get(0))).copy());
+            }
+        }
+        clusterRf.close();
+        if (dataRf != null)
+            dataRf.close();
+        return vecs.toArray(new float[vecs.size()][]);
+    }
 
+    private int countEntries(int cluster) {
+        RecordFile clusterRf = getClusterTableInfo(cluster).open(tx, true);
+        int count = 0;
+        clusterRf.beforeFirst();
+        while (clusterRf.next())
+            count++;
+        clusterRf.close();
+        return count;
+    }
+
+    private void saveCentroids(List<float[]> centroids, List<Float> radii) {
+        List<VectorConstant> vectors = new ArrayList<>(centroids.size());
+        float[] radiusArray = new float[radii.size()];
+        for (int c = 0; c < centroids.size(); c++) {
+            vectors.add(new VectorConstant(centroids.get(c)));
+            radiusArray[c] = radii.get(c);
+        }
+        createCentroidTable(vectors, radiusArray);
+        close();
+        pendingCentroids.put(ii.indexName(), new CentroidSet(
+                centroids.toArray(new float[centroids.size()][]), radiusArray));
+    }
+
+    private static float distance(float[] a, float[] b) {
+        return (float) Math.sqrt(EuclideanFn.squaredDistance(a, 0, b, 0, a.length,
+                Float.POSITIVE_INFINITY));
+    }
+
+    private RecordFile openDataFile() {
+        TableInfo ti = VanillaDb.catalogMgr().getTableInfo(ii.tableName(), tx);
+        return ti.open(tx, true);
+    }
+
+    /**
+     * Locks the centroid table before returning the centroids of this index.
+     * The updates of the index share the lock, and {@link #rebalance()} takes
+     * it exclusively, so that an update never sees the clusters being moved.
+     * The centroids are read from the table again if a rebalancing has ended
+     * without updating the cache yet.
+     */
+    private CentroidSet lockCentroids(boolean exclusive) {
+        if (exclusive)
+            tx.concurrencyMgr().modifyFile(getCentroidTableInfo().fileName());
+        else
+            tx.concurrencyMgr().readFile(getCentroidTableInfo().fileName());
+        // a rebalancing that has released the lock but is yet to update the
+        // cache has either committed or rolled back the table
+        if (pendingCentroids.containsKey(ii.indexName()))
+            centroidCache.remove(ii.indexName());
+        return getCentroids();
+    }
+
+    /**
+     * Returns the centroids of this index, reading them from the centroid
+     * table only if they are not cached yet. A search takes no lock on the
+     * table, so as not to block rebalancing until it commits; it probes the
+     * clusters by the centroids cached when it starts.
+     */
+    private CentroidSet getCentroids() {
+        CentroidSet centroids = centroidCache.get(ii.indexName());
+        if (centroids != null)
+            return centroids;
+
+        close();
+        getCentroidTable();
+        Map<Integer, float[]> vectors = new HashMap<>();
+        Map<Integer, Float> radii = new HashMap<>();
+        rf.beforeFirst();
+        while (rf.next()) {
+            int c = (Integer) rf.getVal(centroidTableClusterFldName).asJavaVal();
+            vectors.put(c, ((VectorConstant) rf.getVal(centroidTablefldName)).copy());
+            radii.put(c, ((Double) rf.getVal(centroidTableRadiusFldName).asJavaVal()).floatValue());
+        }
+        close();
+        // the clusters are numbered from 0 in the order of the centroids
+        float[][] vectorArray = new float[vectors.size()][];
+        float[] radiusArray = new float[vectors.size()];
+        for (int c = 0; c < vectorArray.length; c++) {
+            vectorArray[c] = vectors.get(c);
+            radiusArray[c] = radii.get(c);
+        }
+        centroids = new CentroidSet(vectorArray, radiusArray);
+        centroidCache.put(ii.indexName(), centroids);
+        return centroids;
+    }
+
+    private ProductQuantizer getQuantizer() {
+        ProductQuantizer pq = quantizers.get(ii.indexName());
+        if (pq != null)
+            return pq;
+
+        int subDim = DIMENSION / PQ_SUBQUANTIZERS;
+        float[][][] codebooks = new float[PQ_SUBQUANTIZERS][ProductQuantizer.NUM_CODEWORDS][];
+        close();
+        rf = getCodebookTableInfo(subDim).open(tx, false);
+        rf.beforeFirst();
+        int n = 0;
+        while (rf.next() && n < PQ_SUBQUANTIZERS * ProductQuantizer.NUM_CODEWORDS) {
+            codebooks[n / ProductQuantizer.NUM_CODEWORDS][n % ProductQuantizer.NUM_CODEWORDS] =
+                    ((VectorConstant) rf.getVal(codebookTablefldName)).copy();
+            n++;
+        }
+        close();
+        if (n < PQ_SUBQUANTIZERS * ProductQuantizer.NUM_CODEWORDS)
+            throw new IllegalStateException("the quantizer of index '"
+                    + ii.indexName() + "' has not been trained");
+        pq = new ProductQuantizer(codebooks);
+        quantizers.put(ii.indexName(), pq);
+        return pq;
     }
 
     public void createClusterTable(List<IntegerConstant> ids, List<VectorConstant> vectors, int id) {
@@ -362,34 +1356,77 @@ public class IVFIndex extends Index {
     }
 
     private void getClusterTable(int id) {
+        this.rf = openClusterTable(id);
+    }
+
+    private RecordFile openClusterTable(int id) {
 
         TableInfo ti = getClusterTableInfo(id);
-        this.rf = ti.open(tx, false);
+        RecordFile clusterRf = ti.open(tx, true);
 
-        if (rf.fileSize() == 0)
+        if (clusterRf.fileSize() == 0)
             RecordFile.formatFileHeader(ti.fileName(), tx);
+        return clusterRf;
+    }
+
+    /**
+     * Returns the fields of the cluster tables in the order used by the bulk
+     * loader.
+     */
+    private String[] clusterFields() {
+        if (!isCompressed())
+            return new String[] { "i_id", "i_emb", SCHEMA_RID_BLOCK, SCHEMA_RID_ID };
+        int numWords = ProductQuantizer.numWords(PQ_SUBQUANTIZERS);
+        String[] fields = new String[2 + numWords];
+        fields[0] = SCHEMA_RID_BLOCK;
+        fields[1] = SCHEMA_RID_ID;
+        for (int w = 0; w < numWords; w++)
+            fields[2 + w] = SCHEMA_CODE + w;
+        return fields;
     }
 
     private TableInfo getClusterTableInfo(int id) {
         String tblname = clusterTableName + "_" + String.valueOf(id);
+        return new TableInfo(tblname, clusterSchema(keyType));
+    }
 
+    private static Schema clusterSchema(SearchKeyType keyType) {
         Schema sch = new Schema();
-        sch.addField("i_id", INTEGER);
-        sch.addField("i_emb", VECTOR(128));
-        TableInfo ti = new TableInfo(tblname, sch);
-        return ti;
+        if (PQ_SUBQUANTIZERS > 0) {
+            sch.addField(SCHEMA_RID_BLOCK, BIGINT);
+            sch.addField(SCHEMA_RID_ID, INTEGER);
+            for (int w = 0; w < ProductQuantizer.numWords(PQ_SUBQUANTIZERS); w++)
+                sch.addField(SCHEMA_CODE + w, BIGINT);
+        } else {
+            sch.addField("i_id", INTEGER);
+            // the vectors are kept in the stored form of the indexed field
+            sch.addField("i_emb", keyType.get(0));
+            sch.addField(SCHEMA_RID_BLOCK, BIGINT);
+            sch.addField(SCHEMA_RID_ID, INTEGER);
+        }
+        return sch;
     }
 
-    private void getCentroidTable() {
-
-        String tblname = centroidTableName;
-        String fldName = centroidTablefldName;
+    private TableInfo getCodebookTableInfo(int subDim) {
+        Schema sch = new Schema();
+        sch.addField(codebookTablefldName, VECTOR(subDim));
+        // each index keeps its own codebooks
+        return new TableInfo(codebookTableName + "_" + ii.indexName(), sch);
+    }
 
+    private TableInfo getCentroidTableInfo() {
         Schema sch = new Schema();
-        sch.addField(fldName, VECTOR(128));
-        TableInfo ti = new TableInfo(tblname, sch);
+        sch.addField(centroidTableClusterFldName, INTEGER);
+        sch.addField(centroidTablefldName, VECTOR(DIMENSION));
+        sch.addField(centroidTableRadiusFldName, DOUBLE);
+        return new TableInfo(centroidTableName, sch);
+    }
+
+    private void getCentroidTable() {
+
+        TableInfo ti = getCentroidTableInfo();
 
-        this.rf = ti.open(tx, false);
+        this.rf = ti.open(tx, true);
 
         if (rf.fileSize() == 0)
             RecordFile.formatFileHeader(ti.fileName(), tx);
@@ -0,0 +1,217 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.storage.index.ivf;
+
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import org.vanilladb.core.sql.distfn.EuclideanFn;
+
+/**
+ * A k-means trainer over in-memory float vectors. Centroids are seeded by
+ * k-means++ and refined either by Lloyd's iterations over all vectors or, if a
+ * batch size is given, by mini-batch k-means. Assigning vectors to centroids,
+ * which dominates the cost, runs in parallel on the common fork-join pool with
+ * SIMD distance kernels.
+ */
+public class KMeans {
+
+    private final int k, iterations, batchSize;
+    private final Random random;
+
+    /**
+     * Creates a trainer running Lloyd's iterations.
+     *
+     * @param k
+     *            the number of clusters
+     * @param iterations
+     *            the maximum number of iterations
+     * @param random
+     *            the source of randomness for seeding
+     */
+    public KMeans(int k, int iterations, Random random) {
+        this(k, iterations, 0, random);
+    }
+
+    /**
+     * Creates a trainer running mini-batch k-means if {@code batchSize} is
+     * positive and smaller than the training set, or Lloyd's iterations
+     * otherwise.
+     *
+     * @param k
+     *            the number of clusters
+     * @param iterations
+     *            the maximum number of iterations (batches)
+     * @param batchSize
+     *            the number of vectors per mini-batch
+     * @param random
+     *            the source of randomness for seeding and sampling
+     */
+    public KMeans(int k, int iterations, int batchSize, Random random) {
+        this.k = k;
+        this.iterations = iterations;
+        this.batchSize = batchSize;
+        this.random = random;
+    }
+
+    /**
+     * Clusters the specified vectors and returns the centroids. If there are
+     * fewer vectors than clusters, the remaining centroids duplicate existing
+     * ones.
+     *
+     * @param data
+     *            the vectors to cluster, all of the same dimension
+     * @return k centroids
+     */
+    public float[][] fit(float[][] data) {
+        float[][] centroids = seed(data);
+        if (batchSize > 0 && batchSize < data.length)
+            miniBatch(data, centroids);
+        else
+            lloyd(data, centroids);
+        return centroids;
+    }
+
+    /**
+     * Picks the initial centroids by k-means++: each next centroid is drawn
+     * with probability proportional to its squared distance to the closest
+     * centroid picked so far.
+     */
+    private float[][] seed(float[][] data) {
+        int n = data.length;
+        float[][] centroids = new float[k][];
+        centroids[0] = data[random.nextInt(n)].clone();
+        float[] minDist = new float[n];
+        IntStream.range(0, n).parallel().forEach(
+                i -> minDist[i] = squaredDistance(centroids[0], data[i], 0, data[i].length));
+
+        for (int c = 1; c < k; c++) {
+            double total = 0;
+            for (int i = 0; i < n; i++)
+                total += minDist[i];
+
+            int pick = n - 1;
+            if (total > 0) {
+                double target = random.nextDouble() * total;
+                for (int i = 0; i < n; i++) {
+                    target -= minDist[i];
+                    if (target < 0) {
+                        pick = i;
+                        break;
+                    }
+                }
+            } else
+                pick = random.nextInt(n);
+            float[] centroid = data[pick].clone();
+            centroids[c] = centroid;
+
+            IntStream.range(0, n).parallel().forEach(i -> {
+                float dist = squaredDistance(centroid, data[i], 0, data[i].length);
+                if (dist < minDist[i])
+                    minDist[i] = dist;
+            });
+        }
+        return centroids;
+    }
+
+    private void lloyd(float[][] data, float[][] centroids) {
+        int n = data.length, dim = data[0].length;
+        int[] assign = new int[n];
+        for (int iter = 0; iter < iterations; iter++) {
+            boolean first = iter == 0;
+            boolean changed = IntStream.range(0, n).parallel().map(i -> {
+                int best = nearest(centroids, data[i]);
+                if (best == assign[i] && !first)
+                    return 0;
+                assign[i] = best;
+                return 1;
+            }).sum() > 0;
+            if (!changed)
+                break;
+
+            float[][] sums = new float[k][dim];
+            int[] counts = new int[k];
+            for (int i = 0; i < n; i++) {
+                float[] sum = sums[assign[i]];
+                float[] v = data[i];
+                for (int d = 0; d < dim; d++)
+                    sum[d] += v[d];
+                counts[assign[i]]++;
+            }
+            for (int c = 0; c < k; c++) {
+                if (counts[c] == 0) {
+                    // re-seed an empty cluster with a random point
+                    centroids[c] = data[random.nextInt(n)].clone();
+                    continue;
+                }
+                for (int d = 0; d < dim; d++)
+                    centroids[c][d] = sums[c][d] / counts[c];
+            }
+        }
+    }
+
+    /**
+     * Runs mini-batch k-means: each iteration assigns a random batch to the
+     * current centroids and moves each centroid toward its members with a
+     * per-centroid learning rate of 1 / (number of members seen so far).
+     */
+    private void miniBatch(float[][] data, float[][] centroids) {
+        int n = data.length, dim = data[0].length;
+        int[] batch = new int[batchSize];
+        int[] assign = new int[batchSize];
+        long[] counts = new long[k];
+        for (int iter = 0; iter < iterations; iter++) {
+            for (int b = 0; b < batchSize; b++)
+                batch[b] = random.nextInt(n);
+            IntStream.range(0, batchSize).parallel().forEach(
+                    b -> assign[b] = nearest(centroids, data[batch[b]]));
+
+            for (int b = 0; b < batchSize; b++) {
+                int c = assign[b];
+                counts[c]++;
+                float eta = 1.0f / counts[c];
+                float[] centroid = centroids[c];
+                float[] v = data[batch[b]];
+                for (int d = 0; d < dim; d++)
+                    centroid[d] += eta * (v[d] - centroid[d]);
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the centroid closest to the specified vector.
+     */
+    public static int nearest(float[][] centroids, float[] v) {
+        int best = 0;
+        float bestDist = Float.MAX_VALUE;
+        for (int c = 0; c < centroids.length; c++) {
+            float dist = EuclideanFn.squaredDistance(centroids[c], 0, v, 0, v.length, bestDist);
+            if (dist < bestDist) {
+                bestDist = dist;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the squared Euclidean distance between {@code a} and the
+     * sub-vector {@code b[from, from + len)}.
+     */
+    static float squaredDistance(float[] a, float[] b, int from, int len) {
+        return EuclideanFn.squaredDistance(a, 0, b, from, len, Float.POSITIVE_INFINITY);
+    }
+}
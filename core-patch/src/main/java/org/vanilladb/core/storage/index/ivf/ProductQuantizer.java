@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.storage.index.ivf;
+
+import java.util.Random;
+
+/**
+ * A product quantizer that splits a vector into {@code m} sub-vectors and
+ * encodes each of them as the one-byte index of its closest codeword. Codes
+ * are packed eight per {@code long} so that they can be stored in BIGINT
+ * fields.
+ *
+ * <p>
+ * Distances between a query and encoded vectors are computed asymmetrically:
+ * {@link #lookupTable(float[])} precomputes the squared distance between each
+ * query sub-vector and every codeword once, after which
+ * {@link #distance(float[], long[])} costs {@code m} table lookups.
+ * </p>
+ */
+public class ProductQuantizer {
+
+    public static final int NUM_CODEWORDS = 256;
+
+    private static final int CODES_PER_WORD = Long.BYTES;
+
+    private final int m, subDim;
+    private final float[][][] codebooks;
+
+    /**
+     * Returns the number of {@code long} words needed for {@code m} codes.
+     */
+    public static int numWords(int m) {
+        return (m + CODES_PER_WORD - 1) / CODES_PER_WORD;
+    }
+
+    /**
+     * Trains a product quantizer on the specified vectors.
+     *
+     * @param data
+     *            the training vectors
+     * @param m
+     *            the number of sub-quantizers, which must divide the dimension
+     * @param iterations
+     *            the maximum number of k-means iterations per sub-quantizer
+     * @param random
+     *            the source of randomness for seeding k-means
+     */
+    public static ProductQuantizer train(float[][] data, int m, int iterations, Random random) {
+        int dim = data[0].length;
+        if (dim % m != 0)
+            throw new IllegalArgumentException("the dimension " + dim
+                    + " is not divisible by " + m + " sub-quantizers");
+        int subDim = dim / m;
+        float[][][] codebooks = new float[m][][];
+        float[][] sub = new float[data.length][subDim];
+        KMeans kmeans = new KMeans(NUM_CODEWORDS, iterations, random);
+        for (int j = 0; j < m; j++) {
+            for (int i = 0; i < data.length; i++)
+                System.arraycopy(data[i], j * subDim, sub[i], 0, subDim);
+            codebooks[j] = kmeans.fit(sub);
+        }
+        return new ProductQuantizer(codebooks);
+    }
+
+    /**
+     * Creates a product quantizer from trained codebooks.
+     *
+     * @param codebooks
+     *            the codewords indexed by sub-quantizer and code
+     */
+    public ProductQuantizer(float[][][] codebooks) {
+        this.codebooks = codebooks;
+        this.m = codebooks.length;
+        this.subDim = codebooks[0][0].length;
+    }
+
+    public int numSubQuantizers() {
+        return m;
+    }
+
+    public int subDimension() {
+        return subDim;
+    }
+
+    public float[] codeword(int sub, int code) {
+        return codebooks[sub][code];
+    }
+
+    /**
+     * Encodes the specified vector into packed codes.
+     */
+    public long[] encode(float[] vec) {
+        long[] words = new long[numWords(m)];
+        for (int j = 0; j < m; j++) {
+            float[][] book = codebooks[j];
+            int best = 0;
+            float bestDist = Float.MAX_VALUE;
+            for (int c = 0; c < book.length; c++) {
+                float dist = KMeans.squaredDistance(book[c], vec, j * subDim, subDim);
+                if (dist < bestDist) {
+                    bestDist = dist;
+                    best = c;
+                }
+            }
+            words[j / CODES_PER_WORD] |= ((long) best) << ((j % CODES_PER_WORD) * Byte.SIZE);
+        }
+        return words;
+    }
+
+    /**
+     * Returns the table of squared distances between each sub-vector of the
+     * query and each codeword, laid out as {@code table[sub * 256 + code]}.
+     */
+    public float[] lookupTable(float[] query) {
+        float[] table = new float[m * NUM_CODEWORDS];
+        for (int j = 0; j < m; j++) {
+            float[][] book = codebooks[j];
+            int base = j * NUM_CODEWORDS;
+            for (int c = 0; c < book.length; c++)
+                table[base + c] = KMeans.squaredDistance(book[c], query, j * subDim, subDim);
+        }
+        return table;
+    }
+
+    /**
+     * Returns the approximate squared distance between the query the table was
+     * built for and the vector encoded as {@code words}.
+     */
+    public float distance(float[] table, long[] words) {
+        float sum = 0;
+        for (int j = 0; j < m; j++) {
+            int code = (int) (words[j / CODES_PER_WORD] >>> ((j % CODES_PER_WORD) * Byte.SIZE)) & 0xFF;
+            sum += table[j * NUM_CODEWORDS + code];
+        }
+        return sum;
+    }
+}
@@ -18,6 +18,8 @@ package org.vanilladb.core.storage.log;
 import static org.vanilladb.core.sql.Type.INTEGER;
 import static org.vanilladb.core.storage.file.Page.BLOCK_SIZE;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -36,6 +38,14 @@ import org.vanilladb.core.util.CoreProperties;
  * string values. The log manager does not understand the meaning of these
  * values, which are written and read by the
  * {@link org.vanilladb.core.storage.tx.recovery.RecoveryMgr recovery manager}.
+ * 
+ * <p>
+ * With group commit, a flush request waits for a dedicated flusher thread
+ * instead of writing the log page by itself. The flusher writes the page once
+ * for all the requests made before it starts, optionally waiting up to
+ * {@link #GROUP_COMMIT_MAX_DELAY} microseconds for more requests to join, so
+ * the concurrent committing transactions share one synchronous write.
+ * </p>
  */
 public class LogMgr implements Iterable<BasicLogRecord> {
 	/**
@@ -45,19 +55,48 @@ public class LogMgr implements Iterable<BasicLogRecord> {
 	public static final int LAST_POS = 0;
 	public static final String DEFAULT_LOG_FILE;
 
+	/**
+	 * Whether the flush requests are grouped and served by a flusher thread.
+	 */
+	public static final boolean GROUP_COMMIT;
+
+	/**
+	 * The longest time, in microseconds, the flusher waits for more flush
+	 * requests to join a write.
+	 */
+	public static final long GROUP_COMMIT_MAX_DELAY;
+
 	// Optimization: store the size of pointer to other log record
 	private int pointerSize = Page.maxSize(INTEGER);
 	private Page myPage = new Page();
 	private BlockId currentBlk;
 	private int currentPos;
 	private LogSeqNum lastLsn = LogSeqNum.DEFAULT_VALUE;
-	private LogSeqNum lastFlushedLsn = LogSeqNum.DEFAULT_VALUE;
+	private volatile LogSeqNum lastFlushedLsn = LogSeqNum.DEFAULT_VALUE;
 
 	private final Lock logMgrLock = new ReentrantLock();
 
+	// Group commit: a request joins the group of requests served by the next
+	// write the flusher starts, and learns the outcome of that write only.
+	private static class FlushGroup {
+		boolean done;
+		RuntimeException failure;
+	}
+
+	private final Lock groupLock = new ReentrantLock();
+	private final Condition flushRequested = groupLock.newCondition();
+	private final Condition flushDone = groupLock.newCondition();
+	private FlushGroup nextGroup;
+	private boolean closed;
+	private Thread flusher;
+
 	static {
 		DEFAULT_LOG_FILE = CoreProperties.getLoader().getPropertyAsString(LogMgr.class.getName() + ".LOG_FILE",
 				"vanilladb.log");
+		GROUP_COMMIT = CoreProperties.getLoader().getPropertyAsBoolean(LogMgr.class.getName() + ".GROUP_COMMIT",
+				false);
+		GROUP_COMMIT_MAX_DELAY = CoreProperties.getLoader()
+				.getPropertyAsLong(LogMgr.class.getName() + ".GROUP_COMMIT_MAX_DELAY", 0);
 	}
 	
 	private String logFile;
@@ -85,6 +124,17 @@ public class LogMgr implements Iterable<BasicLogRecord> {
 			myPage.read(currentBlk);
 			currentPos = getLastRecordPosition() + pointerSize * 2;
 		}
+
+		if (GROUP_COMMIT) {
+			flusher = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					flushInGroups();
+				}
+			}, "LogFlusher");
+			flusher.setDaemon(true);
+			flusher.start();
+		}
 	}
 
 	/**
@@ -95,6 +145,14 @@ public class LogMgr implements Iterable<BasicLogRecord> {
 	 *            the LSN of a log record
 	 */
 	public void flush(LogSeqNum lsn) {
+		if (GROUP_COMMIT) {
+			// Optimization: skip the flusher if the record is on disk
+			if (lsn.compareTo(lastFlushedLsn) < 0)
+				return;
+			waitForGroupFlush();
+			return;
+		}
+
 		logMgrLock.lock();
 		try {
 			if (lsn.compareTo(lastFlushedLsn) >= 0)
@@ -104,6 +162,101 @@ public class LogMgr implements Iterable<BasicLogRecord> {
 		}
 	}
 
+	/**
+	 * Joins the next write of the flusher, and waits until it is done.
+	 */
+	private void waitForGroupFlush() {
+		groupLock.lock();
+		try {
+			if (nextGroup == null) {
+				nextGroup = new FlushGroup();
+				flushRequested.signal();
+			}
+			FlushGroup group = nextGroup;
+			while (!group.done)
+				flushDone.awaitUninterruptibly();
+			if (group.failure != null)
+				throw group.failure;
+		} finally {
+			groupLock.unlock();
+		}
+	}
+
+	/**
+	 * Runs the flusher, which writes the log page whenever a write is
+	 * requested, serving all the requests made before the write starts. A
+	 * failed write fails only the requests it serves; the flusher goes on to
+	 * serve the later ones. It stops once {@link #close()} is called.
+	 */
+	private void flushInGroups() {
+		while (true) {
+			FlushGroup group;
+			groupLock.lock();
+			try {
+				while (nextGroup == null && !closed)
+					flushRequested.awaitUninterruptibly();
+				if (nextGroup == null)
+					return;
+
+				// let more requests join the write
+				if (GROUP_COMMIT_MAX_DELAY > 0) {
+					long nanos = TimeUnit.MICROSECONDS.toNanos(GROUP_COMMIT_MAX_DELAY);
+					while (nanos > 0 && !closed)
+						try {
+							nanos = flushDone.awaitNanos(nanos);
+						} catch (InterruptedException e) {
+							break;
+						}
+				}
+				group = nextGroup;
+				nextGroup = null;
+			} finally {
+				groupLock.unlock();
+			}
+
+			RuntimeException failure = null;
+			logMgrLock.lock();
+			try {
+				flush();
+			} catch (RuntimeException e) {
+				failure = e;
+			} finally {
+				logMgrLock.unlock();
+			}
+
+			groupLock.lock();
+			try {
+				group.failure = failure;
+				group.done = true;
+				flushDone.signalAll();
+			} finally {
+				groupLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Stops the flusher thread of group commit, once it has served the
+	 * requests made so far. The log manager must not be used afterwards.
+	 */
+	public void close() {
+		if (flusher == null)
+			return;
+		groupLock.lock();
+		try {
+			closed = true;
+			flushRequested.signal();
+		} finally {
+			groupLock.unlock();
+		}
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flusher = null;
+	}
+
 	/**
 	 * Returns an iterator for the log records, which will be returned in
 	 * reverse order starting with the most recent.
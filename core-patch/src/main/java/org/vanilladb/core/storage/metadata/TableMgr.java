@@ -15,6 +15,7 @@
  *******************************************************************************/
 package org.vanilladb.core.storage.metadata;
 
+import static org.vanilladb.core.sql.Type.DOUBLE;
 import static org.vanilladb.core.sql.Type.INTEGER;
 import static org.vanilladb.core.sql.Type.VARCHAR;
 
@@ -27,10 +28,12 @@ import java.util.Map;
 import java.util.Set;
 
 import org.vanilladb.core.server.VanillaDb;
+import org.vanilladb.core.sql.DoubleConstant;
 import org.vanilladb.core.sql.IntegerConstant;
 import org.vanilladb.core.sql.Schema;
 import org.vanilladb.core.sql.Type;
 import org.vanilladb.core.sql.VarcharConstant;
+import org.vanilladb.core.sql.VectorType;
 import org.vanilladb.core.storage.metadata.index.IndexInfo;
 import org.vanilladb.core.storage.record.RecordFile;
 import org.vanilladb.core.storage.tx.Transaction;
@@ -61,7 +64,8 @@ public class TableMgr {
 	 */
 	public static final String FCAT_TBLNAME = "tblname",
 			FCAT_FLDNAME = "fldname", FCAT_TYPE = "type",
-			FCAT_TYPEARG = "typearg";
+			FCAT_TYPEARG = "typearg", FCAT_TYPESCALE = "typescale",
+			FCAT_TYPEOFFSET = "typeoffset";
 
 	/**
 	 * The maximum number of characters in any tablename or fieldname.
@@ -98,6 +102,9 @@ public class TableMgr {
 		fcatSchema.addField(FCAT_FLDNAME, VARCHAR(MAX_NAME));
 		fcatSchema.addField(FCAT_TYPE, INTEGER);
 		fcatSchema.addField(FCAT_TYPEARG, INTEGER);
+		// the scale and offset of the codes of a VECTOR_I8 field
+		fcatSchema.addField(FCAT_TYPESCALE, DOUBLE);
+		fcatSchema.addField(FCAT_TYPEOFFSET, DOUBLE);
 		fcatInfo = new TableInfo(FCAT, fcatSchema);
 
 		if (isNew) {
@@ -140,6 +147,13 @@ public class TableMgr {
 					.getSqlType()));
 			fcatfile.setVal(FCAT_TYPEARG, new IntegerConstant(sch.type(fldname)
 					.getArgument()));
+			double scale = 1, offset = 0;
+			if (sch.type(fldname) instanceof VectorType) {
+				scale = ((VectorType) sch.type(fldname)).scale();
+				offset = ((VectorType) sch.type(fldname)).offset();
+			}
+			fcatfile.setVal(FCAT_TYPESCALE, new DoubleConstant(scale));
+			fcatfile.setVal(FCAT_TYPEOFFSET, new DoubleConstant(offset));
 		}
 		fcatfile.close();
 	}
@@ -240,7 +254,15 @@ public class TableMgr {
 				int fldtype = (Integer) fcatfile.getVal(FCAT_TYPE).asJavaVal();
 				int fldarg = (Integer) fcatfile.getVal(FCAT_TYPEARG)
 						.asJavaVal();
-				sch.addField(fldname, Type.newInstance(fldtype, fldarg));
+				Type type = Type.newInstance(fldtype, fldarg);
+				if (fldtype == VectorType.VECTOR_I8) {
+					double scale = (Double) fcatfile.getVal(FCAT_TYPESCALE)
+							.asJavaVal();
+					double offset = (Double) fcatfile.getVal(FCAT_TYPEOFFSET)
+							.asJavaVal();
+					type = Type.VECTOR_I8(fldarg, (float) scale, (float) offset);
+				}
+				sch.addField(fldname, type);
 			}
 		fcatfile.close();
 		// Optimization:
@@ -20,12 +20,17 @@ import static org.vanilladb.core.storage.metadata.TableMgr.TCAT_TBLNAME;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.vanilladb.core.server.VanillaDb;
 import org.vanilladb.core.sql.Schema;
+import org.vanilladb.core.sql.VectorType;
+import org.vanilladb.core.storage.index.IndexType;
+import org.vanilladb.core.storage.index.ivf.IVFIndex;
 import org.vanilladb.core.storage.metadata.TableInfo;
+import org.vanilladb.core.storage.metadata.index.IndexInfo;
 import org.vanilladb.core.storage.record.RecordFile;
 import org.vanilladb.core.storage.tx.Transaction;
 import org.vanilladb.core.util.CoreProperties;
@@ -48,6 +53,8 @@ public class StatMgr {
     private boolean isRefreshStatOn;
     private Map<String, TableStatInfo> tableStats;
     private Map<String, Integer> updateCounts;
+    // the statistics of the vector indexes on each table, keyed by index name
+    private Map<String, Map<String, VectorIndexStatInfo>> indexStats;
 
     static {
         REFRESH_THRESHOLD = CoreProperties.getLoader().getPropertyAsInteger(
@@ -103,6 +110,32 @@ public class StatMgr {
         return tsi;
     }
 
+    /**
+     * Returns the statistical information about the clusters of the specified
+     * vector index, or null if the index is not clustered or not built yet.
+     * The information is calculated on first request and recalculated after
+     * the statistics of the table are refreshed.
+     *
+     * @param ii
+     *            the index's metadata
+     * @param tx
+     *            the calling transaction
+     * @return the statistical information about the index, or null
+     */
+    public VectorIndexStatInfo getVectorIndexStatInfo(IndexInfo ii,
+                                                      Transaction tx) {
+        Map<String, VectorIndexStatInfo> stats = indexStats.computeIfAbsent(
+                ii.tableName(), tblName -> new ConcurrentHashMap<>());
+        VectorIndexStatInfo vsi = stats.get(ii.indexName());
+        if (vsi == null) {
+            // not synchronized, since opening the index may wait for locks
+            vsi = calcVectorIndexStats(ii, tx);
+            if (vsi != null)
+                stats.put(ii.indexName(), vsi);
+        }
+        return vsi;
+    }
+
     public synchronized void countRecordUpdates(String tblName, int count) {
         if (!isRefreshStatOn)
             return;
@@ -123,11 +156,13 @@ public class StatMgr {
         TableInfo ti = VanillaDb.catalogMgr().getTableInfo(tblName, tx);
         TableStatInfo si = calcTableStats(ti, tx);
         tableStats.put(tblName, si);
+        indexStats.remove(tblName);
     }
 
     private synchronized void initStatistics(Transaction tx) {
         updateCounts = new HashMap<String, Integer>();
         tableStats = new HashMap<String, TableStatInfo>();
+        indexStats = new ConcurrentHashMap<String, Map<String, VectorIndexStatInfo>>();
         TableInfo tcatmd = VanillaDb.catalogMgr().getTableInfo(TCAT, tx);
         RecordFile tcatfile = tcatmd.open(tx, true);
         tcatfile.beforeFirst();
@@ -147,19 +182,47 @@ public class StatMgr {
 //		return new TableStatInfo(numblocks, h);
 
         long numblocks = 0;
-        Schema schema = ti.schema();
+        // Vector fields have no order to build buckets on, so only the other
+        // fields are sampled
+        Schema schema = new Schema();
+        for (String fld : ti.schema().fields())
+            if (!(ti.schema().type(fld) instanceof VectorType))
+                schema.addField(fld, ti.schema().type(fld));
         SampledHistogramBuilder hb = new SampledHistogramBuilder(schema);
 
-        // TODO: Figure out a way to build histogram
-        // RecordFile rf = ti.open(tx, true);
-        // rf.beforeFirst();
-        // while (rf.next()) {
-        //     numblocks = rf.currentRecordId().block().number() + 1;
-        //     hb.sample(rf);
-        // }
-        // rf.close();
+        RecordFile rf = ti.open(tx, true);
+        rf.beforeFirst();
+        while (rf.next()) {
+            numblocks = rf.currentRecordId().block().number() + 1;
+            hb.sample(rf);
+        }
+        rf.close();
 
         Histogram h = hb.newMaxDiffHistogram(NUM_BUCKETS, NUM_PERCENTILES);
         return new TableStatInfo(numblocks, h);
     }
+
+    private VectorIndexStatInfo calcVectorIndexStats(IndexInfo ii, Transaction tx) {
+        if (ii.indexType() != IndexType.IVF)
+            return null;
+
+        int numClusters;
+        long numBlocks;
+        IVFIndex idx = (IVFIndex) ii.open(tx);
+        try {
+            numClusters = idx.numClusters();
+            numBlocks = idx.clusterBlocks();
+        } finally {
+            idx.close();
+        }
+        if (numClusters == 0)
+            return null;
+
+        // the entries of an index are as many as the records of its table
+        TableInfo ti = VanillaDb.catalogMgr().getTableInfo(ii.tableName(), tx);
+        double numRecs = getTableStatInfo(ti, tx).histogram().recordsOutput();
+        return new VectorIndexStatInfo(numClusters,
+                Math.min(IVFIndex.numProbes(), numClusters),
+                numRecs / numClusters, (double) numBlocks / numClusters);
+    }
 }
@@ -0,0 +1,83 @@
+/*******************************************************************************
+ * Copyright 2016, 2017 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.storage.metadata.statistics;
+
+/**
+ * Holds statistical information about a clustered vector index.
+ */
+public class VectorIndexStatInfo {
+	private int numClusters, numProbes;
+	private double recsPerCluster, blksPerCluster;
+
+	VectorIndexStatInfo(int numClusters, int numProbes, double recsPerCluster,
+			double blksPerCluster) {
+		this.numClusters = numClusters;
+		this.numProbes = numProbes;
+		this.recsPerCluster = recsPerCluster;
+		this.blksPerCluster = blksPerCluster;
+	}
+
+	/**
+	 * Returns the number of clusters in the index.
+	 * 
+	 * @return the number of clusters
+	 */
+	public int numClusters() {
+		return numClusters;
+	}
+
+	/**
+	 * Returns the number of clusters an unfiltered search probes.
+	 * 
+	 * @return the number of probed clusters
+	 */
+	public int numProbes() {
+		return numProbes;
+	}
+
+	/**
+	 * Returns the estimated average number of entries in a cluster.
+	 * 
+	 * @return the average number of entries in a cluster
+	 */
+	public double recordsPerCluster() {
+		return recsPerCluster;
+	}
+
+	/**
+	 * Returns the estimated average number of blocks in a cluster.
+	 * 
+	 * @return the average number of blocks in a cluster
+	 */
+	public double blocksPerCluster() {
+		return blksPerCluster;
+	}
+
+	/**
+	 * Returns the estimated number of clusters a search has to probe to find
+	 * the specified number of entries, which is at least
+	 * {@link #numProbes()}.
+	 * 
+	 * @param numRecs
+	 *            the number of entries to be found
+	 * @return the number of probed clusters
+	 */
+	public int probesFor(long numRecs) {
+		double needed = recsPerCluster > 0 ? Math.ceil(numRecs / recsPerCluster)
+				: numClusters;
+		return (int) Math.min(Math.max(needed, numProbes), numClusters);
+	}
+}
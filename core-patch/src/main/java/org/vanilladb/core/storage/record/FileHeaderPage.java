@@ -30,6 +30,12 @@ import org.vanilladb.core.storage.tx.Transaction;
 
 /**
  * Manages the placement and access of metadata in the file header.
+ * 
+ * <p>
+ * The header is not locked by this class. Its callers hold the latch returned
+ * by {@link org.vanilladb.core.storage.tx.concurrency.ConcurrencyMgr#getLockForFileHeader(BlockId)}
+ * while they access it, and every modification is logged.
+ * </p>
  */
 public class FileHeaderPage {
 	/**
@@ -145,16 +151,12 @@ public class FileHeaderPage {
 	}
 
 	private Constant getVal(int offset, Type type) {
-		if (!isTempTable())
-			tx.concurrencyMgr().readBlock(blk);
 		return currentBuff.getVal(offset, type);
 	}
 
 	private void setVal(int offset, Constant val) {
 		if (tx.isReadOnly() && !isTempTable())
 			throw new UnsupportedOperationException();
-		if (!isTempTable())
-			tx.concurrencyMgr().modifyBlock(blk);
 		LogSeqNum lsn = tx.recoveryMgr().logSetVal(currentBuff, offset, val);
 		currentBuff.setVal(offset, val, tx.getTransactionNumber(), lsn);
 	}
@@ -21,7 +21,9 @@ import org.vanilladb.core.sql.Constant;
 import org.vanilladb.core.sql.Record;
 import org.vanilladb.core.sql.SchemaIncompatibleException;
 import org.vanilladb.core.sql.Type;
+import org.vanilladb.core.sql.distfn.DistanceFn;
 import org.vanilladb.core.storage.buffer.Buffer;
+import org.vanilladb.core.storage.buffer.BufferMgr;
 import org.vanilladb.core.storage.file.BlockId;
 import org.vanilladb.core.storage.file.Page;
 import org.vanilladb.core.storage.metadata.TableInfo;
@@ -38,6 +40,15 @@ import org.vanilladb.core.storage.tx.Transaction;
  * </p>
  * 
  * <p>
+ * Transactions may insert into the same file at the same time. The free chain
+ * and the tail slot in the header are guarded by the header latch, and every
+ * change to them is logged within the logical operation of the insertion or
+ * deletion, which holds the latch throughout. A transaction never waits for a
+ * lock while it holds the latch: the slot to be filled or freed, and the end
+ * of the file when a block is appended, are locked before the latch is taken.
+ * </p>
+ * 
+ * <p>
  * The {@link #beforeFirst()} method must be called before {@link #next()}.
  * </p>
  */
@@ -49,9 +60,10 @@ public class RecordFile implements Record {
 	private RecordPage rp;
 	private FileHeaderPage fhp;
 	private ReentrantLock fhpLatch;
-	private long currentBlkNum;
+	private long currentBlkNum, startBlkNum = 1, endBlkNum = Long.MAX_VALUE, readAheadBlkNum;
 	private boolean doLog;
 	private boolean isBeforeFirsted;
+	private boolean isSequential;
 
 	/**
 	 * Constructs an object to manage a file of records. If the file does not
@@ -109,6 +121,7 @@ public class RecordFile implements Record {
 	 */
 	public void remove() {
 		close();
+		VectorColumnFile.remove(fileName);
 		VanillaDb.fileMgr().delete(fileName);
 	}
 
@@ -117,9 +130,36 @@ public class RecordFile implements Record {
 	 * at the first record.
 	 */
 	public void beforeFirst() {
+		beforeFirst(1, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Positions the current record so that the calls to method next will only
+	 * visit the records in the blocks from {@code startBlk} (inclusive) to
+	 * {@code endBlk} (exclusive). Used to scan a partition of the file.
+	 * 
+	 * <p>
+	 * If the file has more than {@link BufferMgr#SEQUENTIAL_SCAN_THRESHOLD}
+	 * blocks, the blocks visited by {@link #next()} are pinned as a sequential
+	 * scan, so that they do not push the frequently used blocks out of the
+	 * buffer pool. Once the scan moves past its first block, the next
+	 * {@link BufferMgr#READ_AHEAD_BLOCKS} blocks are read ahead in the
+	 * background.
+	 * </p>
+	 * 
+	 * @param startBlk
+	 *            the first block to visit, which is at least 1
+	 * @param endBlk
+	 *            the block after the last block to visit
+	 */
+	public void beforeFirst(long startBlk, long endBlk) {
 		close();
 		currentBlkNum = 0; // first data block is block 1
+		startBlkNum = startBlk;
+		endBlkNum = endBlk;
 		isBeforeFirsted = true;
+		isSequential = VanillaDb.fileMgr().size(fileName) > BufferMgr.SEQUENTIAL_SCAN_THRESHOLD;
+		readAheadBlkNum = 0;
 	}
 
 	/**
@@ -132,12 +172,12 @@ public class RecordFile implements Record {
 			throw new IllegalStateException("You must call beforeFirst() before iterating table '"
 					+ ti.tableName() + "'");
 		
-		if (currentBlkNum == 0 && !moveTo(1))
+		if (currentBlkNum == 0 && (startBlkNum >= endBlkNum || !moveToInScan(startBlkNum)))
 			return false;
 		while (true) {
 			if (rp.next())
 				return true;
-			if (!moveTo(currentBlkNum + 1))
+			if (currentBlkNum + 1 >= endBlkNum || !moveToInScan(currentBlkNum + 1))
 				return false;
 		}
 	}
@@ -155,6 +195,47 @@ public class RecordFile implements Record {
 		return rp.getVal(fldName);
 	}
 
+	/**
+	 * Returns the distance between the query vector of the specified distance
+	 * function and the vector in its field of the current record.
+	 * 
+	 * @param distFn
+	 *            the distance function holding the query vector
+	 * 
+	 * @return the distance to the vector of the current record
+	 */
+	public double distance(DistanceFn distFn) {
+		return rp.distance(distFn);
+	}
+
+	/**
+	 * Returns the ranking distance between the query vector of the specified
+	 * distance function and the vector in its field of the current record.
+	 * 
+	 * @param distFn
+	 *            the distance function holding the query vector
+	 * @param bound
+	 *            the ranking distance at which the computation may stop
+	 * 
+	 * @return the ranking distance to the vector of the current record
+	 */
+	public double rankingDistance(DistanceFn distFn, double bound) {
+		return rp.rankingDistance(distFn, bound);
+	}
+
+	/**
+	 * Copies the vector in the specified field of the current record into the
+	 * specified array, without creating a constant.
+	 * 
+	 * @param fldName
+	 *            the name of the vector field
+	 * @param dst
+	 *            the array to hold the vector
+	 */
+	public void getVector(String fldName, float[] dst) {
+		rp.getVector(fldName, dst);
+	}
+
 	/**
 	 * Sets a value of the specified field in the current record. The type of
 	 * the value must be equal to that of the specified field.
@@ -184,6 +265,10 @@ public class RecordFile implements Record {
 		if (tx.isReadOnly() && !isTempTable())
 			throw new UnsupportedOperationException();
 		
+		// Lock the record before taking the header latch
+		if (!isTempTable())
+			tx.concurrencyMgr().modifyRecord(currentRecordId());
+		
 		if (fhp == null)
 			fhp = openHeaderForModification();
 		
@@ -227,56 +312,88 @@ public class RecordFile implements Record {
 		if (tx.isReadOnly() && !isTempTable())
 			throw new UnsupportedOperationException();
 
-		// Insertion may change the properties of this file,
-		// so that we need to lock the file.
+		// Other transactions may insert into this file at the same time,
+		// since each inserted slot is locked by itself
 		if (!isTempTable())
-			tx.concurrencyMgr().modifyFile(fileName);
+			tx.concurrencyMgr().insertIntoFile(fileName);
 
-		// Modify the free chain which is start from a pointer in
-		// the header of the file.
-		if (fhp == null)
+		while (true) {
+			// Pick the slot to fill: the head of the free chain, or the slot
+			// after the tail slot
+			RecordId slot;
 			fhp = openHeaderForModification();
-		
-		try {
-			// Log that this logical operation starts
-			tx.recoveryMgr().logLogicalStart();
-	
-			if (fhp.hasDeletedSlots()) {
-				// Insert into a deleted slot
-				moveToRecordId(fhp.getLastDeletedSlot());
-				RecordId lds = rp.insertIntoDeletedSlot();
-				fhp.setLastDeletedSlot(lds);
-			} else {
-				// Insert into a empty slot
-				if (!fhp.hasDataRecords()) {
-					// Create the first data block
+			try {
+				slot = nextFreeSlot();
+			} finally {
+				closeHeader();
+			}
+
+			// Lock the slot, and the end of the file if the slot is past it,
+			// without holding the latch. A slot freed by an uncommitted
+			// deletion is locked by the deleter, which may need the latch to
+			// roll back.
+			if (!isTempTable()) {
+				if (slot.block().number() >= VanillaDb.fileMgr().size(fileName))
+					tx.concurrencyMgr().appendBlock(fileName);
+				tx.concurrencyMgr().modifyRecord(slot);
+			}
+
+			// Modify the free chain which is start from a pointer in
+			// the header of the file.
+			fhp = openHeaderForModification();
+			try {
+				// Another transaction may have taken the slot in the meantime
+				boolean fromFreeChain = fhp.hasDeletedSlots();
+				if (!slot.equals(nextFreeSlot()))
+					continue;
+				while (slot.block().number() >= VanillaDb.fileMgr().size(fileName))
 					appendBlock();
-					moveTo(1);
-					rp.insertIntoNextEmptySlot();
+				moveToRecordId(slot);
+				if (!fromFreeChain && !rp.isEmptySlot()) {
+					// the slot is taken although the header says otherwise
+					fhp.setTailSlot(slot);
+					continue;
+				}
+
+				// Log that this logical operation starts
+				tx.recoveryMgr().logLogicalStart();
+
+				if (fromFreeChain) {
+					// Insert into a deleted slot
+					RecordId lds = rp.insertIntoDeletedSlot();
+					fhp.setLastDeletedSlot(lds);
 				} else {
-					// Find the tail page
-					RecordId tailSlot = fhp.getTailSolt();
-					moveToRecordId(tailSlot);
-
-					while (!rp.insertIntoNextEmptySlot()) {
-						if (atLastBlock())
-							appendBlock();
-						// 100th percentile latency: 3099
-						moveTo(currentBlkNum + 1);
-					}
+					// Insert into a empty slot
+					rp.insertIntoTheCurrentSlot();
+					fhp.setTailSlot(slot);
 				}
-				fhp.setTailSlot(currentRecordId());
+
+				// Log that this logical operation ends
+				tx.recoveryMgr().logRecordFileInsertionEnd(ti.tableName(), slot.block().number(), slot.id());
+				return;
+			} finally {
+				// Close the header (release the header latch)
+				closeHeader();
 			}
-	
-			// Log that this logical operation ends
-			RecordId insertedRid = currentRecordId();
-			tx.recoveryMgr().logRecordFileInsertionEnd(ti.tableName(), insertedRid.block().number(), insertedRid.id());
-		} finally {
-			// Close the header (release the header latch)
-			closeHeader();
 		}
 	}
 
+	/**
+	 * Returns the slot the next insertion fills: the last deleted slot, or
+	 * the slot following the tail slot, which may be in a block yet to be
+	 * appended. The header must be open.
+	 */
+	private RecordId nextFreeSlot() {
+		if (fhp.hasDeletedSlots())
+			return fhp.getLastDeletedSlot();
+		if (!fhp.hasDataRecords())
+			return new RecordId(new BlockId(fileName, 1), 0);
+		RecordId tail = fhp.getTailSolt();
+		if (tail.id() + 1 < RecordPage.slotsPerBlock(ti.schema()))
+			return new RecordId(tail.block(), tail.id() + 1);
+		return new RecordId(new BlockId(fileName, tail.block().number() + 1), 0);
+	}
+
 	/**
 	 * Inserts a record to a specified physical address.
 	 * 
@@ -288,10 +405,11 @@ public class RecordFile implements Record {
 		if (tx.isReadOnly() && !isTempTable())
 			throw new UnsupportedOperationException();
 
-		// Insertion may change the properties of this file,
-		// so that we need to lock the file.
-		if (!isTempTable())
-			tx.concurrencyMgr().modifyFile(fileName);
+		// Lock the record before taking the header latch
+		if (!isTempTable()) {
+			tx.concurrencyMgr().insertIntoFile(fileName);
+			tx.concurrencyMgr().modifyRecord(rid);
+		}
 
 		// Open the header
 		if (fhp == null)
@@ -344,7 +462,10 @@ public class RecordFile implements Record {
 	 *            a record ID
 	 */
 	public void moveToRecordId(RecordId rid) {
-		moveTo(rid.block().number());
+		// Optimization: stay on the pinned page if the record is in it
+		if (rp == null || rp.currentBlk() == null
+				|| currentBlkNum != rid.block().number())
+			moveTo(rid.block().number());
 		rp.moveToId(rid.id());
 	}
 
@@ -371,7 +492,58 @@ public class RecordFile implements Record {
 		return VanillaDb.fileMgr().size(fileName);
 	}
 
+	/**
+	 * Returns the number of blocks in the file for a scan that reads through
+	 * the end of it. Unlike {@link #fileSize()}, it also locks the end of the
+	 * file, so that no other transaction can append a block the scan would
+	 * miss.
+	 * 
+	 * @return the number of blocks in the file
+	 */
+	public long fileSizeForScan() {
+		if (!isTempTable())
+			tx.concurrencyMgr().readFileEnd(fileName);
+		return fileSize();
+	}
+
+	/**
+	 * Moves to the specified block in a scan, and reads the blocks following
+	 * it ahead. If the block is past the end of the file, the end of the file
+	 * is locked before it is checked again.
+	 */
+	private boolean moveToInScan(long b) {
+		if (!moveTo(b, isSequential)) {
+			if (isTempTable())
+				return false;
+			tx.concurrencyMgr().readFileEnd(fileName);
+			if (!moveTo(b, isSequential))
+				return false;
+		}
+		readAhead(b);
+		return true;
+	}
+
+	/**
+	 * Asks the buffer manager to read the blocks following the specified one
+	 * ahead of the scan, once the scan has moved past its first block. The
+	 * blocks are asked for half a window at a time.
+	 */
+	private void readAhead(long b) {
+		if (BufferMgr.READ_AHEAD_BLOCKS == 0 || b == startBlkNum
+				|| readAheadBlkNum > b + BufferMgr.READ_AHEAD_BLOCKS / 2)
+			return;
+		long last = Math.min(b + BufferMgr.READ_AHEAD_BLOCKS,
+				Math.min(endBlkNum, VanillaDb.fileMgr().size(fileName)) - 1);
+		for (long next = Math.max(readAheadBlkNum, b) + 1; next <= last; next++)
+			BufferMgr.readAhead(new BlockId(fileName, next), isSequential);
+		readAheadBlkNum = Math.max(readAheadBlkNum, last);
+	}
+
 	private boolean moveTo(long b) {
+		return moveTo(b, false);
+	}
+
+	private boolean moveTo(long b, boolean sequential) {
 		if (rp != null)
 			rp.close();
 		
@@ -379,19 +551,15 @@ public class RecordFile implements Record {
 			return false;
 		currentBlkNum = b;
 		BlockId blk = new BlockId(fileName, currentBlkNum);
-		rp = new RecordPage(blk, ti, tx, doLog);
+		rp = new RecordPage(blk, ti, tx, doLog, sequential);
 		return true;
 	}
 
 	private void appendBlock() {
-		if (!isTempTable())
-			tx.concurrencyMgr().modifyFile(fileName);
+		// The end of the file is locked by the caller. The new block is not
+		// locked, since its slots are locked one by one as they are filled.
 		RecordFormatter fmtr = new RecordFormatter(ti);
 		Buffer buff = tx.bufferMgr().pinNew(fileName, fmtr);
-		// Danger!
-		// Must get block before unpin
-		if (!isTempTable())
-			tx.concurrencyMgr().insertBlock(buff.block());
 		tx.bufferMgr().unpin(buff);	
 	}
 
@@ -409,15 +577,14 @@ public class RecordFile implements Record {
 		if (fhpLatch != null && fhpLatch.isHeldByCurrentThread())
 			fhpLatch.unlock();
 		
-		if (fhp != null)
+		if (fhp != null) {
+			fhp.close();
 			fhp = null;
+		}
 	}
 
 	private boolean isTempTable() {
 		return fileName.startsWith("_temp");
 	}
 
-	private boolean atLastBlock() {
-		return currentBlkNum == fileSize() - 1;
-	}
 }
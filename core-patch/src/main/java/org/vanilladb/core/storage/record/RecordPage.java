@@ -27,6 +27,7 @@ import org.vanilladb.core.sql.IntegerConstant;
 import org.vanilladb.core.sql.Record;
 import org.vanilladb.core.sql.Schema;
 import org.vanilladb.core.sql.Type;
+import org.vanilladb.core.sql.distfn.DistanceFn;
 import org.vanilladb.core.storage.buffer.Buffer;
 import org.vanilladb.core.storage.file.BlockId;
 import org.vanilladb.core.storage.file.Page;
@@ -124,6 +125,17 @@ public class RecordPage implements Record {
 		return recordSize(sch) + Page.maxSize(INTEGER);
 	}
 
+	/**
+	 * Returns the number of record slots in a block for the specified schema.
+	 * 
+	 * @param sch
+	 *            the table's schema
+	 * @return the number of slots in a block
+	 */
+	public static int slotsPerBlock(Schema sch) {
+		return Buffer.BUFFER_SIZE / slotSize(sch);
+	}
+
 	/**
 	 * Creates the record manager for the specified block. The current record is
 	 * set to be prior to the first one.
@@ -138,11 +150,32 @@ public class RecordPage implements Record {
 	 *            will it log the modification
 	 */
 	public RecordPage(BlockId blk, TableInfo ti, Transaction tx, boolean doLog) {
+		this(blk, ti, tx, doLog, false);
+	}
+
+	/**
+	 * Creates the record manager for the specified block, which is pinned as
+	 * part of a sequential scan if {@code sequential} is true. The current
+	 * record is set to be prior to the first one.
+	 * 
+	 * @param blk
+	 *            a block ID
+	 * @param ti
+	 *            the table's metadata
+	 * @param tx
+	 *            the transaction
+	 * @param doLog
+	 *            will it log the modification
+	 * @param sequential
+	 *            whether the block is read by a sequential scan
+	 * @see org.vanilladb.core.storage.buffer.BufferMgr#pin(BlockId, boolean)
+	 */
+	public RecordPage(BlockId blk, TableInfo ti, Transaction tx, boolean doLog, boolean sequential) {
 		this.blk = blk;
 		this.tx = tx;
 		this.ti = ti;
 		this.doLog = doLog;
-		currentBuff = tx.bufferMgr().pin(blk);
+		currentBuff = tx.bufferMgr().pin(blk, sequential);
 
 		// Optimization: Reduce the cost of prepare the schema information
 		Schema sch = ti.schema();
@@ -189,6 +222,63 @@ public class RecordPage implements Record {
 		return getVal(position, ti.schema().type(fldName));
 	}
 
+	/**
+	 * Returns the distance between the query vector of the specified distance
+	 * function and the vector in its field of this record, computed on the
+	 * page without reading the vector out.
+	 * 
+	 * @param distFn
+	 *            the distance function holding the query vector
+	 * 
+	 * @return the distance to the vector of this record
+	 */
+	public double distance(DistanceFn distFn) {
+		String fldName = distFn.fieldName();
+		int position = fieldPos(fldName);
+		if (!isTempTable())
+			tx.concurrencyMgr().readRecord(new RecordId(blk, currentSlot));
+		return currentBuff.distance(position, ti.schema().type(fldName), distFn);
+	}
+
+	/**
+	 * Returns the ranking distance between the query vector of the specified
+	 * distance function and the vector in its field of this record, computed
+	 * on the page.
+	 * 
+	 * @param distFn
+	 *            the distance function holding the query vector
+	 * @param bound
+	 *            the ranking distance at which the computation may stop
+	 * 
+	 * @return the ranking distance to the vector of this record
+	 */
+	public double rankingDistance(DistanceFn distFn, double bound) {
+		String fldName = distFn.fieldName();
+		int position = fieldPos(fldName);
+		if (!isTempTable())
+			tx.concurrencyMgr().readRecord(new RecordId(blk, currentSlot));
+		return currentBuff.rankingDistance(position, ti.schema().type(fldName), distFn, bound);
+	}
+
+	/**
+	 * Copies the vector in the specified field of this record into the
+	 * specified array, whose length must be the dimension of the field.
+	 * 
+	 * @param fldName
+	 *            the name of the vector field
+	 * @param dst
+	 *            the array to hold the vector
+	 */
+	public void getVector(String fldName, float[] dst) {
+		Type type = ti.schema().type(fldName);
+		if (type.getArgument() != dst.length)
+			throw new IllegalArgumentException("Vector length does not match");
+		int position = fieldPos(fldName);
+		if (!isTempTable())
+			tx.concurrencyMgr().readRecord(new RecordId(blk, currentSlot));
+		currentBuff.getVector(position, type, dst);
+	}
+
 	/**
 	 * Stores a value at the specified field of this record.
 	 * 
@@ -217,6 +307,15 @@ public class RecordPage implements Record {
 		setNextDeletedSlotId(nextDeletedSlot);
 	}
 	
+	/**
+	 * Returns true if the current slot is not in use.
+	 * 
+	 * @return true if the current slot is empty
+	 */
+	public boolean isEmptySlot() {
+		return getVal(currentPos(), INTEGER).equals(EMPTY_CONST);
+	}
+
 	/**
 	 * Marks the current slot as in-used.
 	 * 
@@ -309,21 +408,34 @@ public class RecordPage implements Record {
 		System.out.println("== runAllSlot end at " + currentSlot + " ==");
 	}
 
+	/**
+	 * Returns the id of the deleted slot following the current one in the
+	 * free chain. The free chain is guarded by the latch of the file header
+	 * rather than by record locks, since a deleted slot stays locked by the
+	 * deleting transaction until it commits.
+	 * 
+	 * @return the id of the next deleted slot
+	 */
 	public RecordId getNextDeletedSlotId() {
 		int position = currentPos() + FLAG_SIZE;
-		long blkNum = (Long) getVal(position, BIGINT).asJavaVal();
-		int id = (Integer) getVal(position + Page.maxSize(BIGINT), INTEGER)
-				.asJavaVal();
+		long blkNum = (Long) currentBuff.getVal(position, BIGINT).asJavaVal();
+		int id = (Integer) currentBuff.getVal(position + Page.maxSize(BIGINT),
+				INTEGER).asJavaVal();
 		return new RecordId(new BlockId(blk.fileName(), blkNum), id);
 	}
 
+	/**
+	 * Sets the id of the deleted slot following the current one in the free
+	 * chain. The caller must hold the latch of the file header.
+	 * 
+	 * @param rid
+	 *            the id of the next deleted slot
+	 */
 	public void setNextDeletedSlotId(RecordId rid) {
-		Constant val = new BigIntConstant(rid.block().number());
 		int position = currentPos() + FLAG_SIZE;
-		setVal(position, val);
-		val = new IntegerConstant(rid.id());
+		setChainVal(position, new BigIntConstant(rid.block().number()));
 		position += Page.maxSize(BIGINT);
-		setVal(position, val);
+		setChainVal(position, new IntegerConstant(rid.id()));
 	}
 
 	private int currentPos() {
@@ -364,6 +476,16 @@ public class RecordPage implements Record {
 		LogSeqNum lsn = doLog ? tx.recoveryMgr().logSetVal(currentBuff, offset, val)
 				: null;
 		currentBuff.setVal(offset, val, tx.getTransactionNumber(), lsn);
+		if (!isTempTable())
+			VectorColumnFile.pageModified(blk, offset, val);
+	}
+
+	private void setChainVal(int offset, Constant val) {
+		LogSeqNum lsn = doLog ? tx.recoveryMgr().logSetVal(currentBuff, offset, val)
+				: null;
+		currentBuff.setVal(offset, val, tx.getTransactionNumber(), lsn);
+		if (!isTempTable())
+			VectorColumnFile.pageModified(blk, offset, val);
 	}
 
 	private boolean isTempTable() {
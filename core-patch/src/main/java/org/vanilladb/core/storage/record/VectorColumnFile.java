@@ -0,0 +1,373 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.storage.record;
+
+import static org.vanilladb.core.storage.record.RecordPage.FLAG_SIZE;
+import static org.vanilladb.core.storage.record.RecordPage.INUSE;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.vanilladb.core.server.VanillaDb;
+import org.vanilladb.core.sql.Constant;
+import org.vanilladb.core.sql.IntegerConstant;
+import org.vanilladb.core.sql.Type;
+import org.vanilladb.core.sql.VectorConstant;
+import org.vanilladb.core.sql.VectorType;
+import org.vanilladb.core.sql.distfn.DistanceFn;
+import org.vanilladb.core.storage.buffer.Buffer;
+import org.vanilladb.core.storage.file.BlockId;
+import org.vanilladb.core.storage.file.FileMgr;
+import org.vanilladb.core.storage.metadata.TableInfo;
+import org.vanilladb.core.storage.tx.Transaction;
+import org.vanilladb.core.util.CoreProperties;
+
+/**
+ * A dense copy of a vector field of a table, kept in a file beside the record
+ * file and mapped into memory, so that a nearest neighbor search can stream
+ * through the vectors instead of reading them record by record through the
+ * buffer pool.
+ *
+ * <p>
+ * The record in slot {@code s} of data block {@code b} takes position
+ * {@code (b - 1) * slotsPerBlock + s} of the column file, which holds its
+ * in-use flag followed by the stored form of its vector. The column file is
+ * therefore ordered by record ID, with a fixed stride. The record pages copy
+ * the flags and the vectors into it as they modify them or undo their
+ * modifications.
+ * </p>
+ *
+ * <p>
+ * The column file is only a copy: it is neither logged nor recovered, but
+ * rebuilt from the record file when first opened in a process. A scan locks
+ * each block it visits for reading, where a record file locks each record.
+ * </p>
+ */
+public class VectorColumnFile {
+
+	/**
+	 * Whether the vector fields of the tables are copied into column files.
+	 */
+	public static final boolean ENABLED;
+
+	/**
+	 * The number of bytes mapped by a segment of a column file at most.
+	 */
+	private static final long SEGMENT_SIZE = 1L << 30;
+	private static final int INITIAL_SEGMENT_SIZE = 1 << 20;
+
+	static {
+		ENABLED = CoreProperties.getLoader().getPropertyAsBoolean(
+				VectorColumnFile.class.getName() + ".ENABLED", false);
+	}
+
+	// the columns opened in this process, by the names of their record files
+	private static final Map<String, List<Column>> columns = new ConcurrentHashMap<String, List<Column>>();
+
+	/**
+	 * The copy of a vector field shared by all transactions.
+	 */
+	private static class Column {
+		private TableInfo ti;
+		private String fldName, colFileName;
+		private VectorType type;
+		private int slotSize, slotsPerBlock, vecOffset, stride, positionsPerSegment;
+		private FileChannel channel;
+		private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+		private volatile boolean loaded;
+
+		Column(TableInfo ti, String fldName) {
+			this.ti = ti;
+			this.fldName = fldName;
+			type = (VectorType) ti.schema().type(fldName);
+			colFileName = ti.tableName() + "." + fldName + ".vec";
+			slotSize = RecordPage.slotSize(ti.schema());
+			slotsPerBlock = Buffer.BUFFER_SIZE / slotSize;
+			vecOffset = FLAG_SIZE + RecordPage.offsetMap(ti.schema()).get(fldName);
+			stride = FLAG_SIZE + type.maxSize();
+			positionsPerSegment = (int) (SEGMENT_SIZE / stride);
+			try {
+				// the copy left by the last process is stale
+				channel = FileChannel.open(VanillaDb.fileMgr().dbFile(colFileName).toPath(),
+						StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING);
+			} catch (IOException e) {
+				throw new RuntimeException("cannot open " + colFileName, e);
+			}
+		}
+
+		/**
+		 * Copies the in-use records of the record file, locking each of them
+		 * for reading as the record file does. The modifications made in the
+		 * meantime are copied by the record pages themselves.
+		 */
+		void load(Transaction tx) {
+			if (loaded)
+				return;
+			synchronized (this) {
+				if (loaded)
+					return;
+				RecordFile rf = ti.open(tx, false);
+				rf.beforeFirst();
+				while (rf.next()) {
+					RecordId rid = rf.currentRecordId();
+					long pos = position(rid.block().number(), rid.id());
+					write(pos, 0, new IntegerConstant(INUSE));
+					write(pos, FLAG_SIZE, rf.getVal(fldName));
+				}
+				rf.close();
+				loaded = true;
+			}
+		}
+
+		void sync(long blkNum, int offset, Constant val) {
+			int slot = offset / slotSize;
+			int rel = offset - slot * slotSize;
+			if (rel == 0 && val instanceof IntegerConstant)
+				write(position(blkNum, slot), 0, val);
+			else if (rel == vecOffset && val instanceof VectorConstant)
+				write(position(blkNum, slot), FLAG_SIZE, val);
+		}
+
+		long position(long blkNum, int slot) {
+			// block 0 is the file header
+			return (blkNum - 1) * slotsPerBlock + slot;
+		}
+
+		private void write(long pos, int rel, Constant val) {
+			MappedByteBuffer seg = segment(pos, true);
+			int off = offset(pos) + rel;
+			if (val instanceof IntegerConstant)
+				seg.putInt(off, (Integer) val.asJavaVal());
+			else
+				seg.put(off, val.asBytes());
+		}
+
+		int offset(long pos) {
+			return (int) (pos % positionsPerSegment) * stride;
+		}
+
+		/**
+		 * Returns the segment mapping the specified position, or null if it is
+		 * not mapped yet and {@code grow} is false.
+		 */
+		MappedByteBuffer segment(long pos, boolean grow) {
+			int s = (int) (pos / positionsPerSegment);
+			int end = offset(pos) + stride;
+			MappedByteBuffer[] segs = segments;
+			if (s < segs.length && end <= segs[s].capacity())
+				return segs[s];
+			if (!grow)
+				return null;
+			synchronized (channel) {
+				segs = segments;
+				if (s < segs.length && end <= segs[s].capacity())
+					return segs[s];
+				MappedByteBuffer[] grown = new MappedByteBuffer[Math.max(segs.length, s + 1)];
+				System.arraycopy(segs, 0, grown, 0, segs.length);
+				int full = positionsPerSegment * stride;
+				try {
+					for (int i = 0; i <= s; i++) {
+						int cap = i < segs.length ? segs[i].capacity() : 0;
+						int want = i < s ? full
+								: Math.min(full, Math.max(end, Math.max(2 * cap, INITIAL_SEGMENT_SIZE)));
+						if (cap < want)
+							grown[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+									(long) i * full, want);
+					}
+				} catch (IOException e) {
+					throw new RuntimeException("cannot map " + colFileName, e);
+				}
+				segments = grown;
+				return grown[s];
+			}
+		}
+
+		void close() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				throw new RuntimeException("cannot close " + colFileName, e);
+			}
+		}
+	}
+
+	/**
+	 * Opens the column file of the specified vector field of a table, loading
+	 * it from the record file if it is not open in this process yet.
+	 *
+	 * @param ti
+	 *            the metadata of the table
+	 * @param fldName
+	 *            the name of the vector field
+	 * @param tx
+	 *            the calling transaction
+	 * @return the column file, or null if column files are disabled or the
+	 *         table is temporary
+	 */
+	public static VectorColumnFile open(TableInfo ti, String fldName, Transaction tx) {
+		if (!ENABLED || ti.fileName().startsWith(FileMgr.TMP_FILE_NAME_PREFIX))
+			return null;
+		Type type = ti.schema().type(fldName);
+		if (!(type instanceof VectorType))
+			return null;
+
+		Column col = find(ti.fileName(), fldName);
+		if (col == null) {
+			synchronized (columns) {
+				col = find(ti.fileName(), fldName);
+				if (col == null) {
+					col = new Column(ti, fldName);
+					columns.computeIfAbsent(ti.fileName(), f -> new CopyOnWriteArrayList<Column>())
+							.add(col);
+				}
+			}
+		}
+		col.load(tx);
+		return new VectorColumnFile(col, tx);
+	}
+
+	private static Column find(String fileName, String fldName) {
+		List<Column> cols = columns.get(fileName);
+		if (cols != null)
+			for (Column col : cols)
+				if (col.fldName.equals(fldName))
+					return col;
+		return null;
+	}
+
+	/**
+	 * Copies a value written at the specified offset of a record page into the
+	 * column files of its record file, if it is the in-use flag or a copied
+	 * vector of a record.
+	 *
+	 * @param blk
+	 *            the block of the record page
+	 * @param offset
+	 *            the offset of the value within the record page
+	 * @param val
+	 *            the value written
+	 */
+	public static void pageModified(BlockId blk, int offset, Constant val) {
+		if (!ENABLED)
+			return;
+		List<Column> cols = columns.get(blk.fileName());
+		if (cols != null)
+			for (Column col : cols)
+				col.sync(blk.number(), offset, val);
+	}
+
+	/**
+	 * Closes and deletes the column files of the specified record file.
+	 *
+	 * @param fileName
+	 *            the name of the record file
+	 */
+	public static void remove(String fileName) {
+		if (!ENABLED)
+			return;
+		List<Column> cols = columns.remove(fileName);
+		if (cols != null)
+			for (Column col : cols) {
+				col.close();
+				VanillaDb.fileMgr().delete(col.colFileName);
+			}
+	}
+
+	private Column col;
+	private Transaction tx;
+	private MappedByteBuffer seg;
+	private long currentBlkNum, endBlkNum, pos;
+	private int slot, off;
+
+	private VectorColumnFile(Column col, Transaction tx) {
+		this.col = col;
+		this.tx = tx;
+	}
+
+	/**
+	 * Positions the scan before the first record in the blocks from
+	 * {@code startBlk} (inclusive) to {@code endBlk} (exclusive).
+	 *
+	 * @param startBlk
+	 *            the first block to visit, which is at least 1
+	 * @param endBlk
+	 *            the block after the last block to visit
+	 */
+	public void beforeFirst(long startBlk, long endBlk) {
+		currentBlkNum = startBlk - 1;
+		endBlkNum = endBlk;
+		slot = col.slotsPerBlock;
+	}
+
+	/**
+	 * Moves to the next in-use record. Returns false if there is no next
+	 * record.
+	 *
+	 * @return false if there is no next record
+	 */
+	public boolean next() {
+		while (true) {
+			if (++slot >= col.slotsPerBlock) {
+				if (++currentBlkNum >= endBlkNum)
+					return false;
+				slot = 0;
+				tx.concurrencyMgr().readBlock(new BlockId(col.ti.fileName(), currentBlkNum));
+			}
+			pos = col.position(currentBlkNum, slot);
+			seg = col.segment(pos, false);
+			if (seg == null) {
+				// nothing is copied beyond the mapped positions
+				currentBlkNum = endBlkNum;
+				return false;
+			}
+			off = col.offset(pos);
+			if (seg.getInt(off) == INUSE)
+				return true;
+		}
+	}
+
+	/**
+	 * Returns the ranking distance between the query vector of the specified
+	 * distance function and the vector of the current record.
+	 *
+	 * @param distFn
+	 *            the distance function holding the query vector
+	 * @param bound
+	 *            the ranking distance at which the computation may stop
+	 * @return the ranking distance to the vector of the current record
+	 * @see DistanceFn#rankingDistance(java.nio.ByteBuffer, int, VectorType,
+	 *      double)
+	 */
+	public double rankingDistance(DistanceFn distFn, double bound) {
+		return distFn.rankingDistance(seg, off + FLAG_SIZE, col.type, bound);
+	}
+
+	/**
+	 * Returns the record ID of the current record.
+	 *
+	 * @return a record ID
+	 */
+	public RecordId currentRecordId() {
+		return new RecordId(new BlockId(col.ti.fileName(), currentBlkNum), slot);
+	}
+}
@@ -51,6 +51,41 @@ public abstract class ConcurrencyMgr implements TransactionLifecycleListener {
 	 */
 	public abstract void readFile(String fileName);
 
+	/**
+	 * Sets lock according to the transaction's isolation level for inserting
+	 * records into the file. Unlike {@link #modifyFile(String)}, it lets other
+	 * transactions insert into the file at the same time, since the inserted
+	 * records are locked one by one.
+	 * 
+	 * @param fileName
+	 *            the name of the file
+	 */
+	public abstract void insertIntoFile(String fileName);
+
+	/**
+	 * Sets lock according to the transaction's isolation level for reading
+	 * through the end of the file, which keeps other transactions from
+	 * appending blocks to it.
+	 * 
+	 * @param fileName
+	 *            the name of the file
+	 */
+	public abstract void readFileEnd(String fileName);
+
+	/**
+	 * Locks the end of the file before a new block is appended to it. The lock
+	 * is held until the end of the transaction in every isolation level, so
+	 * that no scan that has read through the end of the file can miss the
+	 * uncommitted block.
+	 * 
+	 * @param fileName
+	 *            the name of the file
+	 */
+	public void appendBlock(String fileName) {
+		lockTbl.ixLock(fileName, txNum);
+		lockTbl.xLock(endOfFile(fileName), txNum);
+	}
+
 	/**
 	 * Sets lock according to the transaction's isolation level for inserting
 	 * this new block into the file.
@@ -176,4 +211,11 @@ public abstract class ConcurrencyMgr implements TransactionLifecycleListener {
 	public ReentrantLock getLockForFileHeader(BlockId blk) {
 		return fileHeaderLatches.getLatch(blk);
 	}
+
+	/**
+	 * Returns the lockable item standing for the end of the specified file.
+	 */
+	protected static Object endOfFile(String fileName) {
+		return new BlockId(fileName, -1);
+	}
 }
@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * Copyright 2016, 2018 vanilladb.org contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.vanilladb.core.storage.tx.concurrency;
+
+import org.vanilladb.core.storage.file.BlockId;
+import org.vanilladb.core.storage.record.RecordId;
+import org.vanilladb.core.storage.tx.Transaction;
+
+/**
+ * The concurrency manager of a thread that reads on behalf of a transaction
+ * running on another thread, which has locked everything the thread reads
+ * beforehand. It takes no lock itself, and refuses any modification.
+ */
+public class PreLockedConcurrencyMgr extends ConcurrencyMgr {
+
+	public PreLockedConcurrencyMgr(long txNumber) {
+		txNum = txNumber;
+	}
+
+	@Override
+	public void onTxCommit(Transaction tx) {
+		// the locks are released by the transaction that holds them
+	}
+
+	@Override
+	public void onTxRollback(Transaction tx) {
+		// the locks are released by the transaction that holds them
+	}
+
+	@Override
+	public void onTxEndStatement(Transaction tx) {
+		// do nothing
+	}
+
+	@Override
+	public void modifyFile(String fileName) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void readFile(String fileName) {
+		// locked by the calling transaction
+	}
+
+	@Override
+	public void insertIntoFile(String fileName) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void readFileEnd(String fileName) {
+		// locked by the calling transaction
+	}
+
+	@Override
+	public void appendBlock(String fileName) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void insertBlock(BlockId blk) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void modifyBlock(BlockId blk) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void readBlock(BlockId blk) {
+		// locked by the calling transaction
+	}
+
+	@Override
+	public void modifyRecord(RecordId recId) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void readRecord(RecordId recId) {
+		// locked by the calling transaction
+	}
+
+	@Override
+	public void modifyIndex(String dataFileName) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void readIndex(String dataFileName) {
+		// locked by the calling transaction
+	}
+
+	@Override
+	public void modifyLeafBlock(BlockId blk) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void readLeafBlock(BlockId blk) {
+		// locked by the calling transaction
+	}
+}
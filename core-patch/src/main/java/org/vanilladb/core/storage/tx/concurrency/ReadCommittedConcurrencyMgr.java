@@ -61,6 +61,16 @@ public class ReadCommittedConcurrencyMgr extends ConcurrencyMgr {
 		lockTbl.release(fileName, txNum, LockTable.IS_LOCK);
 	}
 
+	@Override
+	public void insertIntoFile(String fileName) {
+		lockTbl.ixLock(fileName, txNum);
+	}
+
+	@Override
+	public void readFileEnd(String fileName) {
+		// does not lock the end of the file to allow phantoms
+	}
+
 	@Override
 	public void insertBlock(BlockId blk) {
 		lockTbl.xLock(blk.fileName(), txNum);
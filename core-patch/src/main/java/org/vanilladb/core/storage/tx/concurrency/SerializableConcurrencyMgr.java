@@ -50,6 +50,19 @@ public class SerializableConcurrencyMgr extends ConcurrencyMgr {
 		lockTbl.isLock(fileName, txNum);
 	}
 
+	@Override
+	public void insertIntoFile(String fileName) {
+		lockTbl.ixLock(fileName, txNum);
+	}
+
+	@Override
+	public void readFileEnd(String fileName) {
+		// Hold the lock until the end of the transaction
+		// in order to prevent phantoms
+		lockTbl.isLock(fileName, txNum);
+		lockTbl.sLock(endOfFile(fileName), txNum);
+	}
+
 	@Override
 	public void insertBlock(BlockId blk) {
 		lockTbl.xLock(blk.fileName(), txNum);
@@ -68,6 +68,8 @@ public class RecoveryMgr implements TransactionLifecycleListener {
 	private Map<Long, LogSeqNum> txUnDoNextLSN = new HashMap<Long, LogSeqNum>();
 	private long txNum; // the owner id of this recovery manger
 	private LogSeqNum logicalStartLSN = null;
+	// the number of logical operations started but not ended yet
+	private int logicalDepth = 0;
 
 	/**
 	 * Creates a recovery manager for the specified transaction.
@@ -105,6 +107,8 @@ public class RecoveryMgr implements TransactionLifecycleListener {
 	@Override
 	public void onTxRollback(Transaction tx) {
 		if (!tx.isReadOnly() && enableLogging) {
+			// an operation interrupted by the abort never ends
+			logicalDepth = 0;
 			rollback(tx);
 			LogSeqNum lsn = new RollbackRecord(txNum).writeToLog();
 			VanillaDb.logMgr().flush(lsn);
@@ -149,8 +153,19 @@ public class RecoveryMgr implements TransactionLifecycleListener {
 			return null;
 	}
 
+	/**
+	 * Writes a logical start record to the log. A logical operation started
+	 * inside another one, such as a record file insertion made by an index,
+	 * is folded into the outer one: no record is written for it, and its
+	 * changes are undone physically if the outer operation does not end.
+	 * 
+	 * @return the LSN of the start record of the outermost logical operation,
+	 *         or null if recovery manager turns off the logging
+	 */
 	public LogSeqNum logLogicalStart() {
 		if (enableLogging) {
+			if (logicalDepth++ > 0)
+				return this.logicalStartLSN;
 			// Store logicalStartLSN inside the RecoveryMgr
 			this.logicalStartLSN = new LogicalStartRecord(txNum).writeToLog();
 			return this.logicalStartLSN;
@@ -180,6 +195,8 @@ public class RecoveryMgr implements TransactionLifecycleListener {
 		if (enableLogging) {
 			if (this.logicalStartLSN == null)
 				throw new RuntimeException("Logical start LSN is null (in logRecordFileInsertionEnd)");
+			if (endsNestedOperation())
+				return null;
 			LogSeqNum lsn = new RecordFileInsertEndRecord(txNum, tblName, blkNum, slotId, this.logicalStartLSN)
 					.writeToLog();
 			this.logicalStartLSN = null;
@@ -192,6 +209,8 @@ public class RecoveryMgr implements TransactionLifecycleListener {
 		if (enableLogging) {
 			if (this.logicalStartLSN == null)
 				throw new RuntimeException("Logical start LSN is null (in logRecordFileDeletionEnd)");
+			if (endsNestedOperation())
+				return null;
 			LogSeqNum lsn = new RecordFileDeleteEndRecord(txNum, tblName, blkNum, slotId, this.logicalStartLSN)
 					.writeToLog();
 			this.logicalStartLSN = null;
@@ -205,6 +224,8 @@ public class RecoveryMgr implements TransactionLifecycleListener {
 		if (enableLogging) {
 			if (this.logicalStartLSN == null)
 				throw new RuntimeException("Logical start LSN is null (in logIndexInsertionEnd)");
+			if (endsNestedOperation())
+				return null;
 			LogSeqNum lsn = new IndexInsertEndRecord(txNum, indexName, searchKey, recordBlockNum, recordSlotId,
 					this.logicalStartLSN).writeToLog();
 			this.logicalStartLSN = null;
@@ -217,6 +238,8 @@ public class RecoveryMgr implements TransactionLifecycleListener {
 		if (enableLogging) {
 			if (this.logicalStartLSN == null)
 				throw new RuntimeException("Logical start LSN is null (in logIndexDeletionEnd)");
+			if (endsNestedOperation())
+				return null;
 			LogSeqNum lsn = new IndexDeleteEndRecord(txNum, indexName, searchKey, recordBlockNum, recordSlotId,
 					this.logicalStartLSN).writeToLog();
 			this.logicalStartLSN = null;
@@ -225,6 +248,10 @@ public class RecoveryMgr implements TransactionLifecycleListener {
 			return null;
 	}
 
+	private boolean endsNestedOperation() {
+		return --logicalDepth > 0;
+	}
+
 	public LogSeqNum logIndexPageInsertion(BlockId indexBlkId, boolean isDirPage, SearchKeyType keyType, int slotId) {
 		if (enableLogging) {
 			return new IndexPageInsertRecord(txNum, indexBlkId, isDirPage, keyType, slotId).writeToLog();
@@ -32,6 +32,7 @@ import org.vanilladb.core.storage.buffer.Buffer;
 import org.vanilladb.core.storage.file.BlockId;
 import org.vanilladb.core.storage.log.BasicLogRecord;
 import org.vanilladb.core.storage.log.LogSeqNum;
+import org.vanilladb.core.storage.record.VectorColumnFile;
 import org.vanilladb.core.storage.tx.Transaction;
 
 class SetValueRecord implements LogRecord {
@@ -134,6 +135,7 @@ class SetValueRecord implements LogRecord {
 		
 		buff.setVal(offset, val, tx.getTransactionNumber(), null);
 		tx.bufferMgr().unpin(buff);
+		VectorColumnFile.pageModified(blk, offset, val);
 		// Note that UndoNextLSN should be set to this log record's lsn in order
 		// to let RecoveryMgr to skip this log record. Since this record should
 		// be undo by the Clr append there.